@@ -102,9 +102,11 @@ void RSPCN::count() {
     VideoWriter outputVideoDepth;
     VideoWriter outputVideoFrame;
 
-    // Contours variables
-    vector<vector<Point> > contours;
-    vector<Vec4i> hierarchy;
+    // Segmentation (segment.h): threshold lookup table and detection records
+    vector<uint8_t> lut(65536);
+    int lutThreshold = -1;
+    int capacity = 64;
+    vector<char> detections(capacity * SEGMENT_RECORD_SIZE);
 
     // Calibration
     int thresholdCentimeters = MAX_RANGE_CM;
@@ -121,6 +123,9 @@ void RSPCN::count() {
     // Start streaming
     dev->start();
 
+    frame.create(ImageHeight, ImageWidth, CV_8UC1);
+    morphTrans.create(ImageHeight, ImageWidth, CV_8UC1);
+
     // --SETUP WINDOWS
     if(displayColor)
         namedWindow("Color threadID: " + threadID,WINDOW_AUTOSIZE);
@@ -184,64 +189,69 @@ void RSPCN::count() {
         if(displayDepth || saveVideo) 
             depthColorMap = getColorMap(depth);
         
-        // -- CONVERTING DEPTH IMAGE AND THRESHOLDING
-        frame = getFrame(depth, thresholdCentimeters);
+        // -- CONVERTING DEPTH IMAGE, THRESHOLDING, DENOISING AND FINDING CONTOURS
+        // Same segmentation as the Java counter, see segment.h
+        if(thresholdCentimeters != lutThreshold) {
+            rspcnDepthLut(lut.data(), thresholdCentimeters, scale);
+            lutThreshold = thresholdCentimeters;
+        }
 
-        // -- DENOISING
-        blur(frame, morphTrans, Size(blur_ksize,blur_ksize));
+        // Box blur of any size and area of the contour itself, as areaMin and blur_ksize were calibrated for
+        int blurSize = max(1, blur_ksize);
+        int found;
 
-        // --FINDING CONTOURS
-        findContours(morphTrans, contours, hierarchy, RETR_EXTERNAL, CHAIN_APPROX_NONE);
+        while(true) {
+            found = rspcnSegment((const uint16_t*)depth.data, (int)depth.step, frame.data, morphTrans.data, NULL, (int)frame.step,
+                                 ImageWidth, ImageHeight, lut.data(), blurSize, 0, ImageHeight, 0, ImageHeight,
+                                 areaMin, SEGMENT_BOX_BLUR | SEGMENT_CONTOUR_AREA, detections.data(), capacity);
 
-        // For every detected object
-        for(unsigned int idx = 0; idx < contours.size(); idx++) {
+            if(found <= capacity)
+                break;
 
-            // drawContours( color, contours, idx, Scalar(0,255,0), 2, 8, hierarchy, 0, Point(0,0) );
+            // Rare crowded frame: run again with room for every detection
+            capacity = found * 2;
+            detections.resize(capacity * SEGMENT_RECORD_SIZE);
+        }
 
-            // -- AREA
-            // Calculating area
-            double areaCurrentObject = contourArea(contours[idx]);
+        // For every detected object, already larger than areaMin
+        for(int idx = 0; idx < found; idx++) {
 
-            // If calculated area is big enough begin tracking the object
-            if(areaCurrentObject > areaMin) {
-                // --TRACKING
-                // Getting mass center
-                // Moments M = moments(contours[idx]);
-                // Point2f objCenter = Point2f( M.m10/M.m00 , M.m01/M.m00 );
+            // --TRACKING
+            int32_t box[4];
+            memcpy(box, detections.data() + idx * SEGMENT_RECORD_SIZE, sizeof(box));
 
-                // Get bounding rectangle
-                Rect br = boundingRect(contours[idx]);
-                Point2f objCenter = Point2f((int)(br.x + br.width/2) ,(int)(br.y + br.height/2) );
+            // Get bounding rectangle
+            Rect br(box[0], box[1], box[2], box[3]);
+            Point2f objCenter = Point2f((int)(br.x + br.width/2) ,(int)(br.y + br.height/2) );
 
-                // Draw mass center and bounding rectangle
-                rectangle( color, br.tl(), br.br(), GREEN, 2, 8, 0 );
-                circle( color, objCenter, 5, RED, 2, 8, 0 );
+            // Draw mass center and bounding rectangle
+            rectangle( color, br.tl(), br.br(), GREEN, 2, 8, 0 );
+            circle( color, objCenter, 5, RED, 2, 8, 0 );
 
-                // --PASSENGERS DB UPDATE
-                bool newPassenger = true;
+            // --PASSENGERS DB UPDATE
+            bool newPassenger = true;
 
-                for(unsigned int i = 0; i < passengers.size(); i++) {
+            for(unsigned int i = 0; i < passengers.size(); i++) {
 
-                    // If the passenger is near a known passenger assume they are the same one
-                    if( abs(objCenter.x - passengers[i].getCurrentPoint().x) <= xNear &&
-                        abs(objCenter.y - passengers[i].getCurrentPoint().y) <= yNear ) {
+                // If the passenger is near a known passenger assume they are the same one
+                if( abs(objCenter.x - passengers[i].getCurrentPoint().x) <= xNear &&
+                    abs(objCenter.y - passengers[i].getCurrentPoint().y) <= yNear ) {
 
-                        // Update coordinates
-                        newPassenger = false;
-                        passengers[i].updateCoords(objCenter);
-                        // If the object is being tracked it means its active we don't want it to disappear
-                        passengers[i].resetAge();
+                    // Update coordinates
+                    newPassenger = false;
+                    passengers[i].updateCoords(objCenter);
+                    // If the object is being tracked it means its active we don't want it to disappear
+                    passengers[i].resetAge();
 
-                        break;
-                    }
+                    break;
                 }
+            }
 
-                // If wasn't near any known object is a new passenger
-                if(newPassenger) {
-                    Passenger p(pid, objCenter);
-                    passengers.push_back(p);
-                    pid++;
-                }
+            // If wasn't near any known object is a new passenger
+            if(newPassenger) {
+                Passenger p(pid, objCenter);
+                passengers.push_back(p);
+                pid++;
             }
         }
 
@@ -442,27 +452,5 @@ Mat RSPCN::getColorMap(Mat depthImage) {
     return depthColorMap;
 }
 
-Mat RSPCN::getFrame(Mat depthImage, int thresholdCentimeters) {
-    Mat frame;
-
-    // If depthImage(x,y) == NODATA, set it to 65535
-    depthImage.setTo(65535, depthImage == NODATA);
-
-    // Threshold only accepts CV_8U or CV_32F types
-    depthImage.convertTo(depthImage, CV_32FC1);
-
-    // Converting threshold from cm to pixel value
-    int threshPixel = thresholdCentimeters / (100*scale);
-    threshold(depthImage, depthImage, threshPixel, 65535, THRESH_BINARY);
-
-    // Convert to CV_8U (lossy conversion)
-    depthImage.convertTo(depthImage, CV_8UC1, 255.0 / 65535);
-
-    // Invert b&w: white = foreground, black= background.
-    frame = cv::Scalar::all(255) - depthImage;
-
-    return frame;
-}
-
 #endif
 
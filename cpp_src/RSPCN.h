@@ -25,6 +25,7 @@
 #include <opencv2/opencv.hpp>
 
 #include "passenger.cpp"
+#include "segment.h"
 
 using namespace std;
 using namespace cv;
@@ -102,7 +103,6 @@ class RSPCN {
     void resetCounters(){cnt_in = 0; cnt_out = 0; return;};
 
     Mat getColorMap(Mat depthImage);
-    Mat getFrame(Mat depthImage, int thresholdCentimeters);
     
     void toggleCalibration();
     void toggleDisplayColor();
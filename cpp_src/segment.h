@@ -0,0 +1,159 @@
+/**
+    segment
+    Purpose: Segmentation stage of the Java counter (java_src/RSPCN.java) on the OpenCV C++ API, called through
+             JavaCPP by java_src/NativeSegmenter.java and used by the C++ counters (cpp_src/RSPCN.cpp and
+             java_wrap/src/RSPCN.cpp). Same steps and parameters as the Java path: threshold through a lookup
+             table, Gaussian blur, external contours, area filter on the approximated polygon. Tracking and
+             counting stay with the callers. The C++ counters keep their own blur and area through flags.
+
+*/
+
+#ifndef SEGMENT_H
+#define SEGMENT_H
+
+#include <math.h>
+#include <stdint.h>
+#include <string.h>
+
+#include <opencv2/opencv.hpp>
+
+using namespace std;
+using namespace cv;
+
+// Detection record written to the output buffer
+#define SEGMENT_RECORD_SIZE 32  // x:int y:int width:int height:int area:double centerX:float centerY:float
+
+// Segmentation flags, 0 is the Java path
+#define SEGMENT_BOX_BLUR     1  // blur() box filter of any size instead of the Gaussian blur
+#define SEGMENT_CONTOUR_AREA 2  // area of the contour instead of the approximated polygon
+#define SEGMENT_MASS_CENTER  4  // center from the contour moments instead of the bounding rectangle
+
+/*
+    lut: 65536 entries, filled like the lookup table of the Java counter: depth values farther than
+         thresholdCentimeters and NODATA (0) map to 0, the nearest ones to 255
+    scale: depth units of the camera [meters]
+*/
+inline void rspcnDepthLut(uint8_t *lut, int thresholdCentimeters, float scale)
+{
+    const int threshPixel = (int)(thresholdCentimeters / (100 * scale));
+
+    for(int p = 0; p < 65536; p++)
+    {
+        int v = (p > threshPixel || p == 0) ? 65535 : p;
+
+        lut[p] = (uint8_t)(255 - (int)(v * 255.0 / 65535));
+    }
+
+    return;
+}
+
+/*
+    depth, depthStep: 16 bit depth frame
+    frame, mask, track, step: 8 bit images of the same size: thresholded frame, blurred mask, track view (may be NULL)
+    lut: 65536 entries mapping depth values to 8 bit values
+    blurSize: odd unless flags has SEGMENT_BOX_BLUR
+    [haloTop, haloBottom): rows thresholded and blurred, [roiTop, roiBottom): rows searched for contours
+    flags: SEGMENT_* flags
+    out: capacity records
+
+    Returns the number of detections found, only the first capacity ones are written.
+*/
+inline int rspcnSegment(const uint16_t *depth, int depthStep,
+                        uint8_t *frame, uint8_t *mask, uint8_t *track, int step,
+                        int width, int height, const uint8_t *lut, int blurSize,
+                        int haloTop, int haloBottom, int roiTop, int roiBottom,
+                        double areaThreshold, int flags, char *out, int capacity)
+{
+    // Threshold and conversion to 8bit values
+    for(int y = haloTop; y < haloBottom; y++)
+    {
+        const uint16_t *in = (const uint16_t*)((const char*)depth + y * depthStep);
+        uint8_t *row = frame + y * step;
+
+        for(int x = 0; x < width; x++)
+            row[x] = lut[in[x]];
+    }
+
+    // Blurring the image. Headers of their own over the halo rows: the border is replicated at the halo edges
+    // like cvSmooth does on an image ROI.
+    Mat haloFrame(haloBottom - haloTop, width, CV_8UC1, frame + haloTop * step, step);
+    Mat haloMask(haloBottom - haloTop, width, CV_8UC1, mask + haloTop * step, step);
+
+    if(flags & SEGMENT_BOX_BLUR)
+        blur(haloFrame, haloMask, Size(blurSize, blurSize));
+    else
+        GaussianBlur(haloFrame, haloMask, Size(blurSize, blurSize), 0, 0, BORDER_REPLICATE);
+
+    Mat roiMask(roiBottom - roiTop, width, CV_8UC1, mask + roiTop * step, step);
+
+    if(track != NULL)
+    {
+        Mat trackView(height, width, CV_8UC1, track, step);
+
+        if(roiBottom - roiTop < height)
+            trackView.setTo(Scalar(0));
+
+        roiMask.copyTo(trackView.rowRange(roiTop, roiBottom));
+    }
+
+    // cvFindContours of the Java path clears the border of the image it searches, findContours pads it instead:
+    // cleared here so that blobs touching the band or frame edges get the same contours
+    roiMask.row(0).setTo(Scalar(0));
+    roiMask.row(roiMask.rows - 1).setTo(Scalar(0));
+    roiMask.col(0).setTo(Scalar(0));
+    roiMask.col(width - 1).setTo(Scalar(0));
+
+    // --FINDING CONTOURS
+    // The offset brings contour points back to full frame coordinates
+    vector<vector<Point> > contours;
+    findContours(roiMask, contours, RETR_EXTERNAL, CHAIN_APPROX_NONE, Point(0, roiTop));
+
+    int found = 0;
+    vector<Point> polygon;
+
+    for(unsigned int idx = 0; idx < contours.size(); idx++)
+    {
+        if(contours[idx].empty())
+            continue;
+
+        double areaCurrentObject;
+
+        if(flags & SEGMENT_CONTOUR_AREA)
+            areaCurrentObject = fabs(contourArea(contours[idx]));
+        else
+        {
+            // Area of the polygon approximating the contour
+            approxPolyDP(contours[idx], polygon, arcLength(contours[idx], true) * 0.02, true);
+            areaCurrentObject = fabs(contourArea(polygon));
+        }
+
+        if(areaCurrentObject > areaThreshold)
+        {
+            if(found < capacity)
+            {
+                Rect br = boundingRect(contours[idx]);
+                float center[2] = {(float)(br.x + br.width/2), (float)(br.y + br.height/2)};
+
+                if(flags & SEGMENT_MASS_CENTER)
+                {
+                    Moments M = moments(contours[idx]);
+                    center[0] = (float)(M.m10/M.m00);
+                    center[1] = (float)(M.m01/M.m00);
+                }
+
+                int32_t box[4] = {br.x, br.y, br.width, br.height};
+                char *record = out + found * SEGMENT_RECORD_SIZE;
+
+                memcpy(record, box, sizeof(box));
+                memcpy(record + sizeof(box), &areaCurrentObject, sizeof(double));
+                memcpy(record + sizeof(box) + sizeof(double), center, sizeof(center));
+            }
+
+            found++;
+        }
+    }
+
+    return found;
+}
+
+#endif
@@ -0,0 +1,3 @@
+javac -cp jar_files/ffmpeg-platform.jar:jar_files/javacpp.jar:jar_files/librealsense-platform.jar:jar_files/javacv.jar:jar_files/opencv-platform.jar:. PipelineBenchmark.java
+
+java -cp jar_files/ffmpeg-platform.jar:jar_files/javacpp.jar:jar_files/librealsense-platform.jar:jar_files/javacv.jar:jar_files/opencv-platform.jar:. PipelineBenchmark "$@"
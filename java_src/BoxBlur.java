@@ -0,0 +1,147 @@
+import java.util.Arrays;
+
+// Box blur with running sums: every output pixel costs two additions and two subtractions per direction
+// whatever the kernel size, where cvSmooth(CV_GAUSSIAN) grows with blurSize. The frame is blurred along the rows
+// into a ring of 2 * radius + 2 rows of horizontal sums, then down the columns with one running sum per column.
+// Borders are replicated like cvSmooth does.
+// thresholdAndBlur() also thresholds every depth row just before its horizontal sums, so the frame is only
+// traversed once.
+public class BoxBlur {
+
+    // Variables
+    private final int imageWidth;
+
+    // Horizontal sums of the last ringRows rows, row y in slot y % ringRows
+    private int[] ring;
+    private int ringRows = 0;
+    private int radius = -1;
+
+    private int[] columnSums;
+
+    // Next row to be summed, rows below it are in the ring
+    private int nextRow;
+
+    // Constructor
+    BoxBlur(int width) {
+        imageWidth = width;
+        columnSums = new int[width];
+    }
+
+    // Selectors
+    public int getWidth() {return imageWidth;}
+
+    // Methods
+
+    // Blurs rows [first, last) of the packed 8 bit frame into the same rows of mask with a size x size kernel.
+    // Frame rows [top, bottom) are read, the border is replicated beyond them.
+    public void blur(byte[] frame, int size, int top, int bottom, int first, int last, byte[] mask) {
+        run(null, null, frame, size, top, bottom, first, last, mask);
+        return;
+    }
+
+    // Same as blur(), with frame rows [top, bottom) thresholded from the packed depth frame through lut as they
+    // are needed
+    public void thresholdAndBlur(short[] depth, byte[] lut, byte[] frame, int size, int top, int bottom,
+                                 int first, int last, byte[] mask) {
+        run(depth, lut, frame, size, top, bottom, first, last, mask);
+        return;
+    }
+
+    private void run(short[] depth, byte[] lut, byte[] frame, int size, int top, int bottom,
+                     int first, int last, byte[] mask) {
+
+        final int cols = imageWidth;
+        final int r = size / 2;
+        final int area = size * size;
+
+        if(r != radius) {
+            radius = r;
+            ringRows = 2 * r + 2;
+            ring = new int[ringRows * cols];
+        }
+
+        nextRow = top;
+
+        // Column sums of the kernel centered on row first
+        Arrays.fill(columnSums, 0);
+
+        for(int y = first - r; y <= first + r; y++)
+            addRow(depth, lut, frame, clamp(y, top, bottom), 1);
+
+        final int[] sums = columnSums;
+        final int half = area / 2;
+
+        for(int y = first; y < last; y++) {
+
+            final int offset = y * cols;
+
+            for(int x = 0; x < cols; x++)
+                mask[offset + x] = (byte)((sums[x] + half) / area);
+
+            if(y + 1 < last) {
+                addRow(depth, lut, frame, clamp(y + r + 1, top, bottom), 1);
+                addRow(depth, lut, frame, clamp(y - r, top, bottom), -1);
+            }
+        }
+
+        return;
+    }
+
+    // Adds (sign 1) or removes (sign -1) the horizontal sums of frame row y from the column sums
+    private void addRow(short[] depth, byte[] lut, byte[] frame, int y, int sign) {
+
+        while(nextRow <= y) {
+            sumRow(depth, lut, frame, nextRow);
+            nextRow++;
+        }
+
+        final int[] sums = columnSums;
+        final int[] row = ring;
+        final int offset = (y % ringRows) * imageWidth;
+
+        if(sign > 0) {
+            for(int x = 0; x < imageWidth; x++)
+                sums[x] += row[offset + x];
+        }
+        else {
+            for(int x = 0; x < imageWidth; x++)
+                sums[x] -= row[offset + x];
+        }
+
+        return;
+    }
+
+    // Horizontal sums of frame row y into its ring slot, after thresholding the row if a lookup table is given
+    private void sumRow(short[] depth, byte[] lut, byte[] frame, int y) {
+
+        final int cols = imageWidth;
+        final int in = y * cols;
+        final int r = radius;
+
+        if(lut != null) {
+            for(int i = in; i < in + cols; i++)
+                frame[i] = lut[depth[i] & 0xFFFF];
+        }
+
+        final int[] out = ring;
+        final int offset = (y % ringRows) * cols;
+        final int lastCol = cols - 1;
+
+        // Window centered on column 0, the first pixel replicated on the left
+        int sum = (r + 1) * (frame[in] & 0xFF);
+
+        for(int x = 1; x <= r; x++)
+            sum += frame[in + Math.min(x, lastCol)] & 0xFF;
+
+        for(int x = 0; x < cols; x++) {
+            out[offset + x] = sum;
+            sum += (frame[in + Math.min(x + r + 1, lastCol)] & 0xFF) - (frame[in + Math.max(x - r, 0)] & 0xFF);
+        }
+
+        return;
+    }
+
+    private static int clamp(int y, int top, int bottom) {
+        return y < top ? top : (y >= bottom ? bottom - 1 : y);
+    }
+}
@@ -0,0 +1,9 @@
+# Builds the native segmentation library (linux-<arch>/libjniNativeSegmenter.so) with JavaCPP.
+# Needs a C++ compiler and OpenCV 3.2 headers and libraries, e.g.:
+#   sh CompileNative.sh -Dplatform.includepath=/usr/local/include -Dplatform.linkpath=/usr/local/lib
+# Cross compiling for an ARM board: add -properties linux-armhf
+javac -cp jar_files/javacpp.jar:jar_files/javacv.jar:jar_files/opencv.jar:. NativeSegmenter.java
+
+# JavaCPP compiles in the output directory: segment.h is found through an absolute path
+java -jar jar_files/javacpp.jar -cp jar_files/javacpp.jar:jar_files/javacv.jar:jar_files/opencv.jar:. NativeSegmenter \
+     -Xcompiler -I"$(cd ../cpp_src && pwd)" "$@"
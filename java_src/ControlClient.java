@@ -0,0 +1,55 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+// Minimal client of the ControlServer line protocol.
+// Sends the command given on the command line, or every line read from stdin, and prints the responses.
+//
+// Usage: java ControlClient <port> [command ...]
+public class ControlClient {
+
+    public static void main(String[] args) throws IOException {
+
+        if(args.length < 1) {
+            System.out.println("Usage: java ControlClient <port> [command ...]");
+            return;
+        }
+
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(args[0]));
+
+        OutputStream out = socket.getOutputStream();
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+
+        if(args.length > 1) {
+            StringBuilder command = new StringBuilder();
+            for(int i = 1; i < args.length; i++)
+                command.append(i > 1 ? " " : "").append(args[i]);
+
+            System.out.println(send(out, in, command.toString()));
+        }
+        else {
+            BufferedReader console = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+            String line;
+
+            while((line = console.readLine()) != null && !line.trim().equals("quit")) {
+                if(!line.trim().isEmpty())
+                    System.out.println(send(out, in, line));
+            }
+        }
+
+        socket.close();
+
+        return;
+    }
+
+    private static String send(OutputStream out, BufferedReader in, String command) throws IOException {
+        out.write((command + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+
+        return in.readLine();
+    }
+}
@@ -0,0 +1,434 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+
+// Remote control of the counters over a line protocol on a local TCP port.
+// One selector thread serves every client: commands only read counters and publish new settings, which never
+// waits for the counting threads, so clients add no latency to them.
+//
+// Requests are single lines "<command> <serial|*> [arguments]", answered by a single line starting with
+// OK or ERR. * applies the command to every device.
+//   list                            OK <serial> ...
+//   count <serial|*>                OK <serial> in=<n> out=<n> ...
+//   counts <serial|*> <seconds>     OK <serial> in=<n> out=<n> ...  (crossings of the last <seconds>)
+//   reset <serial|*>                OK <serial> in=<n> out=<n> ...  (counts before the reset)
+//   preset <serial|*> <value>       OK
+//   get <serial|*> <param>          OK <serial> <param>=<value> ...
+//   set <serial|*> <param> <value>  OK
+//   stats <serial>                  OK fps=<f> active=<n> ...
+//   shutdown                        OK, stops the counters
+//   quit                            closes the connection
+// Parameters: threshold, age, area, area1, area2, blur, xnear, ynear, roi, native (0/1), labeling (0/1),
+//             boxblur (0/1), overlay (frames), scale (1, 2, 4), predict (0/1), stride (frames), matcher (set only)
+public class ControlServer implements Runnable {
+
+    private static final int MAX_LINE = 1024;
+
+    // Responses waiting for a client that does not read them [bytes]: beyond it the client is dropped
+    private static final int MAX_PENDING = 64 * 1024;
+
+    // Variables
+    private final Vector<RSPCN> counters;
+
+    private Selector selector;
+    private ServerSocketChannel server;
+    private Thread thread;
+    private volatile boolean running = false;
+
+    private final CountDownLatch shutdown = new CountDownLatch(1);
+
+    private static class Client {
+        final ByteBuffer in = ByteBuffer.allocate(MAX_LINE);
+        ByteBuffer out = ByteBuffer.allocate(256);
+        boolean closing = false;
+    }
+
+    // Constructor
+    ControlServer(Vector<RSPCN> deviceCounters) {
+        counters = deviceCounters;
+    }
+
+    // Methods
+
+    // Listens on the loopback interface only: the protocol has no authentication
+    public void start(int port) throws IOException {
+
+        selector = Selector.open();
+
+        server = ServerSocketChannel.open();
+        server.configureBlocking(false);
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        server.register(selector, SelectionKey.OP_ACCEPT);
+
+        running = true;
+        thread = new Thread(this, "Control server " + port);
+        thread.setDaemon(true);
+        thread.start();
+
+        return;
+    }
+
+    public void stop() throws Exception {
+        running = false;
+
+        if(selector != null)
+            selector.wakeup();
+
+        if(thread != null)
+            thread.join();
+
+        return;
+    }
+
+    // Blocks until a client sends shutdown
+    public void awaitShutdown() throws InterruptedException {
+        shutdown.await();
+        return;
+    }
+
+    public void run() {
+
+        try {
+            while(running) {
+                selector.select();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+                while(keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    try {
+                        if(key.isAcceptable())
+                            accept();
+                        else {
+                            if(key.isReadable())
+                                read(key);
+
+                            if(key.isValid() && key.isWritable())
+                                write(key);
+                        }
+                    } catch (IOException e) {
+                        // The client went away
+                        key.cancel();
+                        key.channel().close();
+                    }
+                }
+            }
+
+            for(SelectionKey key : selector.keys())
+                key.channel().close();
+
+            selector.close();
+        } catch (IOException e) {
+            System.out.println( e );
+        }
+
+        return;
+    }
+
+    private void accept() throws IOException {
+
+        SocketChannel channel = server.accept();
+
+        if(channel == null)
+            return;
+
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, new Client());
+
+        return;
+    }
+
+    private void read(SelectionKey key) throws IOException {
+
+        SocketChannel channel = (SocketChannel)key.channel();
+        Client client = (Client)key.attachment();
+
+        if(channel.read(client.in) < 0) {
+            key.cancel();
+            channel.close();
+            return;
+        }
+
+        // Handle every complete line, keep a partial one for the next read
+        client.in.flip();
+
+        int start = 0;
+        for(int i = 0; i < client.in.limit(); i++) {
+            if(client.in.get(i) == '\n') {
+                String line = new String(client.in.array(), start, i - start, StandardCharsets.UTF_8).trim();
+                start = i + 1;
+
+                if(!line.isEmpty())
+                    reply(client, line);
+            }
+        }
+
+        client.in.position(start);
+        client.in.compact();
+
+        if(!client.in.hasRemaining()) {
+            respond(client, "ERR line too long");
+            client.closing = true;
+        }
+
+        // Pending responses are written first, closing clients are closed once everything is written
+        if(client.out.position() > 0 || client.closing)
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+
+        return;
+    }
+
+    private void write(SelectionKey key) throws IOException {
+
+        SocketChannel channel = (SocketChannel)key.channel();
+        Client client = (Client)key.attachment();
+
+        client.out.flip();
+        channel.write(client.out);
+        client.out.compact();
+
+        if(client.out.position() == 0) {
+            if(client.closing) {
+                key.cancel();
+                channel.close();
+                return;
+            }
+
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        return;
+    }
+
+    private void reply(Client client, String line) {
+
+        if(client.closing)
+            return;
+
+        String response;
+
+        try {
+            response = execute(client, line.split("\\s+"));
+        } catch (NumberFormatException e) {
+            response = "ERR bad number";
+        } catch (IllegalArgumentException e) {
+            response = "ERR " + e.getMessage();
+        }
+
+        if(response != null)
+            respond(client, response);
+
+        return;
+    }
+
+    private void respond(Client client, String response) {
+
+        byte[] bytes = (response + "\n").getBytes(StandardCharsets.UTF_8);
+
+        // Pending responses are discarded and the connection closed by the next write()
+        if(client.out.position() + bytes.length > MAX_PENDING) {
+            client.out.clear();
+            client.closing = true;
+            return;
+        }
+
+        if(client.out.remaining() < bytes.length) {
+            ByteBuffer out = ByteBuffer.allocate(Math.min(MAX_PENDING, Math.max(client.out.capacity() * 2, client.out.position() + bytes.length)));
+            client.out.flip();
+            out.put(client.out);
+            client.out = out;
+        }
+
+        client.out.put(bytes);
+
+        return;
+    }
+
+    // Runs one command and returns the response line, null for none
+    String execute(Client client, String[] args) {
+
+        String command = args[0];
+
+        if(command.equals("quit")) {
+            client.closing = true;
+            return null;
+        }
+
+        if(command.equals("shutdown")) {
+            for(RSPCN counter : counters)
+                counter.stop();
+
+            shutdown.countDown();
+            return "OK";
+        }
+
+        StringBuilder sb = new StringBuilder("OK");
+
+        if(command.equals("list")) {
+            for(RSPCN counter : counters)
+                sb.append(' ').append(counter.getDeviceSerial());
+
+            return sb.toString();
+        }
+
+        if(!command.matches("count|counts|reset|preset|get|set|stats"))
+            throw new IllegalArgumentException("unknown command " + command);
+
+        Vector<RSPCN> targets = select(argument(args, 1));
+
+        if(command.equals("count")) {
+            for(RSPCN counter : targets)
+                appendCounts(sb, counter, counter.getCounters());
+        }
+        else if(command.equals("counts")) {
+            long now = System.currentTimeMillis();
+            long seconds = Long.parseLong(argument(args, 2));
+
+            for(RSPCN counter : targets)
+                appendCounts(sb, counter, counter.getCounts(now - seconds * 1000, now));
+        }
+        else if(command.equals("reset")) {
+            for(RSPCN counter : targets)
+                appendCounts(sb, counter, counter.readAndResetCounters());
+        }
+        else if(command.equals("preset")) {
+            int value = Integer.parseInt(argument(args, 2));
+
+            for(RSPCN counter : targets)
+                counter.setCameraPresets(value);
+        }
+        else if(command.equals("get")) {
+            String param = argument(args, 2);
+
+            for(RSPCN counter : targets)
+                sb.append(' ').append(counter.getDeviceSerial()).append(' ').append(param).append('=').append(get(counter, param));
+        }
+        else if(command.equals("set")) {
+            String param = argument(args, 2);
+            int value = Integer.parseInt(argument(args, 3));
+
+            for(RSPCN counter : targets)
+                set(counter, param, value);
+        }
+        else if(command.equals("stats")) {
+            for(RSPCN counter : targets) {
+                sb.append(' ').append(counter.getDeviceSerial())
+                  .append(String.format(" fps=%.1f", counter.getAchievedFps()))
+                  .append(" active=").append(counter.getActivePassengers())
+                  .append(" idle=").append(counter.getMotionGate().getIdleFrames());
+            }
+        }
+
+        return sb.toString();
+    }
+
+    private Vector<RSPCN> select(String serial) {
+
+        Vector<RSPCN> targets = new Vector<RSPCN>(1,1);
+
+        for(RSPCN counter : counters) {
+            if(serial.equals("*") || serial.equals(counter.getDeviceSerial()))
+                targets.add(counter);
+        }
+
+        if(targets.isEmpty())
+            throw new IllegalArgumentException("unknown device " + serial);
+
+        return targets;
+    }
+
+    private static int get(RSPCN counter, String param) {
+
+        if(param.equals("threshold")) return counter.getThresholdCentimeters();
+        if(param.equals("age"))       return counter.getMaxPassengerAge();
+        if(param.equals("area"))      return counter.getAreaThreshold();
+        if(param.equals("area1"))     return counter.getMax1PassArea();
+        if(param.equals("area2"))     return counter.getMax2PassArea();
+        if(param.equals("blur"))      return counter.getBlurSize();
+        if(param.equals("xnear"))     return counter.getXNear();
+        if(param.equals("ynear"))     return counter.getYNear();
+        if(param.equals("roi"))       return counter.getRoiHalfHeight();
+        if(param.equals("native"))    return counter.getNativeSegmentation() ? 1 : 0;
+        if(param.equals("labeling"))  return counter.getBlobExtraction() ? 1 : 0;
+        if(param.equals("boxblur"))   return counter.getBoxBlur() ? 1 : 0;
+        if(param.equals("overlay"))   return counter.getOverlayDecimation();
+        if(param.equals("scale"))     return counter.getProcessingScale();
+        if(param.equals("predict"))   return counter.getMotionPrediction() ? 1 : 0;
+        if(param.equals("stride"))    return counter.getMaxFrameStride();
+
+        throw new IllegalArgumentException("unknown parameter " + param);
+    }
+
+    private static void set(RSPCN counter, String param, int value) {
+
+        if(param.equals("blur") && (value <= 0 || value % 2 != 1))
+            throw new IllegalArgumentException("blur must be odd and positive");
+
+        if(param.equals("matcher") && (value < 0 || value > 2))
+            throw new IllegalArgumentException("matcher must be 0, 1 or 2");
+
+        if(param.equals("native") && value > 0 && !NativeSegmenter.isAvailable())
+            throw new IllegalArgumentException("native segmentation library not available");
+
+        if(param.equals("scale") && value != 1 && value != 2 && value != 4)
+            throw new IllegalArgumentException("scale must be 1, 2 or 4");
+
+        if(param.equals("roi") && value > counter.getImageHeight()/2)
+            throw new IllegalArgumentException("roi must not exceed half the image height (" + counter.getImageHeight()/2 + ")");
+
+        if(param.equals("overlay") && value == 0)
+            throw new IllegalArgumentException("overlay must be positive");
+
+        if(param.equals("stride") && value == 0)
+            throw new IllegalArgumentException("stride must be positive");
+
+        if(value < 0)
+            throw new IllegalArgumentException(param + " must not be negative");
+
+        if(param.equals("threshold"))    counter.setThresholdCentimeters(value);
+        else if(param.equals("age"))     counter.setMaxPassengerAge(value);
+        else if(param.equals("area"))    counter.setAreaThreshold(value);
+        else if(param.equals("area1"))   counter.setMax1PassArea(value);
+        else if(param.equals("area2"))   counter.setMax2PassArea(value);
+        else if(param.equals("blur"))    counter.setBlurSize(value);
+        else if(param.equals("xnear"))   counter.setXNear(value);
+        else if(param.equals("ynear"))   counter.setYNear(value);
+        else if(param.equals("roi"))     counter.setRoiHalfHeight(value);
+        else if(param.equals("native"))  counter.setNativeSegmentation(value != 0);
+        else if(param.equals("labeling")) counter.setBlobExtraction(value != 0);
+        else if(param.equals("boxblur")) counter.setBoxBlur(value != 0);
+        else if(param.equals("overlay")) counter.setOverlayDecimation(value);
+        else if(param.equals("scale"))   counter.setProcessingScale(value);
+        else if(param.equals("predict")) counter.setMotionPrediction(value != 0);
+        else if(param.equals("stride"))  counter.setMaxFrameStride(value);
+        else if(param.equals("matcher")) counter.setMatcherMode(value);
+        else
+            throw new IllegalArgumentException("unknown parameter " + param);
+
+        return;
+    }
+
+    private static void appendCounts(StringBuilder sb, RSPCN counter, int[] counts) {
+        sb.append(' ').append(counter.getDeviceSerial()).append(" in=").append(counts[0]).append(" out=").append(counts[1]);
+        return;
+    }
+
+    private static String argument(String[] args, int i) {
+
+        if(i >= args.length)
+            throw new IllegalArgumentException("missing argument");
+
+        return args[i];
+    }
+}
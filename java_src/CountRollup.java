@@ -0,0 +1,144 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// In/out counts of one device pre-aggregated in time buckets.
+// Every crossing is added to three rings of buckets: 1 s buckets for the last hour, 1 min buckets for the last day
+// and 15 min buckets for the last week. Queries read the finest ring that still covers the requested range and
+// sum its buckets, optionally downsampled to a coarser resolution: the cost depends on the number of buckets,
+// never on the number of crossings.
+//
+// Single writer (the tracking stage), any number of readers.
+public class CountRollup {
+
+    public static final long SECOND = 1000;
+    public static final long MINUTE = 60 * SECOND;
+    public static final long QUARTER = 15 * MINUTE;
+
+    private static final long IN  = 1L;
+    private static final long OUT = 1L << 32;
+
+    // Variables
+    private final Level[] levels = {
+        new Level(SECOND, 3600),
+        new Level(MINUTE, 1440),
+        new Level(QUARTER, 672)
+    };
+
+    // A ring of buckets. Slot i holds bucket ids[i] (time / resolution), counts packed as in CrossingCounter.
+    private static class Level {
+        final long resolution;
+        final int size;
+        final AtomicLongArray ids;
+        final AtomicLongArray counts;
+
+        Level(long bucketMillis, int buckets) {
+            resolution = bucketMillis;
+            size = buckets;
+            ids = new AtomicLongArray(size);
+            counts = new AtomicLongArray(size);
+
+            for(int i = 0; i < size; i++)
+                ids.set(i, -1);
+        }
+
+        void add(long time, long delta) {
+            long id = time / resolution;
+            int slot = (int)(id % size);
+
+            if(ids.get(slot) != id) {
+                // Reuse the slot of a bucket that fell out of the ring. The count is cleared before the id
+                // is published, a reader seeing the new id can't see the old count.
+                counts.set(slot, 0);
+                ids.set(slot, id);
+            }
+
+            counts.addAndGet(slot, delta);
+            return;
+        }
+
+        // Packed counts of bucket id, 0 if the bucket is not (or no longer) in the ring
+        long get(long id) {
+            int slot = (int)(id % size);
+
+            if(ids.get(slot) != id)
+                return 0;
+
+            long value = counts.get(slot);
+
+            // The writer may have recycled the slot meanwhile
+            return ids.get(slot) == id ? value : 0;
+        }
+
+        // Oldest time still covered by the ring
+        long horizon(long now) {
+            return (now / resolution - size + 1) * resolution;
+        }
+    }
+
+    // Methods
+    public void countIn(long time) {
+        for(Level level : levels)
+            level.add(time, IN);
+
+        return;
+    }
+
+    public void countOut(long time) {
+        for(Level level : levels)
+            level.add(time, OUT);
+
+        return;
+    }
+
+    // Counts of the crossings with from <= time < to. Returns {count in, count out}.
+    // from is rounded down and to rounded up to the buckets of the ring used: the finest ring still holding from.
+    public int[] total(long from, long to) {
+        int[] total = new int[2];
+
+        for(int[] window : series(from, to, to - from)) {
+            total[0] += window[0];
+            total[1] += window[1];
+        }
+
+        return total;
+    }
+
+    // Counts in windows of resolution milliseconds starting at from. Returns {count in, count out} for every window.
+    // resolution is rounded to a multiple of the bucket size of the ring used.
+    public int[][] series(long from, long to, long resolution) {
+
+        Level level = levelFor(from);
+
+        long step = Math.max(1, resolution / level.resolution);
+        long first = from / level.resolution;
+        long last = (to + level.resolution - 1) / level.resolution;
+
+        int windows = (int)Math.max(0, (last - first + step - 1) / step);
+        int[][] counts = new int[windows][2];
+
+        // Buckets older than the ring are gone, never walk more buckets than the ring holds
+        for(long id = Math.max(first, last - level.size); id < last; id++) {
+            long packed = level.get(id);
+
+            if(packed != 0) {
+                int window = (int)((id - first) / step);
+                counts[window][0] += CrossingCounter.in(packed);
+                counts[window][1] += CrossingCounter.out(packed);
+            }
+        }
+
+        return counts;
+    }
+
+    // Finest ring still covering from, the coarsest one if none does
+    private Level levelFor(long from) {
+
+        long now = System.currentTimeMillis();
+
+        for(Level level : levels) {
+            if(level.horizon(now) <= from)
+                return level;
+        }
+
+        return levels[levels.length - 1];
+    }
+}
@@ -0,0 +1,129 @@
+// Immutable snapshot of the counter tunables.
+// Setters publish a new snapshot, the frame loop picks it up at the next frame boundary.
+public final class CounterConfig {
+
+    public static final CounterConfig DEFAULT = new CounterConfig();
+
+    // Variables
+    private int thresholdCentimeters = 43;
+    private int blurSize = 3;
+    private int maxPassengerAge = 2;
+    private int areaThreshold = 10000;
+    private int max1PassArea = 60000;
+    private int max2PassArea = 90000;
+    private int xNear = 40;
+    private int yNear = 90;
+
+    // Half height of the processed band around the counting line [pixels] (0: whole frame)
+    private int roiHalfHeight = 0;
+
+    // Constructor
+    private CounterConfig() {
+    }
+
+    // Snapshots are never modified once published, with*() methods return a modified copy
+    private CounterConfig(CounterConfig other) {
+        thresholdCentimeters = other.thresholdCentimeters;
+        blurSize = other.blurSize;
+        maxPassengerAge = other.maxPassengerAge;
+        areaThreshold = other.areaThreshold;
+        max1PassArea = other.max1PassArea;
+        max2PassArea = other.max2PassArea;
+        xNear = other.xNear;
+        yNear = other.yNear;
+        roiHalfHeight = other.roiHalfHeight;
+    }
+
+    // Selectors
+    public int getThresholdCentimeters() {return thresholdCentimeters;}
+    public int getBlurSize() {return blurSize;}
+    public int getMaxPassengerAge() {return maxPassengerAge;}
+    public int getAreaThreshold() {return areaThreshold;}
+    public int getMax1PassArea() {return max1PassArea;}
+    public int getMax2PassArea() {return max2PassArea;}
+    public int getXNear() {return xNear;}
+    public int getYNear() {return yNear;}
+    public int getRoiHalfHeight() {return roiHalfHeight;}
+
+    // Passengers in a blob of the given area: one up to max1PassArea, two up to max2PassArea, three above
+    public int estimateOccupants(double objectArea) {
+
+        if(objectArea > max2PassArea)
+            return 3;
+        if(objectArea > max1PassArea)
+            return 2;
+
+        return 1;
+    }
+
+    // Methods
+
+    // Segmentation settings for an image factor times smaller: pixel sizes divided by factor, areas by factor^2.
+    // The blur size stays odd. Tracking settings are unchanged, detections are mapped back to full resolution.
+    public CounterConfig atScale(int factor) {
+
+        if(factor == 1)
+            return this;
+
+        CounterConfig config = new CounterConfig(this);
+        config.blurSize = Math.max(1, blurSize / factor) | 1;
+        config.areaThreshold = areaThreshold / (factor * factor);
+        config.max1PassArea = max1PassArea / (factor * factor);
+        config.max2PassArea = max2PassArea / (factor * factor);
+        config.roiHalfHeight = (roiHalfHeight + factor - 1) / factor;
+        return config;
+    }
+    public CounterConfig withThresholdCentimeters(int value) {
+        CounterConfig config = new CounterConfig(this);
+        config.thresholdCentimeters = value;
+        return config;
+    }
+
+    public CounterConfig withBlurSize(int value) {
+        CounterConfig config = new CounterConfig(this);
+        config.blurSize = value;
+        return config;
+    }
+
+    public CounterConfig withMaxPassengerAge(int value) {
+        CounterConfig config = new CounterConfig(this);
+        config.maxPassengerAge = value;
+        return config;
+    }
+
+    public CounterConfig withAreaThreshold(int value) {
+        CounterConfig config = new CounterConfig(this);
+        config.areaThreshold = value;
+        return config;
+    }
+
+    public CounterConfig withMax1PassArea(int value) {
+        CounterConfig config = new CounterConfig(this);
+        config.max1PassArea = value;
+        return config;
+    }
+
+    public CounterConfig withMax2PassArea(int value) {
+        CounterConfig config = new CounterConfig(this);
+        config.max2PassArea = value;
+        return config;
+    }
+
+    public CounterConfig withXNear(int value) {
+        CounterConfig config = new CounterConfig(this);
+        config.xNear = value;
+        return config;
+    }
+
+    public CounterConfig withYNear(int value) {
+        CounterConfig config = new CounterConfig(this);
+        config.yNear = value;
+        return config;
+    }
+
+    public CounterConfig withRoiHalfHeight(int value) {
+        CounterConfig config = new CounterConfig(this);
+        config.roiHalfHeight = value;
+        return config;
+    }
+}
@@ -0,0 +1,281 @@
+import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Runs many counters on a fixed number of processing workers.
+// Every device has its own lightweight capture thread feeding a small drop-oldest queue. A device with
+// pending frames is handed to the shared worker pool one frame at a time, ordered by priority and then by
+// how long it has been waiting, so a busy camera can't starve the others.
+public class CounterScheduler {
+
+    // How often capture threads check whether their counter is still running [milliseconds]
+    private static final long POLL_TIMEOUT = 100;
+
+    // Device priorities range from 0 to MAX_PRIORITY
+    public static final int MAX_PRIORITY = 10;
+
+    // Variables
+    private final int workers;
+    private final int queueSize;
+
+    private final Vector<DeviceTask> devices = new Vector<DeviceTask>(1,1);
+
+    private ThreadPoolExecutor executor;
+    private final AtomicLong sequence = new AtomicLong();
+
+    // Constructor
+    CounterScheduler(int workerCount, int deviceQueueSize) {
+        workers = workerCount;
+        queueSize = deviceQueueSize;
+    }
+
+    // Methods
+    public void add(RSPCN counter, int priority) {
+        devices.add(new DeviceTask(counter, priority));
+        return;
+    }
+
+    // Applied the next time the device is handed to the worker pool: the order of a task already waiting in
+    // the priority queue can't change
+    public void setPriority(RSPCN counter, int priority) {
+        DeviceTask device = find(counter);
+
+        if(priority < 0 || priority > MAX_PRIORITY)
+            System.out.println( "Error: assertion 0 <= priority <= " + MAX_PRIORITY + " failed.");
+        else if(device != null)
+            device.requestedPriority = priority;
+
+        return;
+    }
+
+    public void start() {
+
+        executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                                          new PriorityBlockingQueue<Runnable>(),
+                                          new ThreadFactory() {
+                                              private final AtomicInteger n = new AtomicInteger();
+                                              public Thread newThread(Runnable r) {
+                                                  return new Thread(r, "RSPCN worker " + n.getAndIncrement());
+                                              }
+                                          });
+
+        for(DeviceTask device : devices) {
+            device.captureThread = new Thread(device.capture, "RSPCN capture " + device.counter.getDeviceSerial());
+            device.captureThread.start();
+        }
+
+        return;
+    }
+
+    public void stop() {
+
+        for(DeviceTask device : devices)
+            device.counter.stop();
+
+        for(DeviceTask device : devices) {
+            try {
+                device.captureThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        executor.shutdown();
+
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for(DeviceTask device : devices)
+            device.close();
+
+        return;
+    }
+
+    public String getDeviceStats(RSPCN counter) {
+        DeviceTask device = find(counter);
+
+        if(device == null)
+            return "";
+
+        return "scheduler priority=" + device.requestedPriority
+               + " captured=" + device.captured.get()
+               + " processed=" + device.processed.get()
+               + " pending=" + device.pending.size()
+               + " dropped=" + device.pending.getDropped()
+               + "\n" + device.lagStats;
+    }
+
+    private DeviceTask find(RSPCN counter) {
+        for(DeviceTask device : devices) {
+            if(device.counter == counter)
+                return device;
+        }
+
+        return null;
+    }
+
+    private class DeviceTask implements Runnable, Comparable<DeviceTask> {
+
+        final RSPCN counter;
+        volatile int requestedPriority;
+
+        // Only written by schedule(), while the task is out of the queue
+        int priority;
+
+        final FrameBuffers[] frames;
+        final BlockingQueue<FrameBuffers> freeBuffers;
+        final StageQueue pending;
+
+        final AtomicBoolean scheduled = new AtomicBoolean(false);
+        long readyTime;
+        long readySequence;
+
+        final AtomicLong captured = new AtomicLong();
+        final AtomicLong processed = new AtomicLong();
+
+        // Time from capture to the end of processing of every frame
+        final LatencyStats lagStats = new LatencyStats("lag");
+
+        Thread captureThread;
+        volatile boolean opened = false;
+
+        DeviceTask(RSPCN deviceCounter, int devicePriority) {
+            counter = deviceCounter;
+            requestedPriority = devicePriority;
+            priority = devicePriority;
+
+            // Queued frames, one being captured and one being processed
+            int frameCount = queueSize + 2;
+
+            frames = new FrameBuffers[frameCount];
+            freeBuffers = new ArrayBlockingQueue<FrameBuffers>(frameCount);
+
+            for(int i = 0; i < frameCount; i++) {
+                frames[i] = new FrameBuffers(counter.getImageWidth(), counter.getImageHeight(), true);
+                freeBuffers.add(frames[i]);
+            }
+
+            pending = new StageQueue("pending", queueSize, StageQueue.DROP_OLDEST, freeBuffers);
+        }
+
+        final Runnable capture = new Runnable() {
+            public void run() {
+
+                try {
+                    counter.open();
+                    opened = true;
+
+                    while(!counter.isHalted()) {
+                        FrameBuffers frame = freeBuffers.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+
+                        if(frame == null)
+                            continue;
+
+                        if(!counter.captureFrame(frame)) {
+                            freeBuffers.offer(frame);
+                            break;
+                        }
+
+                        captured.incrementAndGet();
+                        pending.put(frame);
+
+                        schedule();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Exception e) {
+                    System.out.println( e );
+                }
+
+                return;
+            }
+        };
+
+        // Hands the device to the worker pool unless it is already queued or being processed
+        void schedule() {
+
+            if(!scheduled.compareAndSet(false, true))
+                return;
+
+            priority = requestedPriority;
+            readyTime = System.nanoTime();
+            readySequence = sequence.getAndIncrement();
+
+            try {
+                executor.execute(this);
+            } catch (java.util.concurrent.RejectedExecutionException e) {
+                scheduled.set(false);
+            }
+
+            return;
+        }
+
+        // Processes one pending frame, then yields the worker to the next device in line
+        public void run() {
+
+            try {
+                FrameBuffers frame = pending.poll(0);
+
+                if(frame != null) {
+                    // Frames dropped from the pending queue age the passengers like skipped ones
+                    frame.setFrameStep(frame.getFrameStep() + pending.takeDroppedSteps());
+
+                    counter.segmentFrame(frame);
+                    counter.trackPassengers(frame);
+                    counter.renderFrame(frame);
+
+                    lagStats.record(System.nanoTime() - frame.getCaptureTime());
+                    processed.incrementAndGet();
+
+                    freeBuffers.offer(frame);
+                }
+            } catch (Exception e) {
+                System.out.println( e );
+                counter.stop();
+            }
+
+            scheduled.set(false);
+
+            if(pending.size() > 0)
+                schedule();
+
+            return;
+        }
+
+        // Higher priority first, then the device that has been waiting the longest
+        public int compareTo(DeviceTask other) {
+
+            if(priority != other.priority)
+                return priority > other.priority ? -1 : 1;
+
+            if(readyTime != other.readyTime)
+                return readyTime < other.readyTime ? -1 : 1;
+
+            return Long.compare(readySequence, other.readySequence);
+        }
+
+        void close() {
+            try {
+                if(opened)
+                    counter.close();
+            } catch (Exception e) {
+                System.out.println( e );
+            }
+
+            for(FrameBuffers frame : frames)
+                frame.release();
+
+            return;
+        }
+    }
+}
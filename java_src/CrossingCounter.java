@@ -0,0 +1,39 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+// Passenger in/out totals.
+// Both totals live in a single AtomicLong (in: low 32 bits, out: high 32 bits) so that they can be read
+// and reset together atomically: an increment can never be lost or split across a reset.
+public class CrossingCounter {
+
+    private static final long IN  = 1L;
+    private static final long OUT = 1L << 32;
+
+    // Variables
+    private final AtomicLong counts = new AtomicLong();
+
+    // Selectors
+    public int getIn() {return in(counts.get());}
+    public int getOut() {return out(counts.get());}
+
+    // Returns both totals packed in a long, use in() and out() to unpack
+    public long get() {return counts.get();}
+
+    public static int in(long packed) {return (int)(packed & 0xFFFFFFFFL);}
+    public static int out(long packed) {return (int)(packed >>> 32);}
+
+    // Methods
+    public void countIn() {
+        counts.addAndGet(IN);
+        return;
+    }
+
+    public void countOut() {
+        counts.addAndGet(OUT);
+        return;
+    }
+
+    // Atomically returns the packed totals and resets them to zero
+    public long getAndReset() {
+        return counts.getAndSet(0);
+    }
+}
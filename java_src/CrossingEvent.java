@@ -0,0 +1,28 @@
+// A passenger crossing the counting line.
+// Instances are reused by the event log ring and by the reader, copy the fields to keep them.
+public class CrossingEvent {
+
+    public static final int IN = 1;
+    public static final int OUT = 2;
+
+    // Variables
+    String serial = "";
+    int sequence;
+    long timestamp;
+    int pid;
+    int direction;
+    int trackLength;
+
+    // Selectors
+    public String getSerial() {return serial;}
+    public int getSequence() {return sequence;}
+    public long getTimestamp() {return timestamp;}
+    public int getPid() {return pid;}
+    public int getDirection() {return direction;}
+    public int getTrackLength() {return trackLength;}
+
+    public String toString() {
+        return String.format("%tF %<tT.%<tL %s #%d pid=%d %s track=%d", timestamp, serial, sequence, pid,
+                             direction == IN ? "in" : "out", trackLength);
+    }
+}
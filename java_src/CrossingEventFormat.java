@@ -0,0 +1,111 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+// Crossing event log file.
+//
+// Header (HEADER_SIZE bytes, little endian):
+//   magic[8] version:int recordSize:int serial[32]
+// followed by fixed size event records:
+//   crc:int sequence:int timestamp:long [milliseconds since epoch] pid:int direction:byte reserved:byte trackLength:short
+//
+// The crc covers the rest of the record. The log ends at the first record with a wrong crc or an unexpected
+// sequence number: a record torn by a power loss, or the zeroed space the writer maps ahead of the log.
+public class CrossingEventFormat {
+
+    public static final byte[] MAGIC = {'R','S','P','C','N','E','V','T'};
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+    public static final int RECORD_SIZE = 24;
+
+    private static final int SERIAL_SIZE = 32;
+
+    // Methods
+    public static ByteBuffer writeHeader(String serial) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        header.put(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(RECORD_SIZE);
+
+        byte[] bytes = serial.getBytes(StandardCharsets.UTF_8);
+        header.put(bytes, 0, Math.min(bytes.length, SERIAL_SIZE));
+
+        header.clear();
+        return header;
+    }
+
+    // Returns the serial of the device that wrote the log
+    public static String readHeader(ByteBuffer header) {
+        header.order(ByteOrder.LITTLE_ENDIAN);
+
+        byte[] magic = new byte[MAGIC.length];
+        header.get(magic);
+
+        if(!java.util.Arrays.equals(magic, MAGIC))
+            throw new IllegalArgumentException("Not a crossing event log");
+
+        int version = header.getInt();
+        if(version != VERSION || header.getInt() != RECORD_SIZE)
+            throw new IllegalArgumentException("Unsupported crossing event log version " + version);
+
+        byte[] serial = new byte[SERIAL_SIZE];
+        header.get(serial);
+
+        int n = 0;
+        while(n < SERIAL_SIZE && serial[n] != 0)
+            n++;
+
+        return new String(serial, 0, n, StandardCharsets.UTF_8);
+    }
+
+    // Scratch record reused by writeRecord and readRecord, one per thread
+    public static ByteBuffer allocateRecord() {
+        return ByteBuffer.allocate(RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // Writes the event at the current position of the buffer
+    public static void writeRecord(ByteBuffer buffer, CrossingEvent event, ByteBuffer record, CRC32 crc) {
+
+        byte[] scratch = record.array();
+
+        record.putInt(4, event.sequence);
+        record.putLong(8, event.timestamp);
+        record.putInt(16, event.pid);
+        record.put(20, (byte)event.direction);
+        record.put(21, (byte)0);
+        record.putShort(22, (short)Math.min(event.trackLength, Short.MAX_VALUE));
+
+        crc.reset();
+        crc.update(scratch, 4, RECORD_SIZE - 4);
+        record.putInt(0, (int)crc.getValue());
+
+        buffer.put(scratch, 0, RECORD_SIZE);
+
+        return;
+    }
+
+    // Reads the record at offset into event. Returns false if the record is not valid.
+    public static boolean readRecord(ByteBuffer buffer, int offset, CrossingEvent event, ByteBuffer record, CRC32 crc) {
+
+        byte[] scratch = record.array();
+
+        for(int i = 0; i < RECORD_SIZE; i++)
+            scratch[i] = buffer.get(offset + i);
+
+        crc.reset();
+        crc.update(scratch, 4, RECORD_SIZE - 4);
+
+        if(record.getInt(0) != (int)crc.getValue())
+            return false;
+
+        event.sequence = record.getInt(4);
+        event.timestamp = record.getLong(8);
+        event.pid = record.getInt(16);
+        event.direction = record.get(20);
+        event.trackLength = record.getShort(22);
+
+        return event.direction == CrossingEvent.IN || event.direction == CrossingEvent.OUT;
+    }
+}
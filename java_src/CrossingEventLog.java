@@ -0,0 +1,232 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+// Durable, append-only log of the crossing events of one device.
+// The tracking stage hands events over through a ring and never blocks: when the ring is full the event is
+// dropped (and counted). A writer thread appends them to the memory-mapped log and commits them to disk in
+// groups, with one force() for everything appended during the last commit interval.
+// On open the valid prefix of an existing log is recovered and whatever follows it is erased, so a power loss
+// costs at most the events of the last commit interval. The log is never truncated while it is mapped: a closed
+// log keeps the zeroed space mapped ahead of its last record until the next open, readers stop before it.
+// If the writer fails (disk full, I/O error) the events it had not written and all later ones are dropped.
+public class CrossingEventLog implements Runnable {
+
+    // Log space mapped ahead of the last record [bytes]
+    private static final int MAP_SIZE = (1 << 20) / CrossingEventFormat.RECORD_SIZE * CrossingEventFormat.RECORD_SIZE;
+
+    // Variables
+    private final String fileName;
+    private final String serial;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+
+    private final CrossingEvent[] entries;
+    private final RingBuffer<CrossingEvent> ring;
+
+    private MappedByteBuffer map;
+    private long mapStart;
+    private int sequence;
+
+    private final ByteBuffer scratch = CrossingEventFormat.allocateRecord();
+    private final CRC32 crc = new CRC32();
+
+    private Thread thread;
+    private volatile boolean running = false;
+    private volatile boolean failed = false;
+
+    // Time events may wait before being committed [nanoseconds]
+    private volatile long commitInterval = 100000000L;
+
+    // Statistics
+    private final long recovered;
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong committed = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+    private final LatencyStats commitStats;
+
+    // Constructor
+    CrossingEventLog(String logFileName, String deviceSerial, int capacity) throws IOException {
+        fileName = logFileName;
+        serial = deviceSerial;
+
+        entries = new CrossingEvent[capacity];
+        for(int i = 0; i < capacity; i++)
+            entries[i] = new CrossingEvent();
+
+        ring = new RingBuffer<CrossingEvent>(entries);
+        commitStats = new LatencyStats("commit " + fileName);
+
+        file = new RandomAccessFile(fileName, "rw");
+        channel = file.getChannel();
+
+        long end;
+
+        if(channel.size() < CrossingEventFormat.HEADER_SIZE) {
+            ByteBuffer header = CrossingEventFormat.writeHeader(serial);
+            while(header.hasRemaining())
+                channel.write(header, header.position());
+
+            // A new log is only recognized once its header is on disk
+            channel.force(true);
+
+            end = CrossingEventFormat.HEADER_SIZE;
+            sequence = 0;
+            recovered = 0;
+        }
+        else {
+            CrossingEventReader reader = new CrossingEventReader(fileName);
+
+            if(!reader.getSerial().equals(serial)) {
+                reader.close();
+                file.close();
+                throw new IllegalArgumentException("Crossing event log " + fileName + " belongs to device " + reader.getSerial());
+            }
+
+            end = reader.getEnd();
+            sequence = reader.getLastSequence() + 1;
+            recovered = reader.getEventCount();
+            reader.close();
+        }
+
+        // Erase anything after the valid records: a torn record, or records of an uncommitted group that
+        // could otherwise pass as valid once the log grows past them again
+        channel.truncate(end);
+
+        mapAt(end);
+    }
+
+    // Selectors
+    public String getFileName() {return fileName;}
+    public long getRecovered() {return recovered;}
+    public long getAppended() {return appended.get();}
+    public long getDropped() {return dropped.get();}
+    public long getCommitted() {return committed.get();}
+    public long getCommits() {return commits.get();}
+    public boolean hasFailed() {return failed;}
+    public LatencyStats getCommitStats() {return commitStats;}
+
+    // Methods
+    public void setCommitInterval(long millis) {
+        this.commitInterval = Math.max(0, millis) * 1000000L;
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this, "Event log " + fileName);
+        thread.start();
+
+        return;
+    }
+
+    // Called by the tracking stage. Returns false if the event had to be dropped.
+    public boolean append(long timestamp, int pid, int direction, int trackLength) {
+
+        CrossingEvent event = failed ? null : ring.claim();
+
+        if(event == null) {
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        event.timestamp = timestamp;
+        event.pid = pid;
+        event.direction = direction;
+        event.trackLength = trackLength;
+        ring.publish();
+
+        appended.incrementAndGet();
+
+        return true;
+    }
+
+    public void run() {
+
+        try {
+            while(running || ring.peek() != null) {
+                int batch = 0;
+                CrossingEvent event;
+
+                while((event = ring.peek()) != null) {
+                    write(event);
+                    ring.release();
+                    batch++;
+                }
+
+                if(batch > 0)
+                    commit(batch);
+
+                // Group commit: events arriving meanwhile are forced together
+                LockSupport.parkNanos(commitInterval);
+            }
+        } catch (IOException e) {
+            System.out.println( e );
+
+            // Nothing is written anymore: the queued events are dropped, append() drops the next ones
+            failed = true;
+
+            while(ring.peek() != null) {
+                ring.release();
+                dropped.incrementAndGet();
+            }
+        }
+
+        return;
+    }
+
+    // The space mapped ahead is left to the next open, which truncates the log before mapping it
+    public void stop() throws Exception {
+        running = false;
+
+        if(thread != null) {
+            LockSupport.unpark(thread);
+            thread.join();
+        }
+
+        map = null;
+        file.close();
+
+        return;
+    }
+
+    private void write(CrossingEvent event) throws IOException {
+
+        if(map.remaining() < CrossingEventFormat.RECORD_SIZE) {
+            map.force();
+            mapAt(mapStart + map.position());
+        }
+
+        event.sequence = sequence++;
+        CrossingEventFormat.writeRecord(map, event, scratch, crc);
+
+        return;
+    }
+
+    private void commit(int batch) {
+
+        long t0 = System.nanoTime();
+
+        map.force();
+
+        commitStats.record(System.nanoTime() - t0);
+        commits.incrementAndGet();
+        committed.addAndGet(batch);
+
+        return;
+    }
+
+    private void mapAt(long offset) throws IOException {
+        map = channel.map(FileChannel.MapMode.READ_WRITE, offset, MAP_SIZE);
+        map.order(ByteOrder.LITTLE_ENDIAN);
+        mapStart = offset;
+
+        return;
+    }
+}
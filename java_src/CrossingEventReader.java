@@ -0,0 +1,179 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+// Reads a crossing event log and aggregates counts over time windows.
+// Only the valid prefix of the log is read, so a log being written or cut by a power loss can be read at any time.
+//
+// Usage: java CrossingEventReader <log file> [window seconds]
+public class CrossingEventReader {
+
+    // Largest file region mapped at once [bytes]
+    private static final int MAX_MAP_SIZE = (1 << 26) / CrossingEventFormat.RECORD_SIZE * CrossingEventFormat.RECORD_SIZE;
+
+    // Variables
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final String serial;
+
+    private long end = CrossingEventFormat.HEADER_SIZE;
+    private long eventCount = 0;
+    private int lastSequence = -1;
+
+    private final ByteBuffer scratch = CrossingEventFormat.allocateRecord();
+    private final CRC32 crc = new CRC32();
+
+    public interface Visitor {
+        void visit(CrossingEvent event);
+    }
+
+    // Constructor
+    CrossingEventReader(String fileName) throws IOException {
+
+        file = new RandomAccessFile(fileName, "r");
+        channel = file.getChannel();
+
+        ByteBuffer header = ByteBuffer.allocate(CrossingEventFormat.HEADER_SIZE);
+        while(header.hasRemaining() && channel.read(header, header.position()) > 0);
+        header.flip();
+
+        serial = CrossingEventFormat.readHeader(header);
+
+        refresh();
+    }
+
+    // Selectors
+    public String getSerial() {return serial;}
+    public long getEventCount() {return eventCount;}
+    public int getLastSequence() {return lastSequence;}
+
+    // Offset right after the last valid record [bytes]
+    public long getEnd() {return end;}
+
+    // Methods
+
+    // Finds the end of the valid records, including the ones appended since the last call
+    public void refresh() throws IOException {
+
+        CrossingEvent event = new CrossingEvent();
+
+        scan(end, Long.MIN_VALUE, Long.MAX_VALUE, event, null);
+
+        return;
+    }
+
+    // Visits the events with from <= timestamp < to, in log order
+    public void read(long from, long to, Visitor visitor) throws IOException {
+
+        CrossingEvent event = new CrossingEvent();
+        event.serial = serial;
+
+        long last = end;
+        int sequence = lastSequence;
+        long count = eventCount;
+
+        end = CrossingEventFormat.HEADER_SIZE;
+        lastSequence = -1;
+        eventCount = 0;
+
+        scan(end, from, to, event, visitor);
+
+        // Visiting doesn't move the end of the log backwards
+        if(end < last) {
+            end = last;
+            lastSequence = sequence;
+            eventCount = count;
+        }
+
+        return;
+    }
+
+    // Counts per window of windowMillis starting at from. Returns {count in, count out} for every window.
+    public int[][] countByWindow(final long from, long to, final long windowMillis) throws IOException {
+
+        final int[][] counts = new int[(int)((to - from + windowMillis - 1) / windowMillis)][2];
+
+        read(from, to, new Visitor() {
+            public void visit(CrossingEvent event) {
+                int window = (int)((event.timestamp - from) / windowMillis);
+                counts[window][event.direction == CrossingEvent.IN ? 0 : 1]++;
+            }
+        });
+
+        return counts;
+    }
+
+    public void close() throws IOException {
+        file.close();
+        return;
+    }
+
+    private void scan(long offset, long from, long to, CrossingEvent event, Visitor visitor) throws IOException {
+
+        long size = channel.size();
+
+        while(offset + CrossingEventFormat.RECORD_SIZE <= size) {
+
+            int length = (int)Math.min(MAX_MAP_SIZE, (size - offset) / CrossingEventFormat.RECORD_SIZE * CrossingEventFormat.RECORD_SIZE);
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+
+            for(int i = 0; i < length; i += CrossingEventFormat.RECORD_SIZE) {
+
+                if(!CrossingEventFormat.readRecord(map, i, event, scratch, crc)
+                   || (lastSequence >= 0 && event.sequence != lastSequence + 1))
+                    return;
+
+                lastSequence = event.sequence;
+                eventCount++;
+                end = offset + i + CrossingEventFormat.RECORD_SIZE;
+
+                if(visitor != null && event.timestamp >= from && event.timestamp < to)
+                    visitor.visit(event);
+            }
+
+            offset += length;
+        }
+
+        return;
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        if(args.length < 1) {
+            System.out.println("Usage: java CrossingEventReader <log file> [window seconds]");
+            return;
+        }
+
+        long window = (args.length > 1 ? Long.parseLong(args[1]) : 3600) * 1000;
+
+        CrossingEventReader reader = new CrossingEventReader(args[0]);
+
+        // Time range of the log
+        final long[] range = {Long.MAX_VALUE, Long.MIN_VALUE};
+        reader.read(Long.MIN_VALUE, Long.MAX_VALUE, new Visitor() {
+            public void visit(CrossingEvent event) {
+                range[0] = Math.min(range[0], event.timestamp);
+                range[1] = Math.max(range[1], event.timestamp);
+            }
+        });
+
+        System.out.println("Device " + reader.getSerial() + ": " + reader.getEventCount() + " events");
+
+        if(reader.getEventCount() > 0) {
+            long from = range[0] / window * window;
+            int[][] counts = reader.countByWindow(from, range[1] + 1, window);
+
+            for(int i = 0; i < counts.length; i++) {
+                if(counts[i][0] + counts[i][1] > 0)
+                    System.out.println(String.format("%tF %<tT  in %6d  out %6d", from + i * window, counts[i][0], counts[i][1]));
+            }
+        }
+
+        reader.close();
+
+        return;
+    }
+}
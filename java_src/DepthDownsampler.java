@@ -0,0 +1,78 @@
+import java.util.Arrays;
+
+import org.bytedeco.javacpp.*;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+// Downsamples the 16 bit depth frame by an integer factor for processing at a lower scale.
+// Every factor x factor block becomes its nearest valid depth (min-pooling, 0 is no data and ignored): a head
+// seen from the ceiling is the nearest thing in its block, so it survives the downsampling whole while the
+// floor around it does not grow into it. A block without any valid depth stays 0.
+public class DepthDownsampler {
+
+    // Depth of a block without valid pixels while pooling, above every valid depth
+    private static final int NO_DATA = 0x10000;
+
+    // Variables
+    private final int imageWidth;
+
+    private final short[] depthPixels;
+    private final short[] scaledPixels;
+    private final int[] rowMin;
+
+    // Constructor
+    DepthDownsampler(int width, int height) {
+        imageWidth = width;
+
+        depthPixels = new short[width * height];
+        scaledPixels = new short[width * height];
+        rowMin = new int[width];
+    }
+
+    // Methods
+
+    // Min-pools the depth blocks of rows [first, first + rows) of the scaled image, which is factor times smaller
+    public void minPool(IplImage depth, IplImage scaled, int factor, int first, int rows) {
+
+        final int cols = imageWidth;
+        final int scaledCols = scaled.width();
+
+        // One bulk copy of the full resolution rows of the band
+        RSPCN.readRows(new ShortPointer(depth.imageData()), depth.widthStep() / 2, first * factor, rows * factor, cols, depthPixels);
+
+        final short[] in = depthPixels;
+        final short[] out = scaledPixels;
+        final int[] min = rowMin;
+
+        for(int y = first; y < first + rows; y++) {
+
+            // Column minimum over the factor rows of the block row, then minimum over factor columns
+            Arrays.fill(min, 0, scaledCols * factor, NO_DATA);
+
+            for(int k = 0; k < factor; k++) {
+                final int offset = (y * factor + k) * cols;
+
+                for(int x = 0; x < scaledCols * factor; x++) {
+                    int v = in[offset + x] & 0xFFFF;
+                    if(v != 0 && v < min[x])
+                        min[x] = v;
+                }
+            }
+
+            final int offset = y * scaledCols;
+
+            for(int x = 0; x < scaledCols; x++) {
+                int m = NO_DATA;
+
+                for(int k = 0; k < factor; k++)
+                    m = Math.min(m, min[x * factor + k]);
+
+                out[offset + x] = (short)(m == NO_DATA ? 0 : m);
+            }
+        }
+
+        RSPCN.writeRows(new ShortPointer(scaled.imageData()), scaled.widthStep() / 2, first, rows, scaledCols, scaledPixels);
+
+        return;
+    }
+}
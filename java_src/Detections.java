@@ -0,0 +1,100 @@
+import java.util.Arrays;
+
+public class Detections {
+
+    // Variables
+    private int count = 0;
+
+    // Bounding box, center, area and estimated occupants of every detected object
+    private int[] x;
+    private int[] y;
+    private int[] width;
+    private int[] height;
+    private int[] centerX;
+    private int[] centerY;
+    private double[] area;
+    private int[] occupants;
+
+    // Constructor
+    Detections(int capacity) {
+        x       = new int[capacity];
+        y       = new int[capacity];
+        width   = new int[capacity];
+        height  = new int[capacity];
+        centerX = new int[capacity];
+        centerY = new int[capacity];
+        area    = new double[capacity];
+        occupants = new int[capacity];
+    }
+
+    // Selectors
+    public int size() {return count;}
+
+    public int getX(int i) {return x[i];}
+    public int getY(int i) {return y[i];}
+    public int getWidth(int i) {return width[i];}
+    public int getHeight(int i) {return height[i];}
+    public int getCenterX(int i) {return centerX[i];}
+    public int getCenterY(int i) {return centerY[i];}
+    public double getArea(int i) {return area[i];}
+    public int getOccupants(int i) {return occupants[i];}
+
+    // Methods
+    public void clear() {
+        count = 0;
+        return;
+    }
+
+    public int add(int bx, int by, int bw, int bh, double objectArea) {
+        return add(bx, by, bw, bh, objectArea, 1);
+    }
+
+    public int add(int bx, int by, int bw, int bh, double objectArea, int objectOccupants) {
+
+        if(count == x.length)
+            grow();
+
+        x[count]       = bx;
+        y[count]       = by;
+        width[count]   = bw;
+        height[count]  = bh;
+        // Center of bounding rectangle
+        centerX[count] = bx + bw/2;
+        centerY[count] = by + bh/2;
+        area[count]    = objectArea;
+        occupants[count] = objectOccupants;
+
+        return count++;
+    }
+
+    // Maps detections found on an image factor times smaller back to full resolution
+    public void scale(int factor) {
+
+        for(int i = 0; i < count; i++) {
+            x[i]       *= factor;
+            y[i]       *= factor;
+            width[i]   *= factor;
+            height[i]  *= factor;
+            centerX[i] = x[i] + width[i]/2;
+            centerY[i] = y[i] + height[i]/2;
+            area[i]    *= factor * factor;
+        }
+
+        return;
+    }
+
+    private void grow() {
+        int capacity = Math.max(1, x.length * 2);
+
+        x       = Arrays.copyOf(x, capacity);
+        y       = Arrays.copyOf(y, capacity);
+        width   = Arrays.copyOf(width, capacity);
+        height  = Arrays.copyOf(height, capacity);
+        centerX = Arrays.copyOf(centerX, capacity);
+        centerY = Arrays.copyOf(centerY, capacity);
+        area    = Arrays.copyOf(area, capacity);
+        occupants = Arrays.copyOf(occupants, capacity);
+
+        return;
+    }
+}
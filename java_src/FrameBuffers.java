@@ -0,0 +1,193 @@
+import org.bytedeco.javacpp.*;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+public class FrameBuffers {
+
+    // Variables
+    private final int imageWidth;
+    private final int imageHeight;
+
+    // Headers wrapping the camera frame data. They don't own any memory.
+    private IplImage rawColorImage;
+    private IplImage depthImage;
+    private long rawColorAddress = 0;
+    private long depthAddress = 0;
+
+    // When frames outlive the camera buffer (pipelined mode) depth data is copied here
+    private final boolean copyFrameData;
+    private IplImage depthCopy;
+
+    // Capture time of the frame currently held [nanoseconds]
+    private long captureTime = 0;
+    private CounterConfig config = CounterConfig.DEFAULT;
+
+    // Frame drawn and rendered: color converted, overlays drawn, shown and recorded
+    private boolean overlay = true;
+
+    // Camera frames since the previous processed frame, more than 1 when frames were skipped
+    private int frameStep = 1;
+
+    // Buffers owned by the frame loop
+    private IplImage colorImage;
+    private IplImage frameImage;
+    private IplImage maskImage;
+    private IplImage trackImage;
+
+    // Images segmented at a processing scale: depth, frame and mask downsampled by processingScale, allocated
+    // when the scale changes. At full resolution the frame images above are used.
+    private int processingScale = 1;
+    private IplImage scaledDepthImage;
+    private IplImage scaledFrameImage;
+    private IplImage scaledMaskImage;
+
+    // Contours storage, cleared at every frame
+    private CvMemStorage storage;
+    private CvSeq contours;
+
+    // Objects detected in the current frame
+    private Detections detections = new Detections(16);
+
+    // Constructor
+    FrameBuffers(int width, int height) {
+        this(width, height, false);
+    }
+
+    FrameBuffers(int width, int height, boolean copyData) {
+        imageWidth = width;
+        imageHeight = height;
+        copyFrameData = copyData;
+
+        rawColorImage = IplImage.createHeader(imageWidth, imageHeight, IPL_DEPTH_8U, 3);
+        depthImage    = IplImage.createHeader(imageWidth, imageHeight, IPL_DEPTH_16U, 1);
+
+        colorImage = NativeImages.create(imageWidth, imageHeight, IPL_DEPTH_8U, 3);
+        frameImage = NativeImages.create(imageWidth, imageHeight, IPL_DEPTH_8U, 1);
+        maskImage  = NativeImages.create(imageWidth, imageHeight, IPL_DEPTH_8U, 1);
+        trackImage = NativeImages.create(imageWidth, imageHeight, IPL_DEPTH_8U, 1);
+
+        if(copyFrameData)
+            depthCopy = NativeImages.create(imageWidth, imageHeight, IPL_DEPTH_16U, 1);
+
+        storage  = CvMemStorage.create();
+        contours = new CvSeq(null);
+    }
+
+    // Selectors
+    public int getWidth() {return imageWidth;}
+    public int getHeight() {return imageHeight;}
+
+    public IplImage getRawColorImage() {return rawColorImage;}
+    public IplImage getDepthImage() {return copyFrameData ? depthCopy : depthImage;}
+    public IplImage getColorImage() {return colorImage;}
+    public IplImage getFrameImage() {return frameImage;}
+    public IplImage getMaskImage() {return maskImage;}
+    public IplImage getTrackImage() {return trackImage;}
+
+    public int getProcessingScale() {return processingScale;}
+    public IplImage getProcessingDepthImage() {return processingScale == 1 ? getDepthImage() : scaledDepthImage;}
+    public IplImage getProcessingFrameImage() {return processingScale == 1 ? frameImage : scaledFrameImage;}
+    public IplImage getProcessingMaskImage() {return processingScale == 1 ? maskImage : scaledMaskImage;}
+
+    public long getCaptureTime() {return captureTime;}
+    public void setCaptureTime(long time) {captureTime = time;}
+    public CounterConfig getConfig() {return config;}
+    public void setConfig(CounterConfig frameConfig) {config = frameConfig;}
+    public boolean hasOverlay() {return overlay;}
+    public void setOverlay(boolean frameOverlay) {overlay = frameOverlay;}
+
+    public int getFrameStep() {return frameStep;}
+    public void setFrameStep(int step) {frameStep = step;}
+
+    // Methods
+    public IplImage wrapColorData(Pointer data) {
+
+        // The camera may hand out the same buffer frame after frame: only re-point the header when it changes
+        if(data.address() != rawColorAddress) {
+            cvSetData(rawColorImage, data, imageWidth * 3);
+            rawColorAddress = data.address();
+        }
+
+        return rawColorImage;
+    }
+
+    public IplImage wrapDepthData(Pointer data) {
+
+        if(data.address() != depthAddress) {
+            cvSetData(depthImage, data, imageWidth * 2);
+            depthAddress = data.address();
+        }
+
+        if(copyFrameData) {
+            cvCopy(depthImage, depthCopy);
+            return depthCopy;
+        }
+
+        return depthImage;
+    }
+
+    public void setProcessingScale(int factor) {
+
+        if(factor == processingScale)
+            return;
+
+        releaseScaledImages();
+
+        if(factor > 1) {
+            scaledDepthImage = NativeImages.create(imageWidth / factor, imageHeight / factor, IPL_DEPTH_16U, 1);
+            scaledFrameImage = NativeImages.create(imageWidth / factor, imageHeight / factor, IPL_DEPTH_8U, 1);
+            scaledMaskImage  = NativeImages.create(imageWidth / factor, imageHeight / factor, IPL_DEPTH_8U, 1);
+        }
+
+        processingScale = factor;
+
+        return;
+    }
+
+    public CvSeq clearContours() {
+        cvClearMemStorage(storage);
+        contours.setNull();
+
+        return contours;
+    }
+
+    public Detections getDetections() {
+        return detections;
+    }
+
+    public CvMemStorage getStorage() {
+        return storage;
+    }
+
+    public void release() {
+        rawColorImage.release();
+        depthImage.release();
+
+        NativeImages.release(colorImage);
+        NativeImages.release(frameImage);
+        NativeImages.release(maskImage);
+        NativeImages.release(trackImage);
+
+        if(copyFrameData)
+            NativeImages.release(depthCopy);
+
+        releaseScaledImages();
+
+        storage.release();
+
+        return;
+    }
+
+    private void releaseScaledImages() {
+
+        if(processingScale > 1) {
+            NativeImages.release(scaledDepthImage);
+            NativeImages.release(scaledFrameImage);
+            NativeImages.release(scaledMaskImage);
+        }
+
+        processingScale = 1;
+
+        return;
+    }
+}
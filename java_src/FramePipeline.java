@@ -0,0 +1,162 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class FramePipeline {
+
+    // How often idle stages check whether the pipeline is still running [milliseconds]
+    private static final long POLL_TIMEOUT = 100;
+
+    // Stages
+    private static final int SEGMENT = 0;
+    private static final int TRACK   = 1;
+    private static final int RENDER  = 2;
+
+    // Variables
+    private final RSPCN counter;
+
+    private final FrameBuffers[] frames;
+    private final BlockingQueue<FrameBuffers> freeBuffers;
+
+    private final StageQueue segmentQueue;
+    private final StageQueue trackQueue;
+    private final StageQueue renderQueue;
+
+    private volatile boolean running = false;
+
+    // Constructor
+    FramePipeline(RSPCN pipelineCounter, int width, int height, int queueSize, int countingPolicy, int renderPolicy) {
+        counter = pipelineCounter;
+
+        // Enough buffers for full queues plus one frame in every stage
+        int frameCount = 3 * queueSize + 4;
+
+        frames = new FrameBuffers[frameCount];
+        freeBuffers = new ArrayBlockingQueue<FrameBuffers>(frameCount);
+
+        for(int i = 0; i < frameCount; i++) {
+            frames[i] = new FrameBuffers(width, height, true);
+            freeBuffers.add(frames[i]);
+        }
+
+        segmentQueue = new StageQueue("segment", queueSize, countingPolicy, freeBuffers);
+        trackQueue   = new StageQueue("track", queueSize, countingPolicy, freeBuffers);
+        renderQueue  = new StageQueue("render", queueSize, renderPolicy, freeBuffers);
+    }
+
+    // Selectors
+    public StageQueue getSegmentQueue() {return segmentQueue;}
+    public StageQueue getTrackQueue() {return trackQueue;}
+    public StageQueue getRenderQueue() {return renderQueue;}
+
+    // Methods
+
+    // Runs the capture stage on the calling thread until the counter is stopped
+    public void run() {
+
+        running = true;
+
+        Thread[] workers = new Thread[3];
+        workers[SEGMENT] = new Thread(new StageWorker(SEGMENT, segmentQueue, trackQueue), "RSPCN segment " + counter.getThreadID());
+        workers[TRACK]   = new Thread(new StageWorker(TRACK, trackQueue, renderQueue), "RSPCN track " + counter.getThreadID());
+        workers[RENDER]  = new Thread(new StageWorker(RENDER, renderQueue, null), "RSPCN render " + counter.getThreadID());
+
+        for(Thread worker : workers)
+            worker.start();
+
+        try {
+            while(!counter.isHalted()) {
+                FrameBuffers frame = freeBuffers.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+
+                if(frame == null)
+                    continue;
+
+                if(!counter.captureFrame(frame)) {
+                    freeBuffers.offer(frame);
+
+                    // End of stream: let the frames already captured reach the end of the pipeline
+                    while(freeBuffers.size() < frames.length && !counter.isHalted())
+                        Thread.sleep(POLL_TIMEOUT / 10);
+
+                    break;
+                }
+
+                segmentQueue.put(frame);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            System.out.println( e );
+        }
+
+        running = false;
+
+        for(Thread worker : workers) {
+            worker.interrupt();
+
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        return;
+    }
+
+    public void release() {
+        for(FrameBuffers frame : frames)
+            frame.release();
+
+        return;
+    }
+
+    private class StageWorker implements Runnable {
+
+        private final int stage;
+        private final StageQueue input;
+        private final StageQueue output;
+
+        StageWorker(int workerStage, StageQueue workerInput, StageQueue workerOutput) {
+            stage = workerStage;
+            input = workerInput;
+            output = workerOutput;
+        }
+
+        public void run() {
+
+            try {
+                while(running) {
+                    FrameBuffers frame = input.poll(POLL_TIMEOUT);
+
+                    if(frame == null)
+                        continue;
+
+                    // Frames dropped before tracking age the passengers like skipped ones
+                    if(stage != RENDER)
+                        frame.setFrameStep(frame.getFrameStep() + input.takeDroppedSteps());
+
+                    // A single thread per stage and FIFO queues keep tracking strictly ordered
+                    if(stage == SEGMENT)
+                        counter.segmentFrame(frame);
+                    else if(stage == TRACK)
+                        counter.trackPassengers(frame);
+                    else
+                        counter.renderFrame(frame);
+
+                    if(output != null)
+                        output.put(frame);
+                    else
+                        freeBuffers.offer(frame);
+                }
+            } catch (InterruptedException e) {
+                // Pipeline shutdown
+            } catch (Exception e) {
+                System.out.println( e );
+                counter.stop();
+            }
+
+            return;
+        }
+    }
+}
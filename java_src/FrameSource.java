@@ -0,0 +1,33 @@
+import java.io.IOException;
+
+import org.bytedeco.javacpp.*;
+
+public interface FrameSource {
+
+    // Device information
+    String getName();
+    String getSerial();
+    String getFirmware();
+    float getDepthScale();
+
+    // Streams configuration. The color stream is rgb8, the depth stream is z16.
+    void enableStreams(int width, int height, int fps, boolean color);
+    void disableStreams();
+
+    void start();
+    void stop();
+
+    // Blocks until a new set of frames is available. Returns false when the source is exhausted.
+    boolean waitForFrames();
+
+    // Frame data of the current frames. Valid until the next waitForFrames call.
+    Pointer getDepthData();
+    Pointer getColorData();
+    boolean hasColor();
+
+    void applyPreset(int cameraType, int value);
+
+    // Releases the source once its counter is closed, e.g. the replayed file
+    void close() throws IOException;
+
+}
@@ -0,0 +1,182 @@
+import java.util.Arrays;
+import java.util.Vector;
+
+import static java.lang.Math.abs;
+
+public class GridPassengerMatcher implements PassengerMatcher {
+
+    // Variables
+    private final int imageWidth;
+    private final int imageHeight;
+
+    // When true every passenger is matched to at most one detection, closest pairs first
+    private boolean globalMatching;
+
+    // Uniform grid of xNear x yNear cells. Passengers in the same cell are chained through next[]
+    private int cellWidth = -1;
+    private int cellHeight = -1;
+    private int gridCols;
+    private int gridRows;
+    private int[] cellHead = new int[0];
+    private int[] next = new int[16];
+    private int[] passX = new int[16];
+    private int[] passY = new int[16];
+
+    // Global matching scratch space
+    private long[] pairs = new long[64];
+    private boolean[] taken = new boolean[16];
+
+    // Constructor
+    GridPassengerMatcher(int width, int height, boolean global) {
+        imageWidth = width;
+        imageHeight = height;
+        globalMatching = global;
+    }
+
+    // Selectors
+    public boolean isGlobalMatching() {return globalMatching;}
+
+    // Methods
+    public void match(Vector<Passenger> passengers, Detections detections, int xNear, int yNear, int[] assignment) {
+
+        buildGrid(passengers, Math.max(1, xNear), Math.max(1, yNear));
+
+        if(globalMatching)
+            matchGlobal(passengers.size(), detections, xNear, yNear, assignment);
+        else
+            matchNearest(detections, xNear, yNear, assignment);
+
+        return;
+    }
+
+    private void buildGrid(Vector<Passenger> passengers, int cw, int ch) {
+
+        if(cw != cellWidth || ch != cellHeight) {
+            cellWidth = cw;
+            cellHeight = ch;
+            gridCols = imageWidth / cellWidth + 1;
+            gridRows = imageHeight / cellHeight + 1;
+            cellHead = new int[gridCols * gridRows];
+        }
+
+        Arrays.fill(cellHead, -1);
+
+        int n = passengers.size();
+        if(n > next.length) {
+            int capacity = Math.max(n, next.length * 2);
+            next  = new int[capacity];
+            passX = new int[capacity];
+            passY = new int[capacity];
+            taken = new boolean[capacity];
+        }
+
+        for(int i = 0; i < n; i++) {
+            // Matched where the passenger is expected, its last position without motion prediction
+            passX[i] = passengers.elementAt(i).getPredictedX();
+            passY[i] = passengers.elementAt(i).getPredictedY();
+
+            int cell = cellOf(passX[i], passY[i]);
+            next[i] = cellHead[cell];
+            cellHead[cell] = i;
+        }
+
+        return;
+    }
+
+    private void matchNearest(Detections detections, int xNear, int yNear, int[] assignment) {
+
+        for(int d = 0; d < detections.size(); d++) {
+
+            int x = detections.getCenterX(d);
+            int y = detections.getCenterY(d);
+            int col = clamp(x / cellWidth, gridCols);
+            int row = clamp(y / cellHeight, gridRows);
+
+            int best = -1;
+            long bestDist = Long.MAX_VALUE;
+
+            // A passenger within xNear/yNear of the detection can only be in the 3x3 neighbourhood
+            for(int r = Math.max(0, row - 1); r <= Math.min(gridRows - 1, row + 1); r++) {
+                for(int c = Math.max(0, col - 1); c <= Math.min(gridCols - 1, col + 1); c++) {
+                    for(int i = cellHead[r * gridCols + c]; i >= 0; i = next[i]) {
+
+                        int dx = x - passX[i];
+                        int dy = y - passY[i];
+
+                        if(abs(dx) <= xNear && abs(dy) <= yNear) {
+                            long dist = (long)dx * dx + (long)dy * dy;
+
+                            if(dist < bestDist || (dist == bestDist && i < best)) {
+                                bestDist = dist;
+                                best = i;
+                            }
+                        }
+                    }
+                }
+            }
+
+            assignment[d] = best;
+        }
+
+        return;
+    }
+
+    private void matchGlobal(int passengerCount, Detections detections, int xNear, int yNear, int[] assignment) {
+
+        int n = 0;
+
+        // Collect every candidate pair, packed as (distance, detection, passenger) so a plain sort orders them
+        for(int d = 0; d < detections.size(); d++) {
+
+            assignment[d] = -1;
+
+            int x = detections.getCenterX(d);
+            int y = detections.getCenterY(d);
+            int col = clamp(x / cellWidth, gridCols);
+            int row = clamp(y / cellHeight, gridRows);
+
+            for(int r = Math.max(0, row - 1); r <= Math.min(gridRows - 1, row + 1); r++) {
+                for(int c = Math.max(0, col - 1); c <= Math.min(gridCols - 1, col + 1); c++) {
+                    for(int i = cellHead[r * gridCols + c]; i >= 0; i = next[i]) {
+
+                        int dx = x - passX[i];
+                        int dy = y - passY[i];
+
+                        if(abs(dx) <= xNear && abs(dy) <= yNear) {
+
+                            if(n == pairs.length)
+                                pairs = Arrays.copyOf(pairs, pairs.length * 2);
+
+                            long dist = Math.min((long)dx * dx + (long)dy * dy, 0xFFFFFL);
+                            pairs[n++] = (dist << 42) | ((long)d << 21) | i;
+                        }
+                    }
+                }
+            }
+        }
+
+        Arrays.sort(pairs, 0, n);
+        Arrays.fill(taken, 0, passengerCount, false);
+
+        // Greedy assignment: closest pairs first, each passenger and detection used once
+        for(int k = 0; k < n; k++) {
+            int d = (int)((pairs[k] >>> 21) & 0x1FFFFF);
+            int i = (int)(pairs[k] & 0x1FFFFF);
+
+            if(assignment[d] < 0 && !taken[i]) {
+                assignment[d] = i;
+                taken[i] = true;
+            }
+        }
+
+        return;
+    }
+
+    private int cellOf(int x, int y) {
+        return clamp(y / cellHeight, gridRows) * gridCols + clamp(x / cellWidth, gridCols);
+    }
+
+    private static int clamp(int v, int size) {
+        return v < 0 ? 0 : (v >= size ? size - 1 : v);
+    }
+}
@@ -0,0 +1,111 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyStats {
+
+    // Log-linear histogram: every power of two [microseconds] is split in SUB_BUCKETS linear buckets.
+    // Relative error is below 1/SUB_BUCKETS and recording never allocates.
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAGNITUDES = 40;
+
+    // Variables
+    private final String name;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(MAGNITUDES * SUB_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    // Constructor
+    LatencyStats(String statsName) {
+        name = statsName;
+    }
+
+    // Selectors
+    public String getName() {return name;}
+    public long getCount() {return count.get();}
+    public long getMaxNanos() {return maxNanos.get();}
+    public long getTotalNanos() {return totalNanos.get();}
+
+    public double getMeanMillis() {
+        long n = count.get();
+        return n == 0 ? 0 : totalNanos.get() / (n * 1e6);
+    }
+
+    // Methods
+    public void record(long nanos) {
+
+        if(nanos < 0)
+            nanos = 0;
+
+        buckets.incrementAndGet(bucketOf(nanos / 1000));
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+
+        long max = maxNanos.get();
+        while(nanos > max && !maxNanos.compareAndSet(max, nanos))
+            max = maxNanos.get();
+
+        return;
+    }
+
+    // Returns the upper bound [milliseconds] of the bucket holding the given percentile (0 - 100)
+    public double getPercentileMillis(double percentile) {
+
+        long n = count.get();
+        if(n == 0)
+            return 0;
+
+        long rank = (long)Math.ceil(n * percentile / 100.0);
+        if(rank < 1)
+            rank = 1;
+
+        long seen = 0;
+        for(int i = 0; i < buckets.length(); i++) {
+            seen += buckets.get(i);
+            if(seen >= rank)
+                return Math.min(bucketUpperBound(i) / 1000.0, maxNanos.get() / 1e6);
+        }
+
+        return maxNanos.get() / 1e6;
+    }
+
+    public void reset() {
+        for(int i = 0; i < buckets.length(); i++)
+            buckets.set(i, 0);
+
+        count.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+
+        return;
+    }
+
+    public String toString() {
+        return String.format("%-10s n=%d mean=%.3fms p50=%.3fms p99=%.3fms max=%.3fms",
+                name, getCount(), getMeanMillis(), getPercentileMillis(50), getPercentileMillis(99), getMaxNanos() / 1e6);
+    }
+
+    private static int bucketOf(long micros) {
+
+        if(micros < SUB_BUCKETS)
+            return (int)micros;
+
+        int magnitude = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS + 1;
+        int sub = (int)(micros >>> (magnitude - 1)) - SUB_BUCKETS;
+
+        return Math.min(magnitude * SUB_BUCKETS + sub, MAGNITUDES * SUB_BUCKETS - 1);
+    }
+
+    private static long bucketUpperBound(int bucket) {
+
+        int magnitude = bucket / SUB_BUCKETS;
+        int sub = bucket % SUB_BUCKETS;
+
+        if(magnitude == 0)
+            return sub + 1;
+
+        return (long)(SUB_BUCKETS + sub + 1) << (magnitude - 1);
+    }
+}
@@ -0,0 +1,27 @@
+import java.util.Vector;
+
+import static java.lang.Math.abs;
+
+public class LegacyPassengerMatcher implements PassengerMatcher {
+
+    // Methods
+    public void match(Vector<Passenger> passengers, Detections detections, int xNear, int yNear, int[] assignment) {
+
+        for(int d = 0; d < detections.size(); d++) {
+
+            assignment[d] = -1;
+
+            for(int i = 0; i < passengers.size(); i++) {
+                //If passenger is near where a known passenger is expected assume they are the same one
+                if( abs(detections.getCenterX(d) - passengers.elementAt(i).getPredictedX()) <= xNear  &&
+                    abs(detections.getCenterY(d) - passengers.elementAt(i).getPredictedY()) <= yNear  ) {
+
+                    assignment[d] = i;
+                    break;
+                }
+            }
+        }
+
+        return;
+    }
+}
@@ -11,14 +11,24 @@ public class Main {
         System.out.print("* COMMAND HELP: \n");
         System.out.print("* q: exit program\n");
         System.out.print("* r: resetting counters\n");
-        System.out.print("* c: get passenger count\n");
+        System.out.print("* c: get passenger count (total, last minute and last 15 minutes)\n");
         System.out.print("* p: set camera preset\n");
         System.out.print("* t: set threshold centimeters\n");
         System.out.print("* a: set max passenger age\n");
         System.out.print("* A: set area threshold\n");
         System.out.print("* b: set blur kernel size\n");
+        System.out.print("* k: toggle box blur\n");
         System.out.print("* x: set xNear\n");
         System.out.print("* y: set yNear\n");
+        System.out.print("* d: set processing scale (1: full resolution, 2: 1/2, 4: 1/4)\n");
+        System.out.print("* o: set processing band half height around the counting line (0: whole frame)\n");
+        System.out.print("* m: set passenger matcher (0: legacy, 1: grid, 2: grid global)\n");
+        System.out.print("* v: toggle motion prediction\n");
+        System.out.print("* f: set max frame stride (1: every frame)\n");
+        System.out.print("* n: toggle native segmentation\n");
+        System.out.print("* l: toggle blob extraction by run labeling\n");
+        System.out.print("* s: display stage statistics\n");
+        System.out.print("* P: set scheduling priority (0 to " + CounterScheduler.MAX_PRIORITY + ", with -s)\n");
         System.out.print("* h: display this help message\n");
         System.out.print("*****************************************\n");
 
@@ -27,19 +37,142 @@ public class Main {
 
     public static void main(String[] args) {
 
-        context context = new context();
         Vector<RSPCN> counters = new Vector<RSPCN>(1,1);
 
         char c;
         Scanner s= new Scanner(System.in);
         boolean stop = false;
         boolean dispH = false;
+        boolean pipelined = false;
+        boolean rawRecord = false;
+        boolean replayRealTime = true;
+        String replayFile = null;
+        int workers = 0;
+        int segmentationThreads = 1;
+        boolean motionGate = false;
+        boolean nativeSegmentation = false;
+        boolean blobExtraction = false;
+        boolean boxBlur = false;
+        int overlayDecimation = 1;
+        int processingScale = 1;
+        boolean motionPrediction = false;
+        int maxFrameStride = 1;
+        int metricsPort = 0;
+        boolean metricsExternal = false;
+        boolean eventLog = false;
+        int controlPort = 0;
+        char mode = 0;
+        CounterScheduler scheduler = null;
+
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equals("-p")) {
+                pipelined = true;
+                System.out.println("Pipelined processing activated");
+            }
+            else if(args[i].equals("-w")) {
+                rawRecord = true;
+                System.out.println("Raw stream recording activated");
+            }
+            else if(args[i].equals("-r") && i + 1 < args.length) {
+                replayFile = args[++i];
+                System.out.println("Replaying " + replayFile);
+            }
+            else if(args[i].equals("-s") && i + 1 < args.length) {
+                workers = Integer.parseInt(args[++i]);
+                System.out.println("Shared worker pool of " + workers + " threads activated");
+            }
+            else if(args[i].equals("-t") && i + 1 < args.length) {
+                segmentationThreads = Integer.parseInt(args[++i]);
+                System.out.println("Parallel segmentation on " + segmentationThreads + " threads per camera activated");
+            }
+            else if(args[i].equals("-n")) {
+                nativeSegmentation = true;
+                System.out.println("Native segmentation activated");
+            }
+            else if(args[i].equals("-l")) {
+                blobExtraction = true;
+                System.out.println("Blob extraction by run labeling activated");
+            }
+            else if(args[i].equals("-b")) {
+                boxBlur = true;
+                System.out.println("Box blur activated");
+            }
+            else if(args[i].equals("-u") && i + 1 < args.length) {
+                overlayDecimation = Integer.parseInt(args[++i]);
+                System.out.println("Overlays rendered one frame every " + overlayDecimation);
+            }
+            else if(args[i].equals("-d") && i + 1 < args.length) {
+                processingScale = Integer.parseInt(args[++i]);
+                System.out.println("Processing at 1/" + processingScale + " scale activated");
+            }
+            else if(args[i].equals("-v")) {
+                motionPrediction = true;
+                System.out.println("Motion prediction activated");
+            }
+            else if(args[i].equals("-i") && i + 1 < args.length) {
+                maxFrameStride = Integer.parseInt(args[++i]);
+                System.out.println("Adaptive frame rate down to one frame every " + maxFrameStride + " activated");
+            }
+            else if(args[i].equals("-g")) {
+                motionGate = true;
+                System.out.println("Motion gating activated");
+            }
+            else if(args[i].equals("-m") && i + 1 < args.length) {
+                metricsPort = Integer.parseInt(args[++i]);
+                System.out.println("Metrics endpoint on port " + metricsPort + " activated");
+            }
+            else if(args[i].equals("-M") && i + 1 < args.length) {
+                metricsPort = Integer.parseInt(args[++i]);
+                metricsExternal = true;
+                System.out.println("Metrics endpoint on port " + metricsPort + " of every interface activated");
+            }
+            else if(args[i].equals("-e")) {
+                eventLog = true;
+                System.out.println("Crossing event log activated");
+            }
+            else if(args[i].equals("-c") && i + 1 < args.length) {
+                controlPort = Integer.parseInt(args[++i]);
+                System.out.println("Control server on port " + controlPort + " activated");
+            }
+            else if(args[i].equals("-x") && i + 1 < args.length) {
+                mode = args[++i].charAt(0);
+                System.out.println("Execution mode " + mode + " selected");
+            }
+            else if(args[i].equals("-f")) {
+                replayRealTime = false;
+                System.out.println("Replaying as fast as possible");
+            }
+        }
+
+        // The shared workers run the stages of a frame one after the other
+        if(pipelined && workers > 0) {
+            System.out.println("Error: pipelined mode (-p) and the shared worker pool (-s) can't be combined");
+            return;
+        }
+
+        int devCount;
+
+        if(replayFile != null) {
+            devCount = 1;
+
+            try {
+                counters.add(new RSPCN(new ReplayFrameSource(replayFile, replayRealTime)));
+            } catch (IOException e) {
+                System.out.println( e );
+                return;
+            }
+        }
+        else {
+            context context = new context();
+            devCount = context.get_device_count();
+
+            for(int i = 0; i < devCount; i++)
+                counters.add(new RSPCN(context.get_device(i)));
+        }
 
-        int devCount = context.get_device_count();
         System.out.println( "Device count: " + devCount);
 
         for(int i = 0; i < devCount; i++) {
-            counters.add(new RSPCN(context.get_device(i)));
             System.out.println( );
             System.out.println( "Device number: " + i);
             System.out.println( "Device name: " + counters.elementAt(i).getDeviceName() );
@@ -49,15 +182,27 @@ public class Main {
 
         System.out.println( );
 
-        System.out.println( "Choose execution mode:" );
-        System.out.println( "M: bare metal mode." );
-        System.out.println( "N: normal mode." );
-        System.out.println( "V: video recording mode." );
-        System.out.println( "B: video recording in bare metal mode." );
+        // Headless units (no console, e.g. started as a service) are controlled through the control server only
+        boolean headless = controlPort > 0 && System.console() == null;
+
+        if(mode == 0 && headless) {
+            mode = 'M';
+            System.out.println( "No console: bare metal mode" );
+        }
+
+        if(mode == 0) {
+            System.out.println( "Choose execution mode:" );
+            System.out.println( "M: bare metal mode." );
+            System.out.println( "N: normal mode." );
+            System.out.println( "V: video recording mode." );
+            System.out.println( "B: video recording in bare metal mode." );
+
+            System.out.print("> ");
+            mode = s.next().charAt(0);
+            // TODO: Add input control
+        }
 
-        System.out.print("> ");
-        c = s.next().charAt(0);
-        // TODO: Add input control
+        c = mode;
 
         for(int i = 0; i < devCount; i++) {
             if(c == 'M') {
@@ -76,11 +221,85 @@ public class Main {
             else {
                 System.out.println("Normal mode activated");
             }
-            counters.elementAt(i).start();
+            counters.elementAt(i).setPipelinedMode(pipelined);
+            counters.elementAt(i).setRawRecordMode(rawRecord);
+            counters.elementAt(i).setSegmentationThreads(segmentationThreads);
+            if(nativeSegmentation)
+                counters.elementAt(i).setNativeSegmentation(true);
+            counters.elementAt(i).setBlobExtraction(blobExtraction);
+            counters.elementAt(i).setBoxBlur(boxBlur);
+            counters.elementAt(i).setOverlayDecimation(overlayDecimation);
+            counters.elementAt(i).setProcessingScale(processingScale);
+            counters.elementAt(i).setMotionPrediction(motionPrediction);
+            counters.elementAt(i).setMaxFrameStride(maxFrameStride);
+            counters.elementAt(i).setMotionGateMode(motionGate);
+            counters.elementAt(i).setEventLogMode(eventLog);
+        }
+
+        // Metrics are always published through JMX, the scrape endpoint is optional
+        MetricsServer metrics = new MetricsServer();
+
+        for(int i = 0; i < devCount; i++)
+            metrics.add(counters.elementAt(i).getMetrics(), "Counter");
+
+        if(metricsPort > 0) {
+            try {
+                metrics.start(metricsPort, metricsExternal);
+            } catch (IOException e) {
+                System.out.println( e );
+            }
+        }
+
+        if(workers > 0) {
+            scheduler = new CounterScheduler(workers, 2);
+
+            for(int i = 0; i < devCount; i++)
+                scheduler.add(counters.elementAt(i), 0);
+
+            scheduler.start();
+        }
+        else {
+            for(int i = 0; i < devCount; i++)
+                counters.elementAt(i).start();
+        }
+
+        ControlServer control = null;
+
+        if(controlPort > 0) {
+            control = new ControlServer(counters);
+
+            try {
+                control.start(controlPort);
+            } catch (IOException e) {
+                System.out.println( e );
+                control = null;
+            }
         }
 
-        System.out.println( "Insert command: " );
-        do {
+        if(headless) {
+            // Without the control server nothing could stop the counters
+            if(control == null) {
+                System.out.println( "No console and no control server: closing" );
+
+                for(int i = 0; i < devCount; i++)
+                    counters.elementAt(i).stop();
+            }
+            else {
+                System.out.println( "No console: waiting for a shutdown command on the control port" );
+
+                try {
+                    control.awaitShutdown();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            stop = true;
+        }
+        else
+            System.out.println( "Insert command: " );
+
+        while(!stop) {
             System.out.print("> ");
 
             c = s.next().charAt(0);
@@ -98,15 +317,23 @@ public class Main {
 
                     case('r'): 
                         System.out.println( "Resetting counters device: " + i );
-                        counters.elementAt(i).resetCounters();
+                        int[] last = counters.elementAt(i).readAndResetCounters();
+                        System.out.println("Count in  > " + last[0] + ", count out > " + last[1]);
                         break;
                     
                     case ('c'): 
                         System.out.println( );
                         System.out.println("Device: " + i);
-                        System.out.println("Count in  > " + counters.elementAt(i).getCnt_in());
-                        System.out.println("Count out > " + counters.elementAt(i).getCnt_out());
-                        System.out.println("Current balance > " + (counters.elementAt(i).getCnt_in() - counters.elementAt(i).getCnt_out()));
+                        int[] counts = counters.elementAt(i).getCounters();
+                        System.out.println("Count in  > " + counts[0]);
+                        System.out.println("Count out > " + counts[1]);
+                        System.out.println("Current balance > " + (counts[0] - counts[1]));
+
+                        long now = System.currentTimeMillis();
+                        int[] minute = counters.elementAt(i).getCounts(now - CountRollup.MINUTE, now);
+                        int[] quarter = counters.elementAt(i).getCounts(now - CountRollup.QUARTER, now);
+                        System.out.println("Last minute > in " + minute[0] + ", out " + minute[1]);
+                        System.out.println("Last 15 minutes > in " + quarter[0] + ", out " + quarter[1]);
                         break;
                         
                     case ('p'): 
@@ -165,6 +392,73 @@ public class Main {
                         counters.elementAt(i).setYNear(yNear);
                         break;
                     
+                    case ('d') :
+                        System.out.println( "Set processing scale device: " + i);
+                        System.out.print("New scale > ");
+                        int factor = s.nextInt();
+                        counters.elementAt(i).setProcessingScale(factor);
+                        break;
+
+                    case ('o') :
+                        System.out.println( "Set processing band device: " + i);
+                        System.out.print("New band half height > ");
+                        int roi = s.nextInt();
+                        counters.elementAt(i).setRoiHalfHeight(roi);
+                        break;
+
+                    case ('m') :
+                        System.out.println( "Set passenger matcher device: " + i);
+                        System.out.print("New matcher > ");
+                        int matcher = s.nextInt();
+                        counters.elementAt(i).setMatcherMode(matcher);
+                        break;
+
+                    case ('v') :
+                        counters.elementAt(i).setMotionPrediction(!counters.elementAt(i).getMotionPrediction());
+                        System.out.println( "Motion prediction device " + i + ": " + (counters.elementAt(i).getMotionPrediction() ? "on" : "off"));
+                        break;
+
+                    case ('f') :
+                        System.out.println( "Set max frame stride device: " + i);
+                        System.out.print("New stride > ");
+                        int stride = s.nextInt();
+                        counters.elementAt(i).setMaxFrameStride(stride);
+                        break;
+
+                    case ('n') :
+                        counters.elementAt(i).setNativeSegmentation(!counters.elementAt(i).getNativeSegmentation());
+                        System.out.println( "Native segmentation device " + i + ": " + (counters.elementAt(i).getNativeSegmentation() ? "on" : "off"));
+                        break;
+
+                    case ('k') :
+                        counters.elementAt(i).setBoxBlur(!counters.elementAt(i).getBoxBlur());
+                        System.out.println( "Box blur device " + i + ": " + (counters.elementAt(i).getBoxBlur() ? "on" : "off"));
+                        break;
+
+                    case ('l') :
+                        counters.elementAt(i).setBlobExtraction(!counters.elementAt(i).getBlobExtraction());
+                        System.out.println( "Blob extraction by run labeling device " + i + ": " + (counters.elementAt(i).getBlobExtraction() ? "on" : "off"));
+                        break;
+
+                    case ('s') :
+                        System.out.println( );
+                        System.out.println("Device: " + i);
+                        System.out.println(counters.elementAt(i).getStageStats());
+                        if(scheduler != null)
+                            System.out.println(scheduler.getDeviceStats(counters.elementAt(i)));
+                        break;
+
+                    case ('P') :
+                        if(scheduler == null) {
+                            System.out.println( "Priorities are only available with a shared worker pool (-s)");
+                            break;
+                        }
+                        System.out.println( "Set scheduling priority device: " + i);
+                        System.out.print("New priority > ");
+                        int priority = s.nextInt();
+                        scheduler.setPriority(counters.elementAt(i), priority);
+                        break;
+
                     default:
                         dispH = true;
                         break;
@@ -176,7 +470,20 @@ public class Main {
                 dispH = false;
             }
 
-        } while(!stop);
+        }
+
+        if(scheduler != null)
+            scheduler.stop();
+
+        if(control != null) {
+            try {
+                control.stop();
+            } catch (Exception e) {
+                System.out.println( e );
+            }
+        }
+
+        metrics.stop();
 
         return;
     }
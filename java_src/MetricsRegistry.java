@@ -0,0 +1,264 @@
+import java.util.LinkedHashSet;
+import java.util.Vector;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+// Named metrics of one counter (or of the process).
+// Metrics are registered once up front and only read the values that the stages already maintain
+// (atomics and LatencyStats), so recording stays allocation free. Values are exposed as JMX attributes
+// and in plain text for the scrape endpoint of MetricsServer.
+public class MetricsRegistry implements DynamicMBean {
+
+    private static final double[] QUANTILES = {50, 90, 99};
+
+    private static final int COUNTER = 0;
+    private static final int GAUGE = 1;
+    private static final int SUMMARY = 2;
+    // Maximum latency of a stage, a gauge family of its own next to the summary
+    private static final int MAXIMUM = 3;
+
+    // Variables
+    private final String name;
+    private final String labels;
+
+    private final Vector<Metric> metrics = new Vector<Metric>(16, 16);
+
+    private static class Metric {
+        String name;
+        String help;
+        int type;
+        String stage;
+
+        LongSupplier counter;
+        DoubleSupplier gauge;
+        LatencyStats stats;
+    }
+
+    // Constructor
+    // labels are added to every sample of the scrape output, e.g. serial="1234"
+    MetricsRegistry(String registryName, String registryLabels) {
+        name = registryName;
+        labels = registryLabels;
+    }
+
+    // Selectors
+    public String getName() {return name;}
+
+    // Methods
+    public void counter(String metricName, String help, LongSupplier value) {
+        Metric metric = metric(metricName, help, COUNTER);
+        metric.counter = value;
+        return;
+    }
+
+    public void gauge(String metricName, String help, DoubleSupplier value) {
+        Metric metric = metric(metricName, help, GAUGE);
+        metric.gauge = value;
+        return;
+    }
+
+    // Latency histogram of a stage, published as a summary in milliseconds. The maximum is published as the
+    // gauge <metric>_max_ms (<metric> without its _ms unit)
+    public void latency(String metricName, String help, LatencyStats stats) {
+        Metric metric = metric(metricName, help, SUMMARY);
+        metric.stage = stats.getName();
+        metric.stats = stats;
+
+        String base = metricName.endsWith("_ms") ? metricName.substring(0, metricName.length() - 3) : metricName;
+
+        Metric maximum = metric(base + "_max_ms", help + ", maximum", MAXIMUM);
+        maximum.stage = stats.getName();
+        maximum.stats = stats;
+
+        return;
+    }
+
+    // Appends the metrics of all the registries in the plain text exposition format. Every family is written
+    // once, its header followed by the samples of every registry, so families stay contiguous with any number
+    // of counters.
+    public static void writeText(Iterable<MetricsRegistry> registries, StringBuilder sb) {
+
+        LinkedHashSet<String> families = new LinkedHashSet<String>();
+
+        for(MetricsRegistry registry : registries) {
+            for(Metric metric : registry.metrics)
+                families.add(metric.name);
+        }
+
+        for(String family : families) {
+
+            boolean header = false;
+
+            for(MetricsRegistry registry : registries) {
+                for(Metric metric : registry.metrics) {
+
+                    if(!metric.name.equals(family))
+                        continue;
+
+                    if(!header) {
+                        sb.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+                        sb.append("# TYPE ").append(metric.name).append(' ')
+                          .append(metric.type == COUNTER ? "counter" : metric.type == SUMMARY ? "summary" : "gauge").append('\n');
+                        header = true;
+                    }
+
+                    registry.writeSamples(metric, sb);
+                }
+            }
+        }
+
+        return;
+    }
+
+    private void writeSamples(Metric metric, StringBuilder sb) {
+
+        if(metric.type == COUNTER) {
+            sample(sb, metric.name, null, null).append(metric.counter.getAsLong()).append('\n');
+        }
+        else if(metric.type == GAUGE) {
+            double value;
+
+            // A gauge that can't be read (e.g. native memory without the native library) doesn't spoil the scrape
+            try {
+                value = metric.gauge.getAsDouble();
+            } catch (RuntimeException | LinkageError e) {
+                value = Double.NaN;
+            }
+
+            sample(sb, metric.name, null, null).append(value).append('\n');
+        }
+        else if(metric.type == SUMMARY) {
+            for(double q : QUANTILES)
+                sample(sb, metric.name, metric.stage, Double.toString(q / 100)).append(metric.stats.getPercentileMillis(q)).append('\n');
+
+            sample(sb, metric.name + "_sum", metric.stage, null).append(metric.stats.getTotalNanos() / 1e6).append('\n');
+            sample(sb, metric.name + "_count", metric.stage, null).append(metric.stats.getCount()).append('\n');
+        }
+        else {
+            sample(sb, metric.name, metric.stage, null).append(metric.stats.getMaxNanos() / 1e6).append('\n');
+        }
+
+        return;
+    }
+
+    // -- JMX
+    // Counters and gauges are attributes named after the metric, stages add <metric>_<stage>_p50/_p90/_p99/_count
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+
+        for(Metric metric : metrics) {
+
+            if(metric.type == COUNTER && attribute.equals(metric.name))
+                return metric.counter.getAsLong();
+
+            if(metric.type == GAUGE && attribute.equals(metric.name))
+                return metric.gauge.getAsDouble();
+
+            if(metric.type == SUMMARY && attribute.startsWith(metric.name + "_" + metric.stage + "_")) {
+                String suffix = attribute.substring(metric.name.length() + metric.stage.length() + 2);
+
+                if(suffix.equals("count"))
+                    return metric.stats.getCount();
+
+                for(double q : QUANTILES) {
+                    if(suffix.equals("p" + (int)q))
+                        return metric.stats.getPercentileMillis(q);
+                }
+            }
+        }
+
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    public AttributeList getAttributes(String[] attributes) {
+
+        AttributeList list = new AttributeList();
+
+        for(String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // Unknown attributes are left out, as required by DynamicMBean
+            }
+        }
+
+        return list;
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read only: " + attribute.getName());
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    // No operations: JMX clients get the standard error for an unknown operation
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName), "No operation " + actionName);
+    }
+
+    public MBeanInfo getMBeanInfo() {
+
+        Vector<MBeanAttributeInfo> attributes = new Vector<MBeanAttributeInfo>();
+
+        for(Metric metric : metrics) {
+
+            if(metric.type == COUNTER)
+                attributes.add(new MBeanAttributeInfo(metric.name, "long", metric.help, true, false, false));
+            else if(metric.type == GAUGE)
+                attributes.add(new MBeanAttributeInfo(metric.name, "double", metric.help, true, false, false));
+            else if(metric.type == SUMMARY) {
+                String prefix = metric.name + "_" + metric.stage + "_";
+
+                for(double q : QUANTILES)
+                    attributes.add(new MBeanAttributeInfo(prefix + "p" + (int)q, "double", metric.help + ", " + metric.stage + " [ms]", true, false, false));
+
+                attributes.add(new MBeanAttributeInfo(prefix + "count", "long", metric.help + ", " + metric.stage + " samples", true, false, false));
+            }
+        }
+
+        return new MBeanInfo(getClass().getName(), "RSPCN metrics " + name,
+                             attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+                             null, new MBeanOperationInfo[0], null);
+    }
+
+    private Metric metric(String metricName, String help, int type) {
+        Metric metric = new Metric();
+        metric.name = metricName;
+        metric.help = help;
+        metric.type = type;
+
+        metrics.add(metric);
+
+        return metric;
+    }
+
+    private StringBuilder sample(StringBuilder sb, String metricName, String stage, String quantile) {
+
+        sb.append(metricName);
+
+        if(!labels.isEmpty() || stage != null) {
+            sb.append('{').append(labels);
+
+            if(stage != null)
+                sb.append(labels.isEmpty() ? "" : ",").append("stage=\"").append(stage).append('"');
+
+            if(quantile != null)
+                sb.append(",quantile=\"").append(quantile).append('"');
+
+            sb.append('}');
+        }
+
+        return sb.append(' ');
+    }
+}
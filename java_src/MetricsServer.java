@@ -0,0 +1,135 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.management.ObjectName;
+
+import org.bytedeco.javacpp.Pointer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+// Publishes metrics registries through JMX and a plain text scrape endpoint (GET /metrics).
+// The endpoint runs on a single background thread and only reads the registries, it never blocks the counters.
+public class MetricsServer implements HttpHandler {
+
+    // Variables
+    private final CopyOnWriteArrayList<MetricsRegistry> registries = new CopyOnWriteArrayList<MetricsRegistry>();
+    private final ConcurrentHashMap<MetricsRegistry, ObjectName> names = new ConcurrentHashMap<MetricsRegistry, ObjectName>();
+
+    private HttpServer server;
+
+    // Process wide metrics
+    private final MetricsRegistry processMetrics = new MetricsRegistry("process", "");
+
+    // Constructor
+    MetricsServer() {
+        processMetrics.gauge("rspcn_native_images", "Native images currently allocated", () -> NativeImages.getLive());
+        processMetrics.counter("rspcn_native_images_allocated_total", "Native images allocated", () -> NativeImages.getAllocated());
+        processMetrics.gauge("rspcn_native_bytes", "Native memory tracked by JavaCPP [bytes]", () -> Pointer.totalBytes());
+        processMetrics.gauge("rspcn_physical_bytes", "Physical memory of the process [bytes]", () -> Pointer.physicalBytes());
+
+        add(processMetrics, "Process");
+    }
+
+    // Methods
+
+    // Listens on the loopback interface only, like ControlServer
+    public void start(int port) throws IOException {
+        start(port, false);
+        return;
+    }
+
+    // With external true the endpoint listens on every interface, for scrapers on other hosts
+    public void start(int port, boolean external) throws IOException {
+
+        InetSocketAddress address = external ? new InetSocketAddress(port)
+                                             : new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+
+        server = HttpServer.create(address, 0);
+        server.createContext("/metrics", this);
+        server.start();
+
+        return;
+    }
+
+    public void stop() {
+
+        if(server != null)
+            server.stop(0);
+
+        for(MetricsRegistry registry : registries)
+            remove(registry);
+
+        return;
+    }
+
+    // Publishes a registry. The JMX name is RSPCN:type=<type>,name=<registry name>
+    public void add(MetricsRegistry registry, String type) {
+
+        registries.add(registry);
+
+        try {
+            ObjectName name = new ObjectName("RSPCN:type=" + type + ",name=" + ObjectName.quote(registry.getName()));
+
+            ManagementFactory.getPlatformMBeanServer().registerMBean(registry, name);
+            names.put(registry, name);
+        } catch (Exception e) {
+            System.out.println( e );
+        }
+
+        return;
+    }
+
+    public void remove(MetricsRegistry registry) {
+
+        registries.remove(registry);
+
+        ObjectName name = names.remove(registry);
+
+        try {
+            if(name != null)
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (Exception e) {
+            System.out.println( e );
+        }
+
+        return;
+    }
+
+    public String scrape() {
+        StringBuilder sb = new StringBuilder(8192);
+
+        MetricsRegistry.writeText(registries, sb);
+
+        return sb.toString();
+    }
+
+    public void handle(HttpExchange exchange) throws IOException {
+
+        byte[] body;
+        int status = 200;
+
+        try {
+            body = scrape().getBytes(StandardCharsets.UTF_8);
+        } catch (RuntimeException | LinkageError e) {
+            body = e.toString().getBytes(StandardCharsets.UTF_8);
+            status = 500;
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+
+        return;
+    }
+}
@@ -0,0 +1,175 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bytedeco.javacpp.*;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+// Cheap occupancy test run before segmentation.
+// Keeps a background model of the depth frame sampled every STEP pixels and updated incrementally with a
+// running average. A frame is idle when fewer than minCells samples differ from the background by more than
+// the motion threshold; idle frames skip segmentation, tracking only ages the passengers.
+public class MotionGate {
+
+    // Sampling step of the background model [pixels]
+    private static final int STEP = 8;
+
+    // Background learning rate: 1 / 2^LEARN_SHIFT of the difference per frame
+    private static final int LEARN_SHIFT = 5;
+
+    // Fixed point fraction bits of the background model
+    private static final int FRACTION_BITS = 8;
+
+    // Variables
+    private final int imageWidth;
+    private final int imageHeight;
+    private final int cols;
+    private final int rows;
+
+    private final int[] background;
+    private final short[] row;
+
+    private boolean initialized = false;
+
+    // Active frames processed after the last motion, so tracks can complete their crossing
+    private int holdFrames;
+    private int hold = 0;
+
+    private volatile int thresholdCentimeters = 10;
+    private volatile int minCells = 4;
+
+    // Statistics
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong idleFrames = new AtomicLong();
+    private final AtomicLong activeCpuNanos = new AtomicLong();
+    private final AtomicLong idleCpuNanos = new AtomicLong();
+    private final LatencyStats gateStats = new LatencyStats("gate");
+
+    // Constructor
+    MotionGate(int width, int height, int fps) {
+        imageWidth = width;
+        imageHeight = height;
+
+        cols = (imageWidth + STEP - 1) / STEP;
+        rows = (imageHeight + STEP - 1) / STEP;
+
+        background = new int[cols * rows];
+        row = new short[imageWidth];
+
+        holdFrames = fps / 2;
+    }
+
+    // Selectors
+    public long getFrames() {return frames.get();}
+    public long getIdleFrames() {return idleFrames.get();}
+    public LatencyStats getGateStats() {return gateStats;}
+
+    public double getIdleRatio() {
+        long n = frames.get();
+        return n == 0 ? 0 : (double)idleFrames.get() / n;
+    }
+
+    // Segmentation CPU time saved by idle frames [milliseconds]: idle frames at the cost of an active frame,
+    // minus what the idle frames actually cost
+    public double getSavedCpuMillis() {
+        long idle = idleFrames.get();
+        long active = frames.get() - idle;
+
+        if(active == 0)
+            return 0;
+
+        return (idle * ((double)activeCpuNanos.get() / active) - idleCpuNanos.get()) / 1e6;
+    }
+
+    // Methods
+
+    // Depth change that counts as motion [centimeters]
+    public void setThresholdCentimeters(int thresholdCentimeters) {
+        this.thresholdCentimeters = thresholdCentimeters;
+    }
+
+    // Samples that must change for the frame to be active
+    public void setMinCells(int minCells) {
+        this.minCells = Math.max(1, minCells);
+    }
+
+    public void setHoldFrames(int holdFrames) {
+        this.holdFrames = Math.max(0, holdFrames);
+    }
+
+    // Compares the depth frame with the background and updates the background. Returns true when nothing moved.
+    public boolean isIdle(IplImage depthImage, float scale) {
+
+        long t0 = System.nanoTime();
+
+        final int threshold = (int)(thresholdCentimeters / (100 * scale)) << FRACTION_BITS;
+        final int step = depthImage.widthStep() / 2;
+
+        ShortPointer depth = new ShortPointer(depthImage.imageData());
+
+        int changed = 0;
+
+        for(int r = 0; r < rows; r++) {
+            depth.position((long)(r * STEP) * step).get(row, 0, imageWidth);
+
+            for(int c = 0, i = r * cols; c < cols; c++, i++) {
+                int sample = (row[c * STEP] & 0xFFFF) << FRACTION_BITS;
+
+                // No data: unknown, neither motion nor background
+                if(sample == 0)
+                    continue;
+
+                int diff = sample - background[i];
+
+                if(!initialized || background[i] == 0) {
+                    background[i] = sample;
+                    continue;
+                }
+
+                if(diff > threshold || diff < -threshold)
+                    changed++;
+
+                background[i] += diff >> LEARN_SHIFT;
+            }
+        }
+
+        depth.position(0);
+
+        boolean idle = initialized && changed < minCells;
+        initialized = true;
+
+        if(!idle)
+            hold = holdFrames;
+        else if(hold > 0) {
+            hold--;
+            idle = false;
+        }
+
+        frames.incrementAndGet();
+        if(idle)
+            idleFrames.incrementAndGet();
+
+        gateStats.record(System.nanoTime() - t0);
+
+        return idle;
+    }
+
+    // Accounts the CPU time spent by the segmentation stage on a frame
+    public void recordCpu(boolean idle, long cpuNanos) {
+        (idle ? idleCpuNanos : activeCpuNanos).addAndGet(cpuNanos);
+    }
+
+    public void reset() {
+        frames.set(0);
+        idleFrames.set(0);
+        activeCpuNanos.set(0);
+        idleCpuNanos.set(0);
+        gateStats.reset();
+
+        return;
+    }
+
+    public String toString() {
+        return String.format("gate      idle=%d/%d (%.1f%%) saved=%.0f ms cpu", idleFrames.get(), frames.get(),
+                             100 * getIdleRatio(), getSavedCpuMillis());
+    }
+}
@@ -0,0 +1,32 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+// Accounting of the native images allocated by the counters.
+// Images are meant to be allocated once and reused: a growing live count is a leak.
+public final class NativeImages {
+
+    private static final AtomicLong allocated = new AtomicLong();
+    private static final AtomicLong released = new AtomicLong();
+
+    private NativeImages() {
+    }
+
+    // Selectors
+    public static long getAllocated() {return allocated.get();}
+    public static long getReleased() {return released.get();}
+    public static long getLive() {return allocated.get() - released.get();}
+
+    // Methods
+    public static IplImage create(int width, int height, int depth, int channels) {
+        allocated.incrementAndGet();
+        return IplImage.create(width, height, depth, channels);
+    }
+
+    public static void release(IplImage image) {
+        released.incrementAndGet();
+        image.release();
+
+        return;
+    }
+}
@@ -0,0 +1,118 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.bytedeco.javacpp.*;
+import org.bytedeco.javacpp.annotation.*;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+// Segmentation stage in native code (cpp_src/segment.h): threshold, blur, contours and area filter in a single
+// JNI call, detections returned through a preallocated direct buffer. Tracking and counting stay in Java.
+// Built by CompileNative.sh with JavaCPP against the OpenCV of the JavaCV presets (3.2), cpp_src on the include
+// path. The library is optional: isAvailable() tells if it was loaded.
+@Properties(inherit = org.bytedeco.javacpp.presets.opencv_imgproc.class,
+            value = @Platform(include = "segment.h"))
+public class NativeSegmenter {
+
+    // Detection record: x, y, width, height [int] area [double] center x, y [float]
+    private static final int RECORD_SIZE = 32;
+
+    private static final boolean available;
+
+    static {
+        boolean loaded = false;
+
+        try {
+            Loader.load();
+            loaded = true;
+        } catch (Throwable e) {
+            // Missing library or OpenCV version mismatch: the Java path is used
+        }
+
+        available = loaded;
+    }
+
+    // Variables
+    private final BytePointer lut = new BytePointer(65536);
+
+    private int capacity;
+    private BytePointer output;
+    private ByteBuffer records;
+
+    // Constructor
+    NativeSegmenter(int maxDetections) {
+        allocate(maxDetections);
+    }
+
+    // Selectors
+    public static boolean isAvailable() {return available;}
+
+    // Methods
+
+    // Threshold lookup table, only copied when it changes
+    public void setLut(byte[] table) {
+        lut.position(0).put(table, 0, 65536);
+        return;
+    }
+
+    // Thresholds and blurs rows [haloTop, haloBottom), adds the detections found in [roiTop, roiBottom) with
+    // the occupants estimated by cfg. The band of the mask is copied to trackImage unless it is null.
+    public void segment(IplImage depthImage, IplImage frameImage, IplImage maskImage, IplImage trackImage,
+                        int haloTop, int haloBottom, int roiTop, int roiBottom,
+                        CounterConfig cfg, Detections detections) {
+
+        int found;
+
+        while(true) {
+            found = rspcnSegment(depthImage.imageData(), depthImage.widthStep(),
+                                 frameImage.imageData(), maskImage.imageData(),
+                                 trackImage != null ? trackImage.imageData() : null, frameImage.widthStep(),
+                                 frameImage.width(), frameImage.height(), lut, cfg.getBlurSize(),
+                                 haloTop, haloBottom, roiTop, roiBottom,
+                                 cfg.getAreaThreshold(), 0, output, capacity);
+
+            if(found <= capacity)
+                break;
+
+            // Rare crowded frame: run again with room for every detection
+            allocate(found * 2);
+        }
+
+        for(int i = 0; i < found; i++) {
+            int offset = i * RECORD_SIZE;
+            double area = records.getDouble(offset + 16);
+
+            detections.add(records.getInt(offset), records.getInt(offset + 4),
+                           records.getInt(offset + 8), records.getInt(offset + 12),
+                           area, cfg.estimateOccupants(area));
+        }
+
+        return;
+    }
+
+    public void release() {
+        lut.deallocate();
+        output.deallocate();
+
+        return;
+    }
+
+    private void allocate(int maxDetections) {
+
+        if(output != null)
+            output.deallocate();
+
+        capacity = maxDetections;
+        output = new BytePointer(capacity * RECORD_SIZE);
+        records = output.asByteBuffer().order(ByteOrder.nativeOrder());
+
+        return;
+    }
+
+    private static native int rspcnSegment(@Cast("const uint16_t*") Pointer depth, int depthStep,
+                                           @Cast("uint8_t*") Pointer frame, @Cast("uint8_t*") Pointer mask,
+                                           @Cast("uint8_t*") Pointer track, int step,
+                                           int width, int height, @Cast("const uint8_t*") Pointer lut, int blurSize,
+                                           int haloTop, int haloBottom, int roiTop, int roiBottom,
+                                           double areaThreshold, int flags, @Cast("char*") Pointer out, int capacity);
+}
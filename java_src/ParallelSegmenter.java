@@ -0,0 +1,258 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.bytedeco.javacpp.*;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_imgproc.*;
+
+// Threshold and blur of a depth frame, or of a range of its rows, split in horizontal bands processed on a
+// private ForkJoin pool.
+// Every band is blurred together with blurSize / 2 halo rows above and below it into its own scratch image,
+// then only its own rows are copied into the mask: the halo rows absorb the kernel border effects, so the
+// mask is identical to a single cvSmooth over the whole frame. The box blur works the same way on the packed
+// thresholded frame, every band summing its halo rows with its own BoxBlur.
+public class ParallelSegmenter {
+
+    // Band steps
+    private static final int THRESHOLD = 0;
+    private static final int GAUSSIAN = 1;
+    private static final int BOX = 2;
+
+    // Variables
+    private final int threads;
+    private final ForkJoinPool pool;
+
+    private final int imageWidth;
+    private final int imageHeight;
+
+    private final Band[] bands;
+    private final int maxBandRows;
+
+    private short[] depthPixels;
+    private byte[] framePixels;
+    private byte[] maskPixels;
+
+    // Work of the frame being processed, read by the band tasks
+    private IplImage src;
+    private IplImage dst;
+    private byte[] lut;
+    private int blurSize;
+
+    private class Band {
+        int first;
+        int rows;
+
+        // Headers over the rows of the shared frame and mask images, the data is never copied
+        final IplImage frameRows = IplImage.createHeader(1, 1, IPL_DEPTH_8U, 1);
+        final IplImage maskRows  = IplImage.createHeader(1, 1, IPL_DEPTH_8U, 1);
+
+        // Blurred band with its halo rows
+        IplImage scratch;
+        int halo = -1;
+
+        void threshold() {
+
+            final int offset = first * imageWidth;
+            final int count  = rows  * imageWidth;
+
+            RSPCN.readRows(new ShortPointer(src.imageData()), src.widthStep() / 2, first, rows, imageWidth, depthPixels);
+
+            final byte[] map = lut;
+            for(int i = offset; i < offset + count; i++)
+                framePixels[i] = map[depthPixels[i] & 0xFFFF];
+
+            RSPCN.writeRows(new BytePointer(dst.imageData()), dst.widthStep(), first, rows, imageWidth, framePixels);
+
+            return;
+        }
+
+        void blur() {
+
+            int radius = blurSize / 2;
+
+            int top    = Math.max(0, first - radius);
+            int bottom = Math.min(imageHeight, first + rows + radius);
+
+            if(radius != halo) {
+                if(scratch != null)
+                    NativeImages.release(scratch);
+
+                scratch = NativeImages.create(imageWidth, maxBandRows + 2 * radius, IPL_DEPTH_8U, 1);
+                halo = radius;
+            }
+
+            setRows(frameRows, src, top, bottom - top);
+            setRows(maskRows, dst, first, rows);
+
+            cvSetImageROI(scratch, cvRect(0, 0, imageWidth, bottom - top));
+            cvSmooth(frameRows, scratch, CV_GAUSSIAN, blurSize, blurSize, 0, 0);
+
+            cvSetImageROI(scratch, cvRect(0, first - top, imageWidth, rows));
+            cvCopy(scratch, maskRows);
+            cvResetImageROI(scratch);
+
+            return;
+        }
+
+        // Running sums over the packed frame of the threshold step, see BoxBlur
+        BoxBlur box;
+
+        void boxBlur() {
+
+            int radius = blurSize / 2;
+
+            int top    = Math.max(0, first - radius);
+            int bottom = Math.min(imageHeight, first + rows + radius);
+
+            if(box == null)
+                box = new BoxBlur(imageWidth);
+
+            box.blur(framePixels, blurSize, top, bottom, first, first + rows, maskPixels);
+
+            RSPCN.writeRows(new BytePointer(dst.imageData()), dst.widthStep(), first, rows, imageWidth, maskPixels);
+
+            return;
+        }
+
+        void release() {
+            if(scratch != null)
+                NativeImages.release(scratch);
+
+            return;
+        }
+    }
+
+    private final class BandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final int step;
+
+        BandTask(int fromBand, int toBand, int bandStep) {
+            from = fromBand;
+            to = toBand;
+            step = bandStep;
+        }
+
+        protected void compute() {
+
+            if(to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new BandTask(from, mid, step), new BandTask(mid, to, step));
+                return;
+            }
+
+            if(bands[from].rows == 0)
+                return;
+
+            if(step == GAUSSIAN)
+                bands[from].blur();
+            else if(step == BOX)
+                bands[from].boxBlur();
+            else
+                bands[from].threshold();
+
+            return;
+        }
+    }
+
+    // Constructor
+    ParallelSegmenter(int width, int height, int threadCount) {
+        threads = threadCount;
+        imageWidth = width;
+        imageHeight = height;
+
+        pool = new ForkJoinPool(threads);
+
+        // A couple of bands per thread balances uneven bands without making the halos dominant
+        int count = Math.min(imageHeight, 2 * threads);
+        bands = new Band[count];
+
+        for(int i = 0; i < count; i++)
+            bands[i] = new Band();
+
+        maxBandRows = (imageHeight + count - 1) / count;
+
+        depthPixels = new short[imageWidth * imageHeight];
+        framePixels = new byte[imageWidth * imageHeight];
+        maskPixels = new byte[imageWidth * imageHeight];
+    }
+
+    // Selectors
+    public int getThreads() {return threads;}
+    public int getBands() {return bands.length;}
+    public int getWidth() {return imageWidth;}
+    public int getHeight() {return imageHeight;}
+
+    // Methods
+
+    // Thresholds rows [first, first + rows) of the 16bit depth image into the 8bit frame image through the lookup table
+    public void threshold(IplImage depthImage, IplImage frameImage, byte[] depthLut, int first, int rows) {
+        src = depthImage;
+        dst = frameImage;
+        lut = depthLut;
+
+        layout(first, rows);
+
+        pool.invoke(new BandTask(0, bands.length, THRESHOLD));
+
+        return;
+    }
+
+    // Gaussian blur of rows [first, first + rows) of the frame image into the mask image, same result as
+    // cvSmooth(frame, mask, CV_GAUSSIAN, size, size) on those rows. Frame rows within size / 2 of the range are read.
+    public void blur(IplImage frameImage, IplImage maskImage, int size, int first, int rows) {
+        src = frameImage;
+        dst = maskImage;
+        blurSize = size;
+
+        layout(first, rows);
+
+        pool.invoke(new BandTask(0, bands.length, GAUSSIAN));
+
+        return;
+    }
+
+    // Box blur of rows [first, first + rows) of the frame thresholded by the last threshold() call into the mask
+    // image, same result as a serial BoxBlur on those rows
+    public void boxBlur(IplImage maskImage, int size, int first, int rows) {
+        dst = maskImage;
+        blurSize = size;
+
+        layout(first, rows);
+
+        pool.invoke(new BandTask(0, bands.length, BOX));
+
+        return;
+    }
+
+    public void release() {
+        pool.shutdown();
+
+        for(Band band : bands)
+            band.release();
+
+        return;
+    }
+
+    // Splits rows [first, first + rows) evenly between the bands
+    private void layout(int first, int rows) {
+
+        for(int i = 0; i < bands.length; i++) {
+            bands[i].first = first + (int)((long)i * rows / bands.length);
+            bands[i].rows  = first + (int)((long)(i + 1) * rows / bands.length) - bands[i].first;
+        }
+
+        return;
+    }
+
+    // Points header at rows [first, first + count) of image
+    private static void setRows(IplImage header, IplImage image, int first, int count) {
+        cvInitImageHeader(header, cvSize(image.width(), count), image.depth(), image.nChannels(), IPL_ORIGIN_TL, 4);
+        cvSetData(header, new BytePointer(image.imageData()).position((long)first * image.widthStep()), image.widthStep());
+
+        return;
+    }
+}
@@ -1,4 +1,3 @@
-import java.util.Vector;
 import java.util.Random;
 
 import org.bytedeco.javacv.*;
@@ -8,49 +7,119 @@ import static org.bytedeco.javacpp.opencv_core.*;
 public class Passenger {
     private static final int MAX_TRACK_LENGTH = 40;
 
-    private CvPoint center;
-    private Vector<CvPoint> tracks = new Vector<CvPoint>(1,1);
+    // Weight of a new measurement in the velocity estimate
+    private static final float VELOCITY_GAIN = 0.5f;
+
+    // Track colors shared by every passenger
+    private static final int PALETTE_SIZE = 32;
+    private static final CvScalar[] PALETTE = new CvScalar[PALETTE_SIZE];
+
+    static {
+        Random randomGenerator = new Random(PALETTE_SIZE);
+        for(int i = 0; i < PALETTE_SIZE; i++)
+            PALETTE[i] = new CvScalar(randomGenerator.nextInt(255),randomGenerator.nextInt(255),randomGenerator.nextInt(255), 255);
+    }
+
+    // Track history ring buffer. head is the index of the oldest point
+    private int[] tracksX = new int[MAX_TRACK_LENGTH];
+    private int[] tracksY = new int[MAX_TRACK_LENGTH];
+    private int head = 0;
+    private int length = 0;
 
     private int pid;
     private int age;
-    private CvScalar trackColor;
+
+    // Constant velocity estimate [pixels per captured frame], only updated by observe()
+    private float velocityX = 0;
+    private float velocityY = 0;
+    private int observations = 0;
+
+    // Captured frames since the last observation
+    private int unseenFrames = 0;
 
     // Constructor
-    Passenger(int id, CvPoint c, int newAge) {
+    Passenger(int id, int x, int y, int newAge) {
         pid = id;
         age = newAge;
 
-        CvPoint newCenter = new CvPoint(c.x(), c.y());
-        tracks.add(newCenter);
-
-        Random randomGenerator = new Random();
-        CvScalar randColor = new CvScalar(randomGenerator.nextInt(255),randomGenerator.nextInt(255),randomGenerator.nextInt(255), 255);
-        trackColor = randColor;
-
+        updateCoords(x, y);
+        observations = 1;
     }
 
     // Selectors
     public int getPid() {return pid;}
     public int getAge() {return age;}
 
-    public Vector<CvPoint> getTracks() {return tracks;}
-    public CvScalar getTrackColor() {return trackColor;}
+    public CvScalar getTrackColor() {return PALETTE[pid % PALETTE_SIZE];}
+
+    // Track points are indexed from 0 (oldest) to getTrackLength() - 1 (current)
+    public int getTrackLength() {return length;}
+    public int getTrackX(int i) {return tracksX[(head + i) % MAX_TRACK_LENGTH];}
+    public int getTrackY(int i) {return tracksY[(head + i) % MAX_TRACK_LENGTH];}
+
+    public int getCurrentX() {return getTrackX(length - 1);}
+    public int getCurrentY() {return getTrackY(length - 1);}
+    public int getLastX() {return getTrackX(length - 2);}
+    public int getLastY() {return getTrackY(length - 2);}
+
+    public float getVelocityX() {return velocityX;}
+    public float getVelocityY() {return velocityY;}
+    public boolean hasVelocity() {return observations > 1;}
 
-    public CvPoint getCurrentPoint() {return tracks.elementAt(tracks.size() - 1);}
-    public CvPoint getLastPoint() {return tracks.elementAt(tracks.size() - 2);}
+    // Position expected now: the last observed one moved by the velocity over the frames it was not seen
+    public int getPredictedX() {return getCurrentX() + Math.round(velocityX * unseenFrames);}
+    public int getPredictedY() {return getCurrentY() + Math.round(velocityY * unseenFrames);}
 
     // Methods
-    public void updateCoords(CvPoint newCenter) {
-        tracks.add(newCenter);
+    public void updateCoords(int x, int y) {
 
-        if(tracks.size() > MAX_TRACK_LENGTH) {
-            // Remove oldest track record
-            tracks.remove(0);
+        if(length < MAX_TRACK_LENGTH) {
+            tracksX[(head + length) % MAX_TRACK_LENGTH] = x;
+            tracksY[(head + length) % MAX_TRACK_LENGTH] = y;
+            length++;
+        }
+        else {
+            // Overwrite oldest track record
+            tracksX[head] = x;
+            tracksY[head] = y;
+            head = (head + 1) % MAX_TRACK_LENGTH;
         }
 
         return;
     }
 
+    // Adds a position measured after the frames counted by advance(), updating the velocity estimate
+    public void observe(int x, int y) {
+
+        if(unseenFrames > 0) {
+            float vx = (float)(x - getCurrentX()) / unseenFrames;
+            float vy = (float)(y - getCurrentY()) / unseenFrames;
+
+            // The first measurement is taken whole, the next ones are smoothed
+            if(observations == 1) {
+                velocityX = vx;
+                velocityY = vy;
+            }
+            else {
+                velocityX += VELOCITY_GAIN * (vx - velocityX);
+                velocityY += VELOCITY_GAIN * (vy - velocityY);
+            }
+
+            observations++;
+        }
+
+        unseenFrames = 0;
+        updateCoords(x, y);
+
+        return;
+    }
+
+    // Frames captured since the previous processed frame
+    public void advance(int frames) {
+        unseenFrames += frames;
+        return;
+    }
+
     public void resetAge() {
         age = 0;
         return;
@@ -60,4 +129,9 @@ public class Passenger {
         age++;
         return;
     }
+
+    public void updateAge(int frames) {
+        age += frames;
+        return;
+    }
 }
@@ -0,0 +1,10 @@
+import java.util.Vector;
+
+public interface PassengerMatcher {
+
+    // Associates the objects detected in one frame with the tracked passengers.
+    // On return assignment[i] holds the index in passengers of the passenger matched to
+    // detection i, or -1 if detection i is a new passenger.
+    void match(Vector<Passenger> passengers, Detections detections, int xNear, int yNear, int[] assignment);
+
+}
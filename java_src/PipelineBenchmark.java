@@ -0,0 +1,670 @@
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Vector;
+
+import org.bytedeco.javacpp.indexer.UByteRawIndexer;
+import org.bytedeco.javacpp.indexer.UShortRawIndexer;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+// Headless throughput benchmark of the counting pipeline (bare metal path, no CanvasFrame).
+// Drives RSPCN stage by stage with synthetic depth frames and reports, for every blob count,
+// throughput, per-stage p50/p99 latency and allocated bytes per frame. The contours stage times the blob
+// extraction, by cvFindContours or by run labeling (-labeling on). At a processing scale (-scale 2|4) or with
+// an adaptive frame rate (-stride n) every blob count also runs at full resolution and full rate first, to compare
+// frame rate and counts. Frame rates are camera frames per second, skipped frames included. Parallel (-threads n)
+// and native (-native on) segmentation of the last frame are checked against the serial Java path, the run exits
+// with status 1 when they differ. With -matcher every blob count also replays the ground truth trajectories of the
+// blobs through the listed passenger matchers (0: legacy, 1: grid, 2: grid global), one detection per blob, and
+// reports match time, ID swaps and lost tracks. With -lut on the threshold of every blob count is also timed
+// through the lookup table and through the per-pixel indexer loop it replaced, outputs must be identical. With
+// -tracks on the track of one passenger per blob is updated in the Passenger ring buffer and in the
+// Vector<CvPoint> it replaced.
+//
+// Usage: java PipelineBenchmark [-preset R200|SR300] [-blobs 1,10,50,200] [-radius px] [-frames n] [-warmup n] [-threads n] [-roi rows]
+//                               [-native on|off] [-labeling on|off] [-boxblur on|off] [-blursize n] [-scale 1|2|4]
+//                               [-predict on|off] [-stride n] [-matcher 0|1|2[,...]]
+//                               [-lut on|off] [-tracks on|off]
+public class PipelineBenchmark {
+
+    private static final com.sun.management.ThreadMXBean threadBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Runs whose parallel, native or lookup table segmentation, or ring buffer tracks, differed from the reference path
+    private static int mismatches = 0;
+
+    // Frames a passenger of the matcher comparison survives without a detection
+    private static final int MATCH_MAX_AGE = 30;
+
+    private static final String[] MATCHER_NAMES = {"legacy", "grid", "grid global"};
+
+    public static void main(String[] args) throws Exception {
+
+        String preset = "R200";
+        String blobs = "1,10,50,200";
+        int radius = 12;
+        int frames = 2000;
+        int warmup = 500;
+        int threads = 1;
+        int roi = 0;
+        boolean nativeSegmentation = false;
+        boolean labeling = false;
+        boolean boxBlur = false;
+        int blurSize = 3;
+        int scale = 1;
+        boolean predict = false;
+        int stride = 1;
+        String matchers = null;
+        boolean lut = false;
+        boolean tracks = false;
+
+        for(int i = 0; i + 1 < args.length; i += 2) {
+            if(args[i].equals("-preset"))
+                preset = args[i + 1];
+            else if(args[i].equals("-blobs"))
+                blobs = args[i + 1];
+            else if(args[i].equals("-radius"))
+                radius = Integer.parseInt(args[i + 1]);
+            else if(args[i].equals("-frames"))
+                frames = Integer.parseInt(args[i + 1]);
+            else if(args[i].equals("-warmup"))
+                warmup = Integer.parseInt(args[i + 1]);
+            else if(args[i].equals("-threads"))
+                threads = Integer.parseInt(args[i + 1]);
+            else if(args[i].equals("-roi"))
+                roi = Integer.parseInt(args[i + 1]);
+            else if(args[i].equals("-native"))
+                nativeSegmentation = args[i + 1].equals("on");
+            else if(args[i].equals("-labeling"))
+                labeling = args[i + 1].equals("on");
+            else if(args[i].equals("-boxblur"))
+                boxBlur = args[i + 1].equals("on");
+            else if(args[i].equals("-blursize"))
+                blurSize = Integer.parseInt(args[i + 1]);
+            else if(args[i].equals("-scale"))
+                scale = Integer.parseInt(args[i + 1]);
+            else if(args[i].equals("-predict"))
+                predict = args[i + 1].equals("on");
+            else if(args[i].equals("-stride"))
+                stride = Integer.parseInt(args[i + 1]);
+            else if(args[i].equals("-matcher"))
+                matchers = args[i + 1];
+            else if(args[i].equals("-lut"))
+                lut = args[i + 1].equals("on");
+            else if(args[i].equals("-tracks"))
+                tracks = args[i + 1].equals("on");
+        }
+
+        if(matchers != null) {
+            for(String mode : matchers.split(",")) {
+                int m = Integer.parseInt(mode.trim());
+
+                if(m < 0 || m >= MATCHER_NAMES.length) {
+                    System.out.println("Error: unknown matcher mode " + m + " (0: legacy, 1: grid, 2: grid global)");
+                    return;
+                }
+            }
+        }
+
+        String cameraName = preset.equals("SR300") ? "Intel RealSense SR300" : "Intel RealSense R200";
+
+        System.out.println("Preset: " + cameraName + ", blob radius " + radius + " px, " + frames + " frames (" + warmup + " warmup), "
+                           + threads + " segmentation threads, " + (boxBlur ? "box" : "Gaussian") + " blur " + blurSize
+                           + (roi > 0 ? ", band of +-" + roi + " rows" : "")
+                           + (nativeSegmentation ? ", native segmentation" : "") + (labeling ? ", run labeling" : "")
+                           + (scale > 1 ? ", processing at 1/" + scale + " scale" : "")
+                           + (predict ? ", motion prediction" : "") + (stride > 1 ? ", frame stride up to " + stride : ""));
+
+        if(nativeSegmentation && !NativeSegmenter.isAvailable()) {
+            System.out.println("Native segmentation library not available, see CompileNative.sh");
+            return;
+        }
+
+        for(String count : blobs.split(",")) {
+            int blobCount = Integer.parseInt(count.trim());
+
+            double[] full = null;
+
+            if(scale > 1 || stride > 1)
+                full = run(cameraName, blobCount, radius, frames, warmup, threads, roi, nativeSegmentation, labeling,
+                           boxBlur, blurSize, 1, predict, 1);
+
+            double[] result = run(cameraName, blobCount, radius, frames, warmup, threads, roi, nativeSegmentation, labeling,
+                                  boxBlur, blurSize, scale, predict, stride);
+
+            if(full != null)
+                System.out.println(String.format("  1/%d scale, stride up to %d: %.2fx the full rate frame rate, count in %d/%d, count out %d/%d",
+                                   scale, stride, result[0] / full[0], (long)result[1], (long)full[1], (long)result[2], (long)full[2]));
+
+            if(matchers != null) {
+                for(String mode : matchers.split(","))
+                    compareMatcher(cameraName, blobCount, radius, frames, warmup, Integer.parseInt(mode.trim()));
+            }
+
+            if(lut)
+                compareLut(cameraName, blobCount, radius, frames, warmup);
+
+            if(tracks)
+                compareTracks(blobCount, frames, warmup);
+        }
+
+        // A faster path that does not count like the reference is a failed run
+        if(mismatches > 0) {
+            System.out.println("FAILED: results differ from the reference path in " + mismatches + " run(s)");
+            System.exit(1);
+        }
+
+        return;
+    }
+
+    // Returns frames/s, count in and count out
+    private static double[] run(String cameraName, int blobCount, int radius, int frames, int warmup, int threads, int roi,
+                                boolean nativeSegmentation, boolean labeling, boolean boxBlur, int blurSize, int scale,
+                                boolean predict, int stride) throws Exception {
+
+        SyntheticFrameSource source = new SyntheticFrameSource(cameraName, blobCount, radius, 42);
+        RSPCN counter = new RSPCN(source);
+
+        counter.setBareMetalMode(true);
+        counter.setSegmentationThreads(threads);
+        counter.setRoiHalfHeight(roi);
+        counter.setNativeSegmentation(nativeSegmentation);
+        counter.setBlobExtraction(labeling);
+        counter.setBoxBlur(boxBlur);
+        counter.setBlurSize(blurSize);
+        counter.setProcessingScale(scale);
+        counter.setMotionPrediction(predict);
+        counter.setMaxFrameStride(stride);
+        // Blobs are much smaller than real passengers seen from the ceiling
+        counter.setAreaThreshold((int)(Math.PI * radius * radius / 2));
+        counter.setXNear(2 * radius);
+        counter.setYNear(2 * radius);
+
+        counter.open();
+
+        FrameBuffers buffers = new FrameBuffers(counter.getImageWidth(), counter.getImageHeight());
+
+        long[] allocated = new long[3];
+        long tid = Thread.currentThread().getId();
+        long start = 0;
+        long skipped = 0;
+        long processed = 0;
+        boolean measuring = false;
+
+        // Warmup and measured frames are camera frames: a strided run covers the same blob motion as a full
+        // rate one, with fewer frames processed
+        while(source.getFrames() < warmup + frames) {
+
+            if(!measuring && source.getFrames() >= warmup) {
+                counter.resetLatencyStats();
+                allocated[0] = allocated[1] = allocated[2] = 0;
+                skipped = counter.getSkippedFrames();
+                start = System.nanoTime();
+                measuring = true;
+            }
+
+            long a0 = threadBean.getThreadAllocatedBytes(tid);
+            counter.captureFrame(buffers);
+            long a1 = threadBean.getThreadAllocatedBytes(tid);
+            counter.segmentFrame(buffers);
+            long a2 = threadBean.getThreadAllocatedBytes(tid);
+            counter.trackPassengers(buffers);
+            long a3 = threadBean.getThreadAllocatedBytes(tid);
+
+            allocated[0] += a1 - a0;
+            allocated[1] += a2 - a1;
+            allocated[2] += a3 - a2;
+
+            if(measuring)
+                processed++;
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        skipped = counter.getSkippedFrames() - skipped;
+
+        double[] result = {(processed + skipped) / seconds, counter.getCnt_in(), counter.getCnt_out()};
+
+        System.out.println();
+        System.out.println(String.format("%d blobs @%dx%d%s: %.1f frames/s, count in %d, count out %d",
+                           blobCount, counter.getImageWidth(), counter.getImageHeight(), scale > 1 ? " (1/" + scale + ")" : "",
+                           result[0], counter.getCnt_in(), counter.getCnt_out()));
+
+        if(stride > 1)
+            System.out.println(String.format("  stride     %d camera frames, %d processed, %d skipped",
+                               processed + skipped, processed, skipped));
+
+        for(LatencyStats stats : counter.getLatencyStats()) {
+            if(stats.getCount() > 0)
+                System.out.println("  " + stats);
+        }
+
+        System.out.println(String.format("  allocated  capture=%d B/frame segment=%d B/frame track=%d B/frame",
+                           allocated[0] / processed, allocated[1] / processed, allocated[2] / processed));
+
+        if(threads > 1 && !nativeSegmentation) {
+            // Segment the last frame again on the serial path, the masks must match bit for bit
+            IplImage parallelMask = buffers.getProcessingMaskImage().clone();
+
+            counter.setSegmentationThreads(1);
+            counter.segmentFrame(buffers);
+
+            // Only the processed band is compared, rows outside of it are not updated
+            CvRect band = processingBand(buffers, roi);
+            cvSetImageROI(parallelMask, band);
+            cvSetImageROI(buffers.getProcessingMaskImage(), band);
+
+            double diff = cvNorm(parallelMask, buffers.getProcessingMaskImage(), CV_L1, null);
+
+            cvResetImageROI(buffers.getProcessingMaskImage());
+
+            if(diff != 0)
+                mismatches++;
+
+            System.out.println("  parallel segmentation " + (diff == 0 ? "identical to serial" : "DIFFERS from serial, L1 " + diff));
+
+            parallelMask.release();
+        }
+
+        if(nativeSegmentation) {
+            // Segment the last frame again on the Java path, thresholded band and detections must match
+            IplImage nativeFrame = buffers.getProcessingFrameImage().clone();
+            Detections nativeDetections = copy(buffers.getDetections());
+
+            // The native path extracts contours, run labeling would report pixel counts as areas
+            counter.setNativeSegmentation(false);
+            counter.setBlobExtraction(false);
+            counter.segmentFrame(buffers);
+
+            CvRect band = processingBand(buffers, roi);
+            cvSetImageROI(nativeFrame, band);
+            cvSetImageROI(buffers.getProcessingFrameImage(), band);
+
+            double diff = cvNorm(nativeFrame, buffers.getProcessingFrameImage(), CV_L1, null);
+
+            cvResetImageROI(buffers.getProcessingFrameImage());
+
+            boolean same = diff == 0 && sameDetections(nativeDetections, buffers.getDetections(), 0);
+
+            if(!same)
+                mismatches++;
+
+            System.out.println("  native segmentation " + (same ? "identical to Java" : "DIFFERS from Java, threshold L1 " + diff
+                               + ", " + nativeDetections.size() + " native detections, " + buffers.getDetections().size() + " Java detections"));
+
+            nativeFrame.release();
+        }
+
+        if(labeling && !nativeSegmentation) {
+            // Extract the blobs of the last frame again with cvFindContours: every contour blob has the same box,
+            // areas differ by the polygon approximation (see BlobExtractor)
+            Detections labeled = copy(buffers.getDetections());
+
+            counter.setBlobExtraction(false);
+            counter.segmentFrame(buffers);
+
+            Detections contours = buffers.getDetections();
+            boolean[] matched = new boolean[labeled.size()];
+            boolean same = true;
+            double areaDiff = 0;
+            double areaMax = 0;
+
+            for(int j = 0; j < contours.size(); j++) {
+                int i = findBox(labeled, contours, j);
+
+                if(i < 0) {
+                    same = false;
+                    continue;
+                }
+
+                matched[i] = true;
+
+                double diff = labeled.getArea(i) / contours.getArea(j) - 1;
+
+                areaDiff += diff / contours.size();
+                areaMax = Math.max(areaMax, Math.abs(diff));
+            }
+
+            // Blobs only found by labeling are the ones the approximated polygon takes under the threshold
+            int extra = 0;
+
+            for(int i = 0; i < labeled.size(); i++) {
+                if(matched[i])
+                    continue;
+
+                extra++;
+
+                if(labeled.getArea(i) > counter.getAreaThreshold() * 1.15)
+                    same = false;
+            }
+
+            same = same && Math.abs(areaDiff) <= 0.15;
+
+            if(!same)
+                mismatches++;
+
+            System.out.println(String.format("  run labeling %s, %d blobs (%d near the area threshold), area %+.1f%% on average, up to %.1f%%",
+                               same ? "matches contours" : "DIFFERS from contours (" + contours.size() + " contour blobs)",
+                               labeled.size(), extra, areaDiff * 100, areaMax * 100));
+        }
+
+        buffers.release();
+        counter.close();
+
+        return result;
+    }
+
+    // Replays the ground truth trajectories of the synthetic blobs through a passenger matcher and tracks them
+    // like RSPCN.trackPassengers, without segmentation: every blob is one detection. An ID swap is a blob taken
+    // over by a passenger that was following another blob, a lost track a blob that gets a new passenger. A blob
+    // wrapping around the frame starts a new track.
+    private static void compareMatcher(String cameraName, int blobCount, int radius, int frames, int warmup, int mode)
+        throws Exception {
+
+        SyntheticFrameSource source = new SyntheticFrameSource(cameraName, blobCount, radius, 42);
+        RSPCN counter = new RSPCN(source);
+
+        counter.setBareMetalMode(true);
+        counter.setMatcherMode(mode);
+        counter.open();
+
+        int height = counter.getImageHeight();
+        int near = 2 * radius;
+
+        PassengerMatcher matcher = counter.getPassengerMatcher();
+        LatencyStats matchStats = new LatencyStats("match");
+
+        Vector<Passenger> passengers = new Vector<Passenger>(1,1);
+        Detections detections = new Detections(blobCount);
+        int[] assignment = new int[blobCount];
+
+        // Passenger following every blob and its last row
+        int[] owner = new int[blobCount];
+        int[] lastY = new int[blobCount];
+        Arrays.fill(owner, -1);
+
+        int pid = 0;
+        long swaps = 0;
+        long lost = 0;
+
+        for(int i = 0; i < warmup + frames; i++) {
+
+            source.waitForFrames();
+
+            detections.clear();
+
+            for(int b = 0; b < blobCount; b++)
+                detections.add(source.getBlobX(b) - radius, source.getBlobY(b) - radius, near + 1, near + 1,
+                               Math.PI * radius * radius, 1);
+
+            long t0 = System.nanoTime();
+            matcher.match(passengers, detections, near, near, assignment);
+
+            if(i >= warmup)
+                matchStats.record(System.nanoTime() - t0);
+
+            int knownPassengers = passengers.size();
+
+            for(int b = 0; b < blobCount; b++) {
+
+                int cx = detections.getCenterX(b);
+                int cy = detections.getCenterY(b);
+                boolean matched = assignment[b] >= 0 && assignment[b] < knownPassengers;
+                int id;
+
+                if(matched) {
+                    Passenger passenger = passengers.elementAt(assignment[b]);
+                    passenger.updateCoords(cx, cy);
+                    passenger.resetAge();
+                    id = passenger.getPid();
+                }
+                else {
+                    passengers.add(new Passenger(pid, cx, cy, 0));
+                    id = pid++;
+                }
+
+                if(Math.abs(cy - lastY[b]) > height / 2)
+                    owner[b] = -1;
+
+                if(i >= warmup && owner[b] >= 0 && id != owner[b]) {
+                    if(matched)
+                        swaps++;
+                    else
+                        lost++;
+                }
+
+                owner[b] = id;
+                lastY[b] = cy;
+            }
+
+            for(int p = passengers.size() - 1; p >= 0; p--) {
+                passengers.elementAt(p).updateAge(1);
+
+                if(passengers.elementAt(p).getAge() > MATCH_MAX_AGE)
+                    passengers.remove(p);
+            }
+        }
+
+        System.out.println(String.format("  matcher %-11s match p50=%.3fms p99=%.3fms, %d ID swaps, %d lost tracks in %d blob frames",
+                           MATCHER_NAMES[mode], matchStats.getPercentileMillis(50), matchStats.getPercentileMillis(99),
+                           swaps, lost, (long)blobCount * frames));
+
+        counter.close();
+
+        return;
+    }
+
+    // Thresholds the same depth frames through the lookup table of RSPCN.grabFrameImage and through the per-pixel
+    // indexer loop it replaced
+    private static void compareLut(String cameraName, int blobCount, int radius, int frames, int warmup) throws Exception {
+
+        SyntheticFrameSource source = new SyntheticFrameSource(cameraName, blobCount, radius, 42);
+        RSPCN counter = new RSPCN(source);
+
+        counter.setBareMetalMode(true);
+        counter.open();
+
+        FrameBuffers buffers = new FrameBuffers(counter.getImageWidth(), counter.getImageHeight());
+        IplImage loopImage = buffers.getFrameImage().clone();
+
+        LatencyStats lutStats = new LatencyStats("lut");
+        LatencyStats loopStats = new LatencyStats("loop");
+        int threshold = counter.getThresholdCentimeters();
+        boolean same = true;
+
+        for(int i = 0; i < warmup + frames; i++) {
+
+            counter.captureFrame(buffers);
+            IplImage depthImage = buffers.getDepthImage();
+
+            long t0 = System.nanoTime();
+            counter.grabFrameImage(depthImage, buffers.getFrameImage(), threshold);
+            long t1 = System.nanoTime();
+            thresholdPerPixel(depthImage, loopImage, threshold, source.getDepthScale());
+            long t2 = System.nanoTime();
+
+            if(i >= warmup) {
+                lutStats.record(t1 - t0);
+                loopStats.record(t2 - t1);
+            }
+
+            if(same)
+                same = cvNorm(buffers.getFrameImage(), loopImage, CV_L1, null) == 0;
+        }
+
+        if(!same)
+            mismatches++;
+
+        System.out.println(String.format("  lut A/B    lookup table p50=%.3fms p99=%.3fms, per-pixel loop p50=%.3fms p99=%.3fms, %.1fx, %s",
+                           lutStats.getPercentileMillis(50), lutStats.getPercentileMillis(99),
+                           loopStats.getPercentileMillis(50), loopStats.getPercentileMillis(99),
+                           loopStats.getMeanMillis() / lutStats.getMeanMillis(), same ? "identical" : "DIFFERS"));
+
+        loopImage.release();
+        buffers.release();
+        counter.close();
+
+        return;
+    }
+
+    // Appends a point to the track of every passenger each frame and reads the last two points, like the count
+    // of RSPCN.trackPassengers: Passenger ring buffer against the Vector<CvPoint> trimmed from the front
+    // it replaced
+    private static void compareTracks(int passengers, int frames, int warmup) {
+
+        final int maxTrackLength = 40;
+
+        Passenger[] ring = new Passenger[passengers];
+        Vector<Vector<CvPoint>> queue = new Vector<Vector<CvPoint>>(passengers);
+
+        for(int p = 0; p < passengers; p++) {
+            ring[p] = new Passenger(p, p, 0, 0);
+            queue.add(new Vector<CvPoint>(1,1));
+            queue.elementAt(p).add(new CvPoint(p, 0));
+        }
+
+        LatencyStats ringStats = new LatencyStats("ring");
+        LatencyStats queueStats = new LatencyStats("queue");
+        long[] allocated = new long[2];
+        long tid = Thread.currentThread().getId();
+        long checksum = 0;
+
+        for(int i = 0; i < warmup + frames; i++) {
+
+            long a0 = threadBean.getThreadAllocatedBytes(tid);
+            long t0 = System.nanoTime();
+
+            for(int p = 0; p < passengers; p++) {
+                ring[p].updateCoords(p, i);
+                checksum += ring[p].getCurrentY() - ring[p].getLastY();
+            }
+
+            long t1 = System.nanoTime();
+            long a1 = threadBean.getThreadAllocatedBytes(tid);
+
+            for(int p = 0; p < passengers; p++) {
+                Vector<CvPoint> track = queue.elementAt(p);
+                track.add(new CvPoint(p, i));
+
+                if(track.size() > maxTrackLength)
+                    track.remove(0);
+
+                checksum -= track.elementAt(track.size() - 1).y() - track.elementAt(track.size() - 2).y();
+            }
+
+            long t2 = System.nanoTime();
+            long a2 = threadBean.getThreadAllocatedBytes(tid);
+
+            if(i >= warmup) {
+                ringStats.record(t1 - t0);
+                queueStats.record(t2 - t1);
+                allocated[0] += a1 - a0;
+                allocated[1] += a2 - a1;
+            }
+        }
+
+        if(checksum != 0)
+            mismatches++;
+
+        System.out.println(String.format("  tracks     ring buffer p50=%.3fms %d B/frame, Vector<CvPoint> p50=%.3fms %d B/frame, %.1fx, %s",
+                           ringStats.getPercentileMillis(50), allocated[0] / frames,
+                           queueStats.getPercentileMillis(50), allocated[1] / frames,
+                           queueStats.getMeanMillis() / ringStats.getMeanMillis(), checksum == 0 ? "same points" : "DIFFERS"));
+
+        return;
+    }
+
+    // The threshold before the lookup table: one indexer get and put per pixel
+    private static void thresholdPerPixel(IplImage src, IplImage dst, int thresholdCentimeters, float scale) {
+
+        UShortRawIndexer srcIdx = src.createIndexer();
+        UByteRawIndexer dstIdx = dst.createIndexer();
+
+        final int rows = src.height();
+        final int cols = src.width();
+
+        // Intelligent threshold
+        final int thresPixel = (int)(thresholdCentimeters / (100 * scale));
+
+        for(int i = 0; i < rows; i++) {
+
+            for(int j = 0; j < cols; j++) {
+
+                double p = srcIdx.get(i, j, 0);
+
+                // NODATA and farther than the threshold: farthest value
+                if(p > thresPixel || p == 0)
+                    p = 65535;
+
+                dstIdx.put(i, j, 0, 255 - (int)(p * 255.0 / 65535));
+            }
+        }
+
+        srcIdx.release();
+        dstIdx.release();
+
+        return;
+    }
+
+    // Rows of the processing images updated by segmentation: the band of +-roi rows around the counting line at
+    // the processing scale, or the whole image
+    private static CvRect processingBand(FrameBuffers buffers, int roi) {
+
+        int factor = buffers.getProcessingScale();
+        int width = buffers.getWidth() / factor;
+        int height = buffers.getHeight() / factor;
+
+        int half = roi > 0 ? (roi + factor - 1) / factor : height;
+        int top = Math.max(0, height/2 - half);
+
+        return cvRect(0, top, width, Math.min(height, height/2 + half) - top);
+    }
+
+    private static Detections copy(Detections detections) {
+
+        Detections copy = new Detections(detections.size());
+
+        for(int i = 0; i < detections.size(); i++)
+            copy.add(detections.getX(i), detections.getY(i), detections.getWidth(i), detections.getHeight(i), detections.getArea(i),
+                     detections.getOccupants(i));
+
+        return copy;
+    }
+
+    // Index of the detection of a with the box of detection j of b, -1 if there is none
+    private static int findBox(Detections a, Detections b, int j) {
+
+        for(int i = 0; i < a.size(); i++) {
+            if(a.getX(i) == b.getX(j) && a.getY(i) == b.getY(j) && a.getWidth(i) == b.getWidth(j) && a.getHeight(i) == b.getHeight(j))
+                return i;
+        }
+
+        return -1;
+    }
+
+    // Same boxes and areas within a relative tolerance, in any order
+    private static boolean sameDetections(Detections a, Detections b, double areaTolerance) {
+
+        if(a.size() != b.size())
+            return false;
+
+        boolean[] matched = new boolean[b.size()];
+
+        for(int i = 0; i < a.size(); i++) {
+            boolean found = false;
+
+            for(int j = 0; j < b.size() && !found; j++) {
+                if(!matched[j] && a.getX(i) == b.getX(j) && a.getY(i) == b.getY(j) && a.getWidth(i) == b.getWidth(j)
+                   && a.getHeight(i) == b.getHeight(j) && Math.abs(a.getArea(i) - b.getArea(j)) <= areaTolerance * b.getArea(j)) {
+                    matched[j] = true;
+                    found = true;
+                }
+            }
+
+            if(!found)
+                return false;
+        }
+
+        return true;
+    }
+}
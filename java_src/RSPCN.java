@@ -1,11 +1,13 @@
 import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.bytedeco.javacv.*;
 import org.bytedeco.javacpp.*;
 import org.bytedeco.javacpp.indexer.*;
 
-import org.bytedeco.javacpp.RealSense;
 import org.bytedeco.javacpp.RealSense.device;
 
 import static org.bytedeco.javacpp.opencv_core.*;
@@ -17,7 +19,11 @@ public class RSPCN implements Runnable{
     Thread thread;
     private long threadID;
 
-    private device device = null;
+    private FrameSource frameSource = null;
+
+    // Raw depth/color recording, replayable through ReplayFrameSource
+    private boolean rawRecordMode = false;
+    private volatile RawStreamWriter rawWriter = null;
 
     private Vector<Passenger> passengers = new Vector<Passenger>(1,1);
 
@@ -26,35 +32,158 @@ public class RSPCN implements Runnable{
     private int fps;
     private int cameraType;
 
-    private boolean halt = false;
+    private volatile boolean halt = false;
     private boolean bareMetalMode = false;
     private boolean videoRecordMode = false;
+    private boolean pipelinedMode = false;
 
-    private int cnt_out = 0;
-    private int cnt_in = 0;
-
-    private float scale;
+    // Color and track images are only produced when something consumes them, for one frame every
+    // overlayDecimation frames. Without consumers the color stream is not enabled at all (depth only).
+    private boolean consumesFrames = true;
+    private volatile int overlayDecimation = 1;
+    private long capturedFrames = 0;
+    private final AtomicLong overlayFrames = new AtomicLong();
 
-    private int blurSize = 3;
+    // Passenger counters, safe to read and reset from other threads
+    private final CrossingCounter crossings = new CrossingCounter();
 
-    private int maxPassengerAge = 2;
+    // Totals since start, never reset: the monotonic counters of the metrics
+    private final CrossingCounter lifetimeCrossings = new CrossingCounter();
 
-    private int areaThreshold = 10000;  
-    private int max1PassArea  = 60000;
-    private int max2PassArea  = 90000;
+    // Counts in time buckets, not affected by resetCounters
+    private final CountRollup rollup = new CountRollup();
 
-    private int thresholdCentimeters = 43; 
+    private float scale;
 
-    private int xNear = 40;
-    private int yNear = 90;
+    // Tunables. Setters are synchronized and publish a new snapshot, every frame carries the snapshot taken at capture time
+    private volatile CounterConfig config = CounterConfig.DEFAULT;
+
+    // Depth to frame conversion lookup table (u16 depth => u8 frame value)
+    private byte[] depthLut = new byte[65536];
+    private int lutThresholdCentimeters = -1;
+    private float lutScale = Float.NaN;
+
+    private short[] depthPixels;
+    private byte[] framePixels;
+
+    // Durable log of the crossing events
+    private boolean eventLogMode = false;
+    private volatile CrossingEventLog eventLog;
+    private int eventLogQueueSize = 4096;
+
+    // Motion gating: idle frames skip segmentation
+    private volatile boolean motionGateMode = false;
+    private MotionGate motionGate;
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+    // Parallel segmentation in row bands (1: serial)
+    private volatile int segmentationThreads = 1;
+    private ParallelSegmenter segmenter;
+
+    // Segmentation in native code (cpp_src/segment.h), takes over from the Java and parallel paths
+    private volatile boolean nativeSegmentationMode = false;
+    private NativeSegmenter nativeSegmenter;
+
+    // Box blur by running sums instead of the Gaussian blur, fused with the threshold on the serial path
+    private volatile boolean boxBlurMode = false;
+    private BoxBlur boxBlur;
+    private byte[] maskPixels;
+
+    // Processing scale: segmentation runs on depth downsampled by this factor (1: full resolution)
+    private volatile int processingScale = 1;
+    private DepthDownsampler downsampler;
+
+    // Segmentation settings at the processing scale, derived from the frame configuration when it changes
+    private CounterConfig scaledConfig;
+    private CounterConfig scaledConfigSource;
+    private int scaledConfigFactor;
+
+    // Blob extraction by run labeling instead of contours, on the Java and parallel paths
+    private volatile boolean blobExtractionMode = false;
+    private BlobExtractor blobExtractor;
+
+    // Motion prediction: passengers keep a velocity estimate and are matched where they are expected
+    private volatile boolean motionPredictionMode = false;
+
+    // Adaptive frame rate: up to maxFrameStride - 1 camera frames are skipped between processed frames while no
+    // passenger is near the counting line (1: every frame). frameStride is chosen by tracking for the next capture.
+    private volatile int maxFrameStride = 1;
+    private volatile int frameStride = 1;
+    private final AtomicLong skippedFrames = new AtomicLong();
+
+    // Reused frame buffers
+    private FrameBuffers buffers;
+
+    // Pipelined mode: every stage runs on its own thread
+    private volatile FramePipeline pipeline;
+    private int pipelineQueueSize = 2;
+    private int countingQueuePolicy = StageQueue.BACKPRESSURE;
+    private int renderQueuePolicy = StageQueue.DROP_OLDEST;
+
+    // Per-stage latency
+    private LatencyStats captureStats = new LatencyStats("capture");
+    private LatencyStats segmentStats = new LatencyStats("segment");
+    private LatencyStats thresholdStats = new LatencyStats("threshold");
+    private LatencyStats blurStats = new LatencyStats("blur");
+    private LatencyStats contoursStats = new LatencyStats("contours");
+    private LatencyStats trackStats = new LatencyStats("track");
+    private LatencyStats renderStats = new LatencyStats("render");
+    private LatencyStats frameLatencyStats = new LatencyStats("frame");
+    private LatencyStats recordStats = new LatencyStats("record");
+
+    // Metrics, updated by the stages and read by JMX and the scrape endpoint
+    private final MetricsRegistry metrics;
+    private final AtomicLong trackedFrames = new AtomicLong();
+    private final AtomicLong newTracks = new AtomicLong();
+    private final AtomicLong expiredTracks = new AtomicLong();
+    private volatile int activePassengers = 0;
+    private volatile double achievedFps = 0;
+    private long fpsWindowStart = 0;
+    private int fpsWindowFrames = 0;
+
+    // Association between detected objects and tracked passengers
+    private volatile PassengerMatcher passengerMatcher = new LegacyPassengerMatcher();
+    private int[] assignment = new int[16];
+    private int pid = 0;
+
+    // Display and recording
+    private OpenCVFrameConverter.ToIplImage converterToIpl = new OpenCVFrameConverter.ToIplImage();
+
+    private CanvasFrame colorFrame = null;
+    private CanvasFrame trackFrame = null;
+    // private CanvasFrame depthFrame = null;
+
+    // Recording runs on dedicated encoder threads
+    private volatile VideoRecorderSink recorderColor = null;
+    private volatile VideoRecorderSink recorderTrack = null;
+    private int recordingQueueSize = 16;
+    private int recordingDecimation = 1;
+    private int recordingSegmentFrames = 0;
+
+    // Overlay locations
+    private CvPoint cntInLoc;
+    private CvPoint cntOutLoc;
+    private CvFont font = cvFont(1,1);
+
+    private CvScalar colorred = new CvScalar( 0, 255, 0, 255);
+    private CvPoint p1;
+    private CvPoint p2;
+
+    // Trajectory segment end points, reused for every drawn segment
+    private CvPoint trackFrom = new CvPoint(0, 0);
+    private CvPoint trackTo = new CvPoint(0, 0);
 
     // Constructor
     RSPCN(device assignedDevice) {
+        this(new RealSenseFrameSource(assignedDevice));
+    }
+
+    RSPCN(FrameSource source) {
 
-        device = assignedDevice;
+        frameSource = source;
 
         // Auto camera settings
-        String devName = device.get_name().getString();
+        String devName = frameSource.getName();
 
         if(devName.equals("Intel RealSense R200")) {
             cameraType = 0;
@@ -78,21 +207,26 @@ public class RSPCN implements Runnable{
             fps = 30;
         }
 
-        device.enable_stream(RealSense.color, imageWidth, imageHeight, RealSense.rgb8, fps);
-        device.enable_stream(RealSense.depth, imageWidth, imageHeight, RealSense.z16, fps);
+        scale = frameSource.getDepthScale();
 
-        scale = device.get_depth_scale();
+        // Counter locations
+        cntInLoc = new CvPoint(0, imageHeight - 30);
+        cntOutLoc = new CvPoint(0, imageHeight - 10);
+
+        // Line location
+        p1 = new CvPoint(0,imageHeight/2);
+        p2 = new CvPoint(imageWidth, imageHeight/2);
+
+        motionGate = new MotionGate(imageWidth, imageHeight, fps);
+
+        metrics = new MetricsRegistry(getDeviceSerial(), "serial=\"" + getDeviceSerial() + "\"");
+        registerMetrics();
     }
 
     // Methods
     public void setCameraPresets(int value) {
 
-        if(cameraType == 0) {
-            RealSense.apply_depth_control_preset(device, value);
-        }
-        else {
-            RealSense.apply_ivcam_preset(device, value);
-        }
+        frameSource.applyPreset(cameraType, value);
 
         return;
     }
@@ -103,39 +237,78 @@ public class RSPCN implements Runnable{
     }
 
     public void run() {
-        int pid = 0;
 
-        // The threadID is used as a unique identifier for windows names and recorded video files
-        threadID = Thread.currentThread().getId();
+        try {
 
-        device.start();
+            open();
 
-        OpenCVFrameConverter.ToIplImage converterToIpl = new OpenCVFrameConverter.ToIplImage();
+            if(pipelinedMode) {
+                pipeline = new FramePipeline(this, imageWidth, imageHeight, pipelineQueueSize, countingQueuePolicy, renderQueuePolicy);
+                pipeline.run();
+            }
+            else {
+                // Frame buffers are allocated once and reused for every frame
+                buffers = new FrameBuffers(imageWidth, imageHeight);
+
+                // Frame capture loop
+                do {
+                    if(!captureFrame(buffers))
+                        break;
+
+                    segmentFrame(buffers);
+                    trackPassengers(buffers);
+                    renderFrame(buffers);
+                } while(!halt);
+            }
 
-        FFmpegFrameRecorder recorderColor = null;
-        FFmpegFrameRecorder recorderTrack = null;
+            close();
 
-        IplImage colorImage = null;
-        IplImage depthImage = null;
-        IplImage frameImage = IplImage.create(imageWidth, imageHeight, IPL_DEPTH_8U, 1);
-        IplImage trackImage = IplImage.create(imageWidth, imageHeight, IPL_DEPTH_8U, 1);
+            if(!halt) {
+                // The frame source is exhausted (end of a replay)
+                System.out.println( "End of stream " + getDeviceSerial() + ": count in " + getCnt_in() + ", count out " + getCnt_out());
+                halt = true;
+            }
 
-        // Tracking variables
-        CvMemStorage contours = CvMemStorage.create();
+        } catch (Exception e) {
+            System.out.println( e );
+        }
 
-        // Counter locations
-        CvPoint cntInLoc = new CvPoint(0, imageHeight - 30);
-        CvPoint cntOutLoc = new CvPoint(0, imageHeight - 10);
-        CvFont font = cvFont(1,1);
+        return;
 
-        // Line location
-        CvScalar colorred = new CvScalar( 0, 255, 0, 255);
-        CvPoint p1 = new CvPoint(0,imageHeight/2);
-        CvPoint p2 = new CvPoint(imageWidth, imageHeight/2);
+    }
+
+    void open() throws Exception {
 
-        CanvasFrame colorFrame = null;
-        CanvasFrame trackFrame = null;
-        // CanvasFrame depthFrame = null;
+        // The threadID is used as a unique identifier for windows names and recorded video files
+        threadID = Thread.currentThread().getId();
+
+        // Color and track images are only produced when something consumes them. Otherwise only depth is
+        // streamed, color is kept for raw recordings so they can be replayed with display.
+        consumesFrames = !bareMetalMode || videoRecordMode;
+        capturedFrames = 0;
+
+        frameSource.enableStreams(imageWidth, imageHeight, fps, consumesFrames || rawRecordMode);
+        frameSource.start();
+
+        if(rawRecordMode) {
+            RawStreamFormat format = new RawStreamFormat();
+            format.width = imageWidth;
+            format.height = imageHeight;
+            format.fps = fps;
+            format.depthScale = scale;
+            format.flags = frameSource.hasColor() ? RawStreamFormat.FLAG_COLOR : 0;
+            format.name = getDeviceName();
+            format.serial = getDeviceSerial();
+            format.firmware = getDeviceFirmware();
+
+            rawWriter = new RawStreamWriter("raw" + threadID + ".rspc", format, recordingQueueSize);
+            rawWriter.start();
+        }
+
+        if(eventLogMode) {
+            eventLog = new CrossingEventLog("events-" + getDeviceSerial() + ".log", getDeviceSerial(), eventLogQueueSize);
+            eventLog.start();
+        }
 
         if(!bareMetalMode) {
             colorFrame = new CanvasFrame("Color Stream " + threadID,1); 
@@ -143,358 +316,889 @@ public class RSPCN implements Runnable{
             // depthFrame = new CanvasFrame("Depth Stream",1); 
         }
 
-        try {
+        if(videoRecordMode) {
+            recorderColor = new VideoRecorderSink("color" + threadID, imageWidth, imageHeight, 3, fps, recordingQueueSize);
+            recorderColor.setDecimation(recordingDecimation);
+            recorderColor.setSegmentFrames(recordingSegmentFrames);
+            recorderColor.start();
 
-            if(videoRecordMode) {
-                recorderColor = FFmpegFrameRecorder.createDefault("color" + threadID + ".mp4", imageWidth, imageHeight);
-                recorderColor.setFrameRate(fps);
-                recorderColor.start();
-                
-                recorderTrack = FFmpegFrameRecorder.createDefault("track" + threadID + ".mp4", imageWidth, imageHeight);
-                recorderTrack.setFrameRate(fps);
-                recorderTrack.start();
-            }
+            recorderTrack = new VideoRecorderSink("track" + threadID, imageWidth, imageHeight, 1, fps, recordingQueueSize);
+            recorderTrack.setDecimation(recordingDecimation);
+            recorderTrack.setSegmentFrames(recordingSegmentFrames);
+            recorderTrack.start();
+        }
 
+        return;
+    }
 
-            // Frame capture loop
-            do {
-                device.wait_for_frames();
+    void close() throws Exception {
 
-                // Grab data from RealSense camera
-                colorImage = grabColorImage();
-                depthImage = grabDepthImage();
-                frameImage = grabFrameImage(depthImage);
+        if(videoRecordMode) {
+            recorderColor.stop();
+            recorderTrack.stop();
+        }
+
+        if(pipeline != null)
+            pipeline.release();
+
+        if(segmenter != null) {
+            segmenter.release();
+            segmenter = null;
+        }
+
+        if(nativeSegmenter != null) {
+            nativeSegmenter.release();
+            nativeSegmenter = null;
+        }
 
-                // Drawing line
-                cvLine( colorImage,
-                      p2,       //Starting point of the line
-                      p1,       //Ending point of the line
-                      colorred, //Color
-                      2,        //Thickness
-                      8,        //Linetype
-                      0);
+        if(buffers != null)
+            buffers.release();
 
-                // Blurring image
-                cvSmooth(frameImage, frameImage, CV_GAUSSIAN, blurSize, blurSize, 0, 0);
-                trackImage = frameImage.clone(); 
+        if(!bareMetalMode) {
+            colorFrame.dispose();
+            trackFrame.dispose();
+            // depthFrame.dispose();
+        }
 
-                // Finding contours
-                CvSeq hierarchy = new CvSeq(null); // This is where contours will be accessed
-                cvFindContours(frameImage, contours, hierarchy, Loader.sizeof(CvContour.class), CV_RETR_EXTERNAL, CV_CHAIN_APPROX_NONE);
+        if(rawWriter != null)
+            rawWriter.close();
 
-                while (hierarchy != null && !hierarchy.isNull()) {
+        if(eventLog != null)
+            eventLog.stop();
 
-                    if(hierarchy.elem_size() > 0) {
+        frameSource.stop();
 
-                        // Find polygon that approximate detected contours
-                        CvSeq points = cvApproxPoly(hierarchy, Loader.sizeof(CvContour.class), contours, CV_POLY_APPROX_DP, cvContourPerimeter(hierarchy)*0.02, 0);
+        frameSource.disableStreams();
 
-                        double areaCurrentObject = Math.abs(cvContourArea(points, CV_WHOLE_SEQ, 0)) ;
+        frameSource.close();
 
-                        if(areaCurrentObject > areaThreshold) {
+        return;
+    }
 
-                            // Find bounding rectangle of detected shape
-                            CvRect br = cvBoundingRect(hierarchy);
+    // -- CAPTURE STAGE
+    boolean captureFrame(FrameBuffers frame) throws Exception {
 
-                            // Find center of bounding rectangle of detected shape
-                            CvPoint rectCenter = new CvPoint( (int)(br.x() + br.width()/2), (int)(br.y() + br.height()/2));
+        long t0 = System.nanoTime();
 
-                            // Drawing rectangle
-                            int x = br.x(), y = br.y(), w = br.width(), h = br.height();
-                            // cvRectangle(trackImage, cvPoint(x, y), cvPoint(x+w, y+h), CvScalar.WHITE, 1, CV_AA, 0);
-                            cvRectangle(colorImage, cvPoint(x, y), cvPoint(x+w, y+h), CvScalar.GREEN, 1, CV_AA, 0);
-                            // Drawing rectangle center
-                            // cvCircle(trackImage, rectCenter, 5, CvScalar.WHITE, 2, CV_AA, 0);
-                            cvCircle(colorImage, rectCenter, 5, CvScalar.RED, 2, CV_AA, 0);
+        // Adaptive frame rate: frames the tracker can do without are waited for and dropped, only the raw
+        // recording keeps them
+        int step = Math.min(frameStride, maxFrameStride);
 
-                            boolean newPassenger = true;
-                            for(int i = 0; i < passengers.size(); i++) {
-                                //If passenger is near a known passenger assume they are the same one
-                                if( abs(rectCenter.x() - passengers.elementAt(i).getCurrentPoint().x()) <= xNear  && 
-                                    abs(rectCenter.y() - passengers.elementAt(i).getCurrentPoint().y()) <= yNear  ) {
+        for(int k = 1; k < step; k++) {
+            if(!frameSource.waitForFrames())
+                return false;
 
-                                    newPassenger = false;
-                                    passengers.elementAt(i).updateCoords(rectCenter);
-                                    passengers.elementAt(i).resetAge();
+            if(rawWriter != null)
+                rawWriter.write(System.nanoTime(), frameSource.getDepthData(), frameSource.getColorData());
 
-                                    break;
-                                }
+            skippedFrames.incrementAndGet();
+        }
 
-                            }
+        if(!frameSource.waitForFrames())
+            return false;
 
-                            if(newPassenger) {
+        frame.setCaptureTime(System.nanoTime());
+        frame.setConfig(config);
+        frame.setFrameStep(step);
 
-                                Passenger pass = new Passenger(pid, rectCenter, 0);
-                                passengers.add(pass);
-                                pid++;
+        // Overlay frames are converted, drawn and rendered, the others are only counted
+        boolean overlay = consumesFrames && capturedFrames++ % overlayDecimation == 0;
+        frame.setOverlay(overlay);
 
-                            }
-                        }
-                    }
+        if(overlay)
+            overlayFrames.incrementAndGet();
 
-                    hierarchy = hierarchy.h_next();
+        // Grab data from RealSense camera
+        if(overlay && frameSource.hasColor())
+            grabColorImage(frame);
+
+        grabDepthImage(frame);
+
+        if(rawWriter != null)
+            rawWriter.write(frame.getCaptureTime(), frameSource.getDepthData(), frameSource.getColorData());
+
+        captureStats.record(System.nanoTime() - t0);
+
+        return true;
+    }
+
+    // -- SEGMENTATION STAGE
+    void segmentFrame(FrameBuffers frame) {
+
+        long t0 = System.nanoTime();
+
+        Detections detections = frame.getDetections();
+        CounterConfig cfg = frame.getConfig();
+
+        boolean gated = motionGateMode;
+        long cpu0 = gated ? threadBean.getCurrentThreadCpuTime() : 0;
+
+        if(gated && motionGate.isIdle(frame.getDepthImage(), scale)) {
+            // Nothing moved: no detections, tracking only ages the passengers
+            detections.clear();
+
+            if(frame.hasOverlay())
+                cvSetZero(frame.getTrackImage());
+
+            motionGate.recordCpu(true, threadBean.getCurrentThreadCpuTime() - cpu0);
+            return;
+        }
+
+        // At a processing scale the depth frame is downsampled and segmented with scaled settings, detections
+        // are mapped back to full resolution: tracking, counting line and overlays are unchanged
+        int factor = processingScale;
+        frame.setProcessingScale(factor);
+
+        segmentImages(frame, getScaledConfig(cfg, factor), factor);
+
+        if(factor > 1)
+            detections.scale(factor);
+
+        segmentStats.record(System.nanoTime() - t0);
+
+        if(gated)
+            motionGate.recordCpu(false, threadBean.getCurrentThreadCpuTime() - cpu0);
+
+        return;
+    }
+
+    // Threshold, blur and blob extraction of the processing images of frame, factor times smaller than the
+    // frame. Detections are left in processing image coordinates.
+    private void segmentImages(FrameBuffers frame, CounterConfig cfg, int factor) {
+
+        long t0 = System.nanoTime();
+
+        IplImage depthImage = frame.getProcessingDepthImage();
+        IplImage frameImage = frame.getProcessingFrameImage();
+        IplImage maskImage  = frame.getProcessingMaskImage();
+        IplImage trackImage = frame.hasOverlay() ? frame.getTrackImage() : null;
+
+        CvMemStorage contours = frame.getStorage();
+        Detections detections = frame.getDetections();
+
+        final int width = frameImage.width();
+        final int height = frameImage.height();
+
+        // Rows searched for passengers: a band around the counting line, or the whole frame
+        int roiTop = 0;
+        int roiBottom = height;
+
+        if(cfg.getRoiHalfHeight() > 0) {
+            roiTop = Math.max(0, height/2 - cfg.getRoiHalfHeight());
+            roiBottom = Math.min(height, height/2 + cfg.getRoiHalfHeight());
+        }
+
+        // The blur kernel reaches blurSize / 2 rows beyond the band
+        int radius = cfg.getBlurSize() / 2;
+        int haloTop = Math.max(0, roiTop - radius);
+        int haloBottom = Math.min(height, roiBottom + radius);
+
+        // Only the depth rows of the halo are downsampled
+        if(factor > 1)
+            getDownsampler().minPool(frame.getDepthImage(), depthImage, factor, haloTop, haloBottom - haloTop);
+
+        NativeSegmenter fast = getNativeSegmenter();
+
+        if(fast != null) {
+            updateDepthLut(cfg.getThresholdCentimeters());
+
+            detections.clear();
+            fast.segment(depthImage, frameImage, maskImage, factor == 1 ? trackImage : null,
+                         haloTop, haloBottom, roiTop, roiBottom, cfg, detections);
+
+            if(trackImage != null && factor > 1)
+                copyTrackImage(maskImage, trackImage, roiTop, roiBottom, factor);
+
+            return;
+        }
+
+        ParallelSegmenter parallel = getSegmenter(width, height);
+        boolean box = boxBlurMode;
+
+        if(parallel != null) {
+            updateDepthLut(cfg.getThresholdCentimeters());
+            parallel.threshold(depthImage, frameImage, depthLut, haloTop, haloBottom - haloTop);
+        }
+        else if(box) {
+            // Thresholded row by row by the box blur below
+            updateDepthLut(cfg.getThresholdCentimeters());
+            readDepthRows(depthImage, haloTop, haloBottom - haloTop);
+        }
+        else
+            grabFrameImage(depthImage, frameImage, cfg.getThresholdCentimeters(), haloTop, haloBottom - haloTop);
+
+        long t1 = System.nanoTime();
+        thresholdStats.record(t1 - t0);
+
+        // Blurring image
+        if(parallel != null && box)
+            parallel.boxBlur(maskImage, cfg.getBlurSize(), roiTop, roiBottom - roiTop);
+        else if(parallel != null)
+            parallel.blur(frameImage, maskImage, cfg.getBlurSize(), roiTop, roiBottom - roiTop);
+        else if(box)
+            thresholdAndBoxBlur(frameImage, maskImage, cfg.getBlurSize(), haloTop, haloBottom, roiTop, roiBottom);
+        else if(roiBottom - roiTop < height) {
+            // Mask rows in the halo are not exact, contours are only searched inside the band
+            CvRect halo = cvRect(0, haloTop, width, haloBottom - haloTop);
+            cvSetImageROI(frameImage, halo);
+            cvSetImageROI(maskImage, halo);
+            cvSmooth(frameImage, maskImage, CV_GAUSSIAN, cfg.getBlurSize(), cfg.getBlurSize(), 0, 0);
+            cvResetImageROI(frameImage);
+            cvResetImageROI(maskImage);
+        }
+        else
+            cvSmooth(frameImage, maskImage, CV_GAUSSIAN, cfg.getBlurSize(), cfg.getBlurSize(), 0, 0);
+
+        if(trackImage != null)
+            copyTrackImage(maskImage, trackImage, roiTop, roiBottom, factor);
+
+        long t2 = System.nanoTime();
+        blurStats.record(t2 - t1);
+
+        detections.clear();
+
+        // Labeling the mask in one pass
+        BlobExtractor blobs = getBlobExtractor(width, height);
+
+        if(blobs != null) {
+            blobs.extract(maskImage, roiTop, roiBottom, cfg, detections);
+
+            contoursStats.record(System.nanoTime() - t2);
+            return;
+        }
 
+        // Finding contours
+        CvRect roi = cvRect(0, roiTop, width, roiBottom - roiTop);
+        CvSeq hierarchy = frame.clearContours(); // This is where contours will be accessed
+        cvSetImageROI(maskImage, roi);
+        // The offset brings contour points back to full frame coordinates
+        cvFindContours(maskImage, contours, hierarchy, Loader.sizeof(CvContour.class), CV_RETR_EXTERNAL, CV_CHAIN_APPROX_NONE, cvPoint(0, roiTop));
+        cvResetImageROI(maskImage);
+
+        while (hierarchy != null && !hierarchy.isNull()) {
+
+            if(hierarchy.elem_size() > 0) {
+
+                // Find polygon that approximate detected contours
+                CvSeq points = cvApproxPoly(hierarchy, Loader.sizeof(CvContour.class), contours, CV_POLY_APPROX_DP, cvContourPerimeter(hierarchy)*0.02, 0);
+
+                double areaCurrentObject = Math.abs(cvContourArea(points, CV_WHOLE_SEQ, 0)) ;
+
+                if(areaCurrentObject > cfg.getAreaThreshold()) {
+
+                    // Find bounding rectangle of detected shape
+                    CvRect br = cvBoundingRect(hierarchy);
+
+                    detections.add(br.x(), br.y(), br.width(), br.height(), areaCurrentObject, cfg.estimateOccupants(areaCurrentObject));
                 }
+            }
+
+            hierarchy = hierarchy.h_next();
+
+        }
+
+        contoursStats.record(System.nanoTime() - t2);
+
+        return;
+    }
 
-                // Draw trajectories and update age
-                for(int i = 0; i < passengers.size(); i++) {
+    // Shows band [roiTop, roiBottom) of the mask in the track view, enlarged by factor
+    private void copyTrackImage(IplImage maskImage, IplImage trackImage, int roiTop, int roiBottom, int factor) {
 
-                    if(passengers.elementAt(i).getTracks().size() > 1) {
+        CvRect roi = cvRect(0, roiTop, maskImage.width(), roiBottom - roiTop);
 
-                        for(int j = 0; j < passengers.elementAt(i).getTracks().size() - 1 ; j++) {
-                            cvLine(colorImage,
-                                passengers.elementAt(i).getTracks().elementAt(j),
-                                passengers.elementAt(i).getTracks().elementAt(j + 1),
-                                passengers.elementAt(i).getTrackColor(),
-                                2,
-                                8,
-                                0);
-                        }
+        if(factor == 1 && roiBottom - roiTop == maskImage.height()) {
+            cvCopy(maskImage, trackImage);
+            return;
+        }
 
-                        // -- COUNT
-                        // Up to down 
-                        if( passengers.elementAt(i).getLastPoint().y() < frameImage.height()/2 &&  passengers.elementAt(i).getCurrentPoint().y() >= frameImage.height()/2  ||
-                        passengers.elementAt(i).getLastPoint().y() <= frameImage.height()/2 &&  passengers.elementAt(i).getCurrentPoint().y() > frameImage.height()/2 ) {
+        cvSetZero(trackImage);
+        cvSetImageROI(maskImage, roi);
+        cvSetImageROI(trackImage, cvRect(0, roiTop * factor, trackImage.width(), (roiBottom - roiTop) * factor));
 
-                            cnt_out++;
+        if(factor == 1)
+            cvCopy(maskImage, trackImage);
+        else
+            cvResize(maskImage, trackImage, CV_INTER_NN);
 
-                        }
+        cvResetImageROI(trackImage);
+        cvResetImageROI(maskImage);
 
-                        // Down to up
-                        if( passengers.elementAt(i).getLastPoint().y() > frameImage.height()/2 &&  passengers.elementAt(i).getCurrentPoint().y() <= frameImage.height()/2  ||
-                        passengers.elementAt(i).getLastPoint().y() >= frameImage.height()/2 &&  passengers.elementAt(i).getCurrentPoint().y() < frameImage.height()/2 ) {
+        return;
+    }
 
-                            cnt_in++;
+    // -- TRACKING STAGE
+    void trackPassengers(FrameBuffers frame) {
 
-                        }
+        long t0 = System.nanoTime();
 
-                    }
+        IplImage colorImage = frame.getColorImage();
+        Detections detections = frame.getDetections();
+        CounterConfig cfg = frame.getConfig();
 
-                    passengers.elementAt(i).updateAge();
+        // Camera frames since the previous processed frame, every age and prediction counts them
+        int step = frame.getFrameStep();
+        boolean predict = motionPredictionMode;
 
-                    // If passenger is outside field of view update coords with last known position.
-                    // This prevents false positive counts.
-                    if(passengers.elementAt(i).getAge() > 1)
-                        passengers.elementAt(i).updateCoords(passengers.elementAt(i).getCurrentPoint());
+        if(predict) {
+            for(int i = 0; i < passengers.size(); i++)
+                passengers.elementAt(i).advance(step);
+        }
+
+        // Associate detected objects with known passengers
+        if(assignment.length < detections.size())
+            assignment = new int[detections.size() * 2];
+
+        passengerMatcher.match(passengers, detections, cfg.getXNear(), cfg.getYNear(), assignment);
 
-                    if(passengers.elementAt(i).getAge() > (maxPassengerAge * fps)) {
-                        passengers.remove(i);
+        int knownPassengers = passengers.size();
+        for(int d = 0; d < detections.size(); d++) {
+
+            int cx = detections.getCenterX(d);
+            int cy = detections.getCenterY(d);
+
+            if(assignment[d] >= 0 && assignment[d] < knownPassengers) {
+                if(predict)
+                    passengers.elementAt(assignment[d]).observe(cx, cy);
+                else
+                    passengers.elementAt(assignment[d]).updateCoords(cx, cy);
+                passengers.elementAt(assignment[d]).resetAge();
+            }
+            else {
+                Passenger pass = new Passenger(pid, cx, cy, 0);
+                passengers.add(pass);
+                pid++;
+
+                newTracks.incrementAndGet();
+            }
+        }
+
+        if(frame.hasOverlay()) {
+            // Drawing line
+            cvLine( colorImage,
+                  p2,       //Starting point of the line
+                  p1,       //Ending point of the line
+                  colorred, //Color
+                  2,        //Thickness
+                  8,        //Linetype
+                  0);
+
+            for(int d = 0; d < detections.size(); d++) {
+                // Drawing rectangle
+                int x = detections.getX(d), y = detections.getY(d), w = detections.getWidth(d), h = detections.getHeight(d);
+                // cvRectangle(trackImage, cvPoint(x, y), cvPoint(x+w, y+h), CvScalar.WHITE, 1, CV_AA, 0);
+                cvRectangle(colorImage, cvPoint(x, y), cvPoint(x+w, y+h), CvScalar.GREEN, 1, CV_AA, 0);
+                // Drawing rectangle center
+                // cvCircle(trackImage, rectCenter, 5, CvScalar.WHITE, 2, CV_AA, 0);
+                cvCircle(colorImage, cvPoint(detections.getCenterX(d), detections.getCenterY(d)), 5, CvScalar.RED, 2, CV_AA, 0);
+                // Estimated passengers in the blob
+                if(detections.getOccupants(d) > 1)
+                    cvPutText(colorImage, "x" + detections.getOccupants(d), cvPoint(x + 2, y + 14), font, CvScalar.GREEN);
+            }
+        }
+
+        // Draw trajectories and update age
+        for(int i = 0; i < passengers.size(); i++) {
+
+            Passenger passenger = passengers.elementAt(i);
+
+            if(passenger.getTrackLength() > 1) {
+
+                if(frame.hasOverlay()) {
+                    for(int j = 0; j < passenger.getTrackLength() - 1 ; j++) {
+                        trackFrom.x(passenger.getTrackX(j)).y(passenger.getTrackY(j));
+                        trackTo.x(passenger.getTrackX(j + 1)).y(passenger.getTrackY(j + 1));
+
+                        cvLine(colorImage,
+                            trackFrom,
+                            trackTo,
+                            passenger.getTrackColor(),
+                            2,
+                            8,
+                            0);
                     }
                 }
 
-                cvPutText(colorImage, "Count IN:  " + cnt_in , cntInLoc , font, CvScalar.WHITE);
-                cvPutText(colorImage, "Count OUT: " + cnt_out, cntOutLoc, font, CvScalar.WHITE);
+                // -- COUNT
+                // Up to down 
+                if( passenger.getLastY() < imageHeight/2 &&  passenger.getCurrentY() >= imageHeight/2  ||
+                passenger.getLastY() <= imageHeight/2 &&  passenger.getCurrentY() > imageHeight/2 ) {
 
-                // Display streams using Java frame 
-                if(!bareMetalMode) {
-                    colorFrame.showImage(converterToIpl.convert(colorImage));
-                    trackFrame.showImage(converterToIpl.convert(trackImage));
-                    // depthFrame.showImage(converterToIpl.convert(depthImage));
-                }
+                    long now = System.currentTimeMillis();
+
+                    crossings.countOut();
+                    lifetimeCrossings.countOut();
+                    rollup.countOut(now);
+
+                    if(eventLog != null)
+                        eventLog.append(now, passenger.getPid(), CrossingEvent.OUT, passenger.getTrackLength());
 
-                if(videoRecordMode) {
-                    recorderColor.record(converterToIpl.convert(colorImage));
-                    recorderTrack.record(converterToIpl.convert(trackImage));
                 }
 
-                // cvSaveImage("color.jpg", colorImage);
-                // cvSaveImage("depth.jpg", depthImage);
-                // cvSaveImage("frame.jpg", frameImage);
+                // Down to up
+                if( passenger.getLastY() > imageHeight/2 &&  passenger.getCurrentY() <= imageHeight/2  ||
+                passenger.getLastY() >= imageHeight/2 &&  passenger.getCurrentY() < imageHeight/2 ) {
+
+                    long now = System.currentTimeMillis();
+
+                    crossings.countIn();
+                    lifetimeCrossings.countIn();
+                    rollup.countIn(now);
 
-            } while(!halt);
+                    if(eventLog != null)
+                        eventLog.append(now, passenger.getPid(), CrossingEvent.IN, passenger.getTrackLength());
+
+                }
 
-            if(videoRecordMode) {
-                recorderColor.stop();
-                recorderTrack.stop();
             }
 
-            colorImage.release();
-            depthImage.release();
-            frameImage.release();
-            trackImage.release();
+            passenger.updateAge(step);
+
+            // If passenger is outside field of view update coords with last known position.
+            // This prevents false positive counts.
+            if(passenger.getAge() > step)
+                passenger.updateCoords(passenger.getCurrentX(), passenger.getCurrentY());
 
-            if(!bareMetalMode) {
-                colorFrame.dispose();
-                trackFrame.dispose();
-                // depthFrame.dispose();
+            if(passenger.getAge() > (cfg.getMaxPassengerAge() * fps)) {
+                passengers.remove(i);
+                expiredTracks.incrementAndGet();
             }
+        }
 
-            device.stop();
-                
-            device.disable_stream(RealSense.color);
-            device.disable_stream(RealSense.depth);
+        activePassengers = passengers.size();
+        updateFps(frame.getCaptureTime());
 
-        } catch (Exception e) {
-            System.out.println( e );
+        frameStride = nextFrameStride(cfg);
+
+        if(frame.hasOverlay()) {
+            long counts = crossings.get();
+
+            cvPutText(colorImage, "Count IN:  " + CrossingCounter.in(counts) , cntInLoc , font, CvScalar.WHITE);
+            cvPutText(colorImage, "Count OUT: " + CrossingCounter.out(counts), cntOutLoc, font, CvScalar.WHITE);
         }
 
+        trackStats.record(System.nanoTime() - t0);
+
         return;
+    }
+
+    // Camera frames to the next processed frame: 1 while a passenger is near the counting line or has no velocity
+    // estimate yet, maxFrameStride with nobody tracked. Otherwise the largest step that keeps every passenger out
+    // of the yNear band around the line and within half the matching box of its predicted position.
+    private int nextFrameStride(CounterConfig cfg) {
+
+        int max = maxFrameStride;
+
+        if(max <= 1)
+            return 1;
+
+        int line = imageHeight/2;
+        int stride = max;
+
+        for(int i = 0; i < passengers.size(); i++) {
+
+            Passenger passenger = passengers.elementAt(i);
+            int distance = Math.abs(passenger.getPredictedY() - line) - cfg.getYNear();
 
+            if(distance <= 0 || !passenger.hasVelocity())
+                return 1;
+
+            float vx = Math.abs(passenger.getVelocityX());
+            float vy = Math.abs(passenger.getVelocityY());
+
+            if(vx > 0)
+                stride = Math.min(stride, (int)(cfg.getXNear() / (2 * vx)));
+
+            if(vy > 0)
+                stride = Math.min(stride, Math.min((int)(distance / vy), (int)(cfg.getYNear() / (2 * vy))));
+        }
+
+        return Math.max(1, stride);
     }
 
-    public IplImage grabColorImage() {
+    // -- RENDERING STAGE
+    void renderFrame(FrameBuffers frame) throws Exception {
 
-        Pointer rawVideoImageData = new Pointer((Pointer) null);
-        IplImage rawVideoImage = null;
+        long t0 = System.nanoTime();
 
-        rawVideoImageData = device.get_frame_data(RealSense.color);
+        IplImage colorImage = frame.getColorImage();
+        IplImage trackImage = frame.getTrackImage();
 
-        int iplDepth = IPL_DEPTH_8U, channels = 3;
+        // Display streams using Java frame 
+        if(!bareMetalMode && frame.hasOverlay()) {
+            colorFrame.showImage(converterToIpl.convert(colorImage));
+            trackFrame.showImage(converterToIpl.convert(trackImage));
+            // depthFrame.showImage(converterToIpl.convert(depthImage));
+        }
 
-        rawVideoImage = IplImage.createHeader(imageWidth, imageHeight, iplDepth, channels);
+        if(videoRecordMode && frame.hasOverlay()) {
+            long r0 = System.nanoTime();
 
-        cvSetData(rawVideoImage, rawVideoImageData, imageWidth * channels * iplDepth / 8);
+            recorderColor.submit(colorImage, frame.getCaptureTime());
+            recorderTrack.submit(trackImage, frame.getCaptureTime());
 
-        IplImage returnImage = IplImage.create(imageWidth, imageHeight, IPL_DEPTH_8U, 3);
+            recordStats.record(System.nanoTime() - r0);
+        }
+
+        // cvSaveImage("color.jpg", colorImage);
+        // cvSaveImage("depth.jpg", depthImage);
+        // cvSaveImage("frame.jpg", frameImage);
 
-        cvCvtColor(rawVideoImage, returnImage, CV_BGR2RGB);
+        long t1 = System.nanoTime();
+        renderStats.record(t1 - t0);
+        frameLatencyStats.record(t1 - frame.getCaptureTime());
 
-        return returnImage;
+        return;
     }
 
-    public IplImage grabDepthImage() {
+    public IplImage grabColorImage(FrameBuffers frame) {
 
-        Pointer rawDepthImageData = new Pointer((Pointer) null);
-        IplImage rawDepthImage = null;
+        IplImage rawVideoImage = frame.wrapColorData(frameSource.getColorData());
 
-        rawDepthImageData = device.get_frame_data(RealSense.depth);
+        cvCvtColor(rawVideoImage, frame.getColorImage(), CV_BGR2RGB);
 
-        int iplDepth = IPL_DEPTH_16U, channels = 1;
+        return frame.getColorImage();
+    }
 
-        rawDepthImage = IplImage.createHeader(imageWidth, imageHeight, iplDepth, channels);
+    public IplImage grabDepthImage(FrameBuffers frame) {
 
-        cvSetData(rawDepthImage, rawDepthImageData, imageWidth * channels * iplDepth / 8);
+        return frame.wrapDepthData(frameSource.getDepthData());
+    }
 
-        return rawDepthImage;
+    public void grabFrameImage(IplImage src, IplImage dst, int thresholdCentimeters) {
+        grabFrameImage(src, dst, thresholdCentimeters, 0, src.height());
     }
 
-    public IplImage grabFrameImage(IplImage src) {
+    // Thresholds rows [first, first + rows) only
+    public void grabFrameImage(IplImage src, IplImage dst, int thresholdCentimeters, int first, int rows) {
+
+        final int cols = src.width();
+
+        updateDepthLut(thresholdCentimeters);
+        readDepthRows(src, first, rows);
+
+        // Threshold and conversion to 8bit values through the lookup table
+        final byte[] lut = depthLut;
+        final short[] in = depthPixels;
+        final byte[] out = framePixels;
+        final int end = (first + rows) * cols;
 
-        IplImage dst = IplImage.create(imageWidth, imageHeight, IPL_DEPTH_8U, 1);
+        for(int i = first * cols; i < end; i++)
+            out[i] = lut[in[i] & 0xFFFF];
+
+        writeRows(dst.imageData(), dst.widthStep(), first, rows, cols, framePixels);
+
+        return;
+    }
 
-        UShortRawIndexer srcIdx = src.createIndexer();
-        UByteRawIndexer dstIdx = dst.createIndexer();
+    // Bulk copy of depth rows [first, first + rows) into depthPixels: one native call instead of one per pixel
+    private void readDepthRows(IplImage src, int first, int rows) {
 
-        final int rows = src.height();
         final int cols = src.width();
 
+        if(depthPixels == null || depthPixels.length != src.height() * cols) {
+            depthPixels = new short[src.height() * cols];
+            framePixels = new byte[src.height() * cols];
+        }
+
+        readRows(new ShortPointer(src.imageData()), src.widthStep() / 2, first, rows, cols, depthPixels);
+
+        return;
+    }
+
+    // Thresholds the depth rows read by readDepthRows() and box blurs them in a single pass, see BoxBlur.
+    // Thresholded rows [haloTop, haloBottom) go to frameImage, blurred rows [roiTop, roiBottom) to maskImage.
+    private void thresholdAndBoxBlur(IplImage frameImage, IplImage maskImage, int blurSize,
+                                     int haloTop, int haloBottom, int roiTop, int roiBottom) {
+
+        final int width = frameImage.width();
+
+        if(boxBlur == null || boxBlur.getWidth() != width) {
+            boxBlur = new BoxBlur(width);
+            maskPixels = new byte[width * frameImage.height()];
+        }
+
+        boxBlur.thresholdAndBlur(depthPixels, depthLut, framePixels, blurSize, haloTop, haloBottom, roiTop, roiBottom, maskPixels);
+
+        writeRows(frameImage.imageData(), frameImage.widthStep(), haloTop, haloBottom - haloTop, width, framePixels);
+        writeRows(maskImage.imageData(), maskImage.widthStep(), roiTop, roiBottom - roiTop, width, maskPixels);
+
+        return;
+    }
+
+    // Band segmenter matching the configured thread count and the processing image size, null for the serial
+    // path. Only called by the segmentation stage, which owns the segmenter.
+    private ParallelSegmenter getSegmenter(int width, int height) {
+
+        int threads = segmentationThreads;
+
+        if(segmenter != null && (segmenter.getThreads() != threads || segmenter.getWidth() != width || segmenter.getHeight() != height)) {
+            segmenter.release();
+            segmenter = null;
+        }
+
+        if(segmenter == null && threads > 1)
+            segmenter = new ParallelSegmenter(width, height, threads);
+
+        return segmenter;
+    }
+
+    // Native segmenter if enabled, null for the Java paths. Only called by the segmentation stage.
+    private NativeSegmenter getNativeSegmenter() {
+
+        if(nativeSegmentationMode && nativeSegmenter == null) {
+            nativeSegmenter = new NativeSegmenter(64);
+            nativeSegmenter.setLut(depthLut);
+        }
+        else if(!nativeSegmentationMode && nativeSegmenter != null) {
+            nativeSegmenter.release();
+            nativeSegmenter = null;
+        }
+
+        return nativeSegmenter;
+    }
+
+    // Run labeling extractor if enabled, null for the contour path. Only called by the segmentation stage.
+    private BlobExtractor getBlobExtractor(int width, int height) {
+
+        if(blobExtractionMode && (blobExtractor == null || blobExtractor.getWidth() != width))
+            blobExtractor = new BlobExtractor(width, height);
+        else if(!blobExtractionMode)
+            blobExtractor = null;
+
+        return blobExtractor;
+    }
+
+    // Only called by the segmentation stage
+    private DepthDownsampler getDownsampler() {
+
+        if(downsampler == null)
+            downsampler = new DepthDownsampler(imageWidth, imageHeight);
+
+        return downsampler;
+    }
+
+    // Segmentation settings of cfg at the processing scale, computed again only when cfg or factor change
+    private CounterConfig getScaledConfig(CounterConfig cfg, int factor) {
+
+        if(cfg != scaledConfigSource || factor != scaledConfigFactor) {
+            scaledConfig = cfg.atScale(factor);
+            scaledConfigSource = cfg;
+            scaledConfigFactor = factor;
+        }
+
+        return scaledConfig;
+    }
+
+    private void updateDepthLut(int thresholdCentimeters) {
+
+        if(thresholdCentimeters == lutThresholdCentimeters && scale == lutScale)
+            return;
+
+        lutThresholdCentimeters = thresholdCentimeters;
+        lutScale = scale;
+
         // Intelligent threshold
-        final int thresPixel = (int)(thresholdCentimeters / (100 * scale));
+        final int thresPixel = (int)(lutThresholdCentimeters / (100 * lutScale));
 
-        // Loop
-        for(int i = 0; i < rows; i++) {
+        for(int p = 0; p < depthLut.length; p++) {
 
-            for(int j = 0; j < cols; j++) {
+            // Threshold
+            // NODATA: 0 => To farthest value(65535)
+            // THRESH: X => To farthest value(65535)
+            int v = (p > thresPixel || p == 0) ? 65535 : p;
 
-                double p = srcIdx.get(i, j, 0);
+            // Conversion to 8bit values and mapping
+            // 0   => Farthest point
+            // 255 => Nearest point
+            depthLut[p] = (byte)(255 - (int)(v * 255.0 / 65535));
+        }
+
+        if(nativeSegmenter != null)
+            nativeSegmenter.setLut(depthLut);
 
-                // Threshold
-                // NODATA: 0 => To farthest value(65535)
-                // THRESH: X => To farthest value(65535)
-                if(p > thresPixel || p == 0)
-                    p = 65535;
+        return;
+    }
 
-                // Conversion to 8bit values and mapping
-                // 0   => Farthest point
-                // 255 => Nearest point
-                dstIdx.put(i, j, 0, 255 - (int)(p * 255.0 / 65535));
+    // Copies rows [first, first + rows) of a strided native image into the same rows of a packed array
+    static void readRows(ShortPointer src, int step, int first, int rows, int cols, short[] dst) {
 
-            }
+        if(step == cols) {
+            src.position((long)first * cols).get(dst, first * cols, rows * cols);
         }
+        else {
+            for(int i = first; i < first + rows; i++)
+                src.position((long)i * step).get(dst, i * cols, cols);
+        }
+
+        src.position(0);
+        return;
+    }
 
-        srcIdx.release();
-        dstIdx.release();
+    static void writeRows(ShortPointer dst, int step, int first, int rows, int cols, short[] src) {
 
-        return dst;
+        if(step == cols) {
+            dst.position((long)first * cols).put(src, first * cols, rows * cols);
+        }
+        else {
+            for(int i = first; i < first + rows; i++)
+                dst.position((long)i * step).put(src, i * cols, cols);
+        }
+
+        dst.position(0);
+        return;
+    }
+
+    static void writeRows(BytePointer dst, int step, int first, int rows, int cols, byte[] src) {
+
+        if(step == cols) {
+            dst.position((long)first * cols).put(src, first * cols, rows * cols);
+        }
+        else {
+            for(int i = first; i < first + rows; i++)
+                dst.position((long)i * step).put(src, i * cols, cols);
+        }
+
+        dst.position(0);
+        return;
     }
 
     public void stop() {
         this.halt = true;
     }
 
+    // Waits for the counting thread started by start() to close the device
+    public void join(long millis) throws InterruptedException {
+        if(thread != null)
+            thread.join(millis);
+    }
+
+    public boolean isHalted() {
+        return halt;
+    }
+
     public void resetCounters() {
-        cnt_out = 0;
-        cnt_in  = 0;
+        crossings.getAndReset();
+    }
+
+    // Consistent snapshot of both counters. Returns {count in, count out}
+    public int[] getCounters() {
+        long counts = crossings.get();
+
+        return new int[] {CrossingCounter.in(counts), CrossingCounter.out(counts)};
+    }
+
+    // Atomically reads and resets both counters. Returns {count in, count out}
+    public int[] readAndResetCounters() {
+        long counts = crossings.getAndReset();
+
+        return new int[] {CrossingCounter.in(counts), CrossingCounter.out(counts)};
     }
 
     // Getters and Setters
+    public long getThreadID() {
+        return threadID;
+    }
+
+    public int getImageWidth() {
+        return imageWidth;
+    }
+
+    public int getImageHeight() {
+        return imageHeight;
+    }
+
     public String getDeviceName() {
-        return device.get_name().getString();
+        return frameSource.getName();
     }
 
     public String getDeviceSerial() {
-        return device.get_serial().getString();
+        return frameSource.getSerial();
     }
 
     public String getDeviceFirmware() {
-        return device.get_firmware_version().getString();
+        return frameSource.getFirmware();
     }
 
     public int getCnt_out() {
-        return cnt_out;
+        return crossings.getOut();
     }
 
     public int getCnt_in() {
-        return cnt_in;
+        return crossings.getIn();
+    }
+
+    // Counts of the crossings between from and to [milliseconds since epoch]. Returns {count in, count out}
+    public int[] getCounts(long from, long to) {
+        return rollup.total(from, to);
+    }
+
+    // Counts between from and to in windows of resolution milliseconds. Returns {count in, count out} per window
+    public int[][] getCountSeries(long from, long to, long resolution) {
+        return rollup.series(from, to, resolution);
+    }
+
+    public CountRollup getRollup() {
+        return rollup;
     }
 
     public int getMaxPassengerAge() {
-        return maxPassengerAge;
+        return config.getMaxPassengerAge();
     }
 
-    public void setMaxPassengerAge(int maxPassengerAge) {
-        this.maxPassengerAge = maxPassengerAge;
+    public synchronized void setMaxPassengerAge(int maxPassengerAge) {
+        config = config.withMaxPassengerAge(maxPassengerAge);
     }
 
     public int getMax1PassArea() {
-        return max1PassArea;
+        return config.getMax1PassArea();
     }
 
-    public void setMax1PassArea(int max1PassArea) {
-        this.max1PassArea = max1PassArea;
+    public synchronized void setMax1PassArea(int max1PassArea) {
+        config = config.withMax1PassArea(max1PassArea);
     }
 
     public int getMax2PassArea() {
-        return max2PassArea;
+        return config.getMax2PassArea();
     }
 
-    public void setMax2PassArea(int max2PassArea) {
-        this.max2PassArea = max2PassArea;
+    public synchronized void setMax2PassArea(int max2PassArea) {
+        config = config.withMax2PassArea(max2PassArea);
     }
 
     public int getThresholdCentimeters() {
-        return thresholdCentimeters;
+        return config.getThresholdCentimeters();
     }
 
-    public void setThresholdCentimeters(int thresholdCentimeters) {
-        this.thresholdCentimeters = thresholdCentimeters;
+    public synchronized void setThresholdCentimeters(int thresholdCentimeters) {
+        config = config.withThresholdCentimeters(thresholdCentimeters);
     }
 
     public int getXNear() {
-        return xNear;
+        return config.getXNear();
     }
 
-    public void setXNear(int xNear) {
-        this.xNear = xNear;
+    public synchronized void setXNear(int xNear) {
+        config = config.withXNear(xNear);
     }
 
     public int getYNear() {
-        return yNear;
+        return config.getYNear();
     }
 
-    public void setYNear(int yNear) {
-        this.yNear = yNear;
+    public synchronized void setYNear(int yNear) {
+        config = config.withYNear(yNear);
     }
 
     public int getBlurSize() {
-        return blurSize;
+        return config.getBlurSize();
     }
 
-    public void setBlurSize(int blurSize) {
+    public synchronized void setBlurSize(int blurSize) {
         if(blurSize <= 0 || blurSize % 2 != 1)
             System.out.println( "Error: assertion  blurSize > 0 && blurSize % 2 == 1 failed.");
         else
-            this.blurSize = blurSize;
+            config = config.withBlurSize(blurSize);
     }
     
     public void setBareMetalMode(boolean bareMetalMode) {
@@ -504,8 +1208,404 @@ public class RSPCN implements Runnable{
     public void setVideoRecordMode(boolean videoRecordMode) {
         this.videoRecordMode = videoRecordMode;
     }
+
+    // Capacity of the recording rings (video and raw stream), must be a power of two
+    public void setRecordingQueueSize(int recordingQueueSize) {
+        if(recordingQueueSize <= 0 || Integer.bitCount(recordingQueueSize) != 1)
+            System.out.println( "Error: assertion recordingQueueSize is a power of two failed.");
+        else
+            this.recordingQueueSize = recordingQueueSize;
+    }
+
+    // Record one frame every recordingDecimation frames
+    public void setRecordingDecimation(int recordingDecimation) {
+        this.recordingDecimation = recordingDecimation;
+
+        if(recorderColor != null) {
+            recorderColor.setDecimation(recordingDecimation);
+            recorderTrack.setDecimation(recordingDecimation);
+        }
+    }
+
+    // Draw overlays and render one frame every overlayDecimation frames, display and recording included.
+    // Counting still runs on every frame.
+    public void setOverlayDecimation(int overlayDecimation) {
+        if(overlayDecimation <= 0)
+            System.out.println( "Error: assertion overlayDecimation > 0 failed.");
+        else
+            this.overlayDecimation = overlayDecimation;
+    }
+
+    public int getOverlayDecimation() {
+        return overlayDecimation;
+    }
+
+    // True when the color stream is not enabled: bare metal mode without video or raw recording
+    public boolean isDepthOnly() {
+        return !frameSource.hasColor();
+    }
+
+    // Start a new video file every recordingSegmentFrames recorded frames (0: single file)
+    public void setRecordingSegmentFrames(int recordingSegmentFrames) {
+        this.recordingSegmentFrames = recordingSegmentFrames;
+
+        if(recorderColor != null) {
+            recorderColor.setSegmentFrames(recordingSegmentFrames);
+            recorderTrack.setSegmentFrames(recordingSegmentFrames);
+        }
+    }
+
+    public void setRawRecordMode(boolean rawRecordMode) {
+        this.rawRecordMode = rawRecordMode;
+    }
+
+    // Threads splitting threshold and blur of every frame in row bands (1: serial). Each counter has its own
+    // pool, so cameras sharing a board can be given a share of the cores each.
+    public void setSegmentationThreads(int segmentationThreads) {
+        if(segmentationThreads <= 0)
+            System.out.println( "Error: assertion segmentationThreads > 0 failed.");
+        else
+            this.segmentationThreads = segmentationThreads;
+    }
+
+    public int getSegmentationThreads() {
+        return segmentationThreads;
+    }
+
+    // Switches segmentation to the native library (see NativeSegmenter) from the next frame on
+    public void setNativeSegmentation(boolean nativeSegmentationMode) {
+        if(nativeSegmentationMode && !NativeSegmenter.isAvailable())
+            System.out.println( "Error: native segmentation library not available.");
+        else
+            this.nativeSegmentationMode = nativeSegmentationMode;
+    }
+
+    public boolean getNativeSegmentation() {
+        return nativeSegmentationMode;
+    }
+
+    // Smooths the thresholded frame with a box blur (see BoxBlur) instead of the Gaussian blur from the next
+    // frame on: the cost no longer grows with the blur size. Native segmentation keeps its Gaussian blur.
+    public void setBoxBlur(boolean boxBlurMode) {
+        this.boxBlurMode = boxBlurMode;
+    }
+
+    public boolean getBoxBlur() {
+        return boxBlurMode;
+    }
+
+    // Segments depth downsampled by factor (1, 2 or 4) from the next frame on, see DepthDownsampler.
+    // Area thresholds, blur size and processing band are scaled, detections are mapped back to full resolution.
+    public void setProcessingScale(int factor) {
+        if(factor != 1 && factor != 2 && factor != 4)
+            System.out.println( "Error: assertion processingScale is 1, 2 or 4 failed.");
+        else if(imageWidth % factor != 0 || imageHeight % factor != 0)
+            System.out.println( "Error: assertion image size is a multiple of processingScale failed.");
+        else
+            this.processingScale = factor;
+    }
+
+    public int getProcessingScale() {
+        return processingScale;
+    }
+
+    // Estimates the velocity of every passenger and matches detections against the predicted positions instead
+    // of the last ones
+    public void setMotionPrediction(boolean motionPredictionMode) {
+        this.motionPredictionMode = motionPredictionMode;
+    }
+
+    public boolean getMotionPrediction() {
+        return motionPredictionMode;
+    }
+
+    // Processes as few as one camera frame every maxFrameStride while passengers are far from the counting line
+    // (1: every frame). Without motion prediction frames are only skipped while nobody is tracked.
+    public void setMaxFrameStride(int maxFrameStride) {
+        if(maxFrameStride <= 0)
+            System.out.println( "Error: assertion maxFrameStride > 0 failed.");
+        else
+            this.maxFrameStride = maxFrameStride;
+    }
+
+    public int getMaxFrameStride() {
+        return maxFrameStride;
+    }
+
+    public long getSkippedFrames() {
+        return skippedFrames.get();
+    }
+
+    // Extracts blobs by run labeling (see BlobExtractor) instead of cvFindContours from the next frame on.
+    // Native segmentation has its own contour path and ignores it.
+    public void setBlobExtraction(boolean blobExtractionMode) {
+        this.blobExtractionMode = blobExtractionMode;
+    }
+
+    public boolean getBlobExtraction() {
+        return blobExtractionMode;
+    }
+
+    // Appends every crossing to events-<serial>.log, see CrossingEventLog
+    public void setEventLogMode(boolean eventLogMode) {
+        this.eventLogMode = eventLogMode;
+    }
+
+    // Events waiting for the log writer before new ones are dropped
+    public void setEventLogQueueSize(int eventLogQueueSize) {
+        if(eventLogQueueSize <= 0 || (eventLogQueueSize & (eventLogQueueSize - 1)) != 0)
+            System.out.println( "Error: assertion eventLogQueueSize is a power of two failed.");
+        else
+            this.eventLogQueueSize = eventLogQueueSize;
+    }
+
+    public CrossingEventLog getEventLog() {
+        return eventLog;
+    }
+
+    // Skips segmentation of frames where the depth background did not change
+    public void setMotionGateMode(boolean motionGateMode) {
+        this.motionGateMode = motionGateMode;
+    }
+
+    public boolean getMotionGateMode() {
+        return motionGateMode;
+    }
+
+    // Gate settings and idle metrics
+    public MotionGate getMotionGate() {
+        return motionGate;
+    }
+
+    public void setPipelinedMode(boolean pipelinedMode) {
+        this.pipelinedMode = pipelinedMode;
+    }
+
+    public void setPipelineQueueSize(int pipelineQueueSize) {
+        if(pipelineQueueSize <= 0)
+            System.out.println( "Error: assertion pipelineQueueSize > 0 failed.");
+        else
+            this.pipelineQueueSize = pipelineQueueSize;
+    }
+
+    // Policy of the queues feeding segmentation and tracking: StageQueue.BACKPRESSURE or StageQueue.DROP_OLDEST
+    public void setCountingQueuePolicy(int countingQueuePolicy) {
+        this.countingQueuePolicy = countingQueuePolicy;
+    }
+
+    // Policy of the queue feeding display and recording: StageQueue.BACKPRESSURE or StageQueue.DROP_OLDEST
+    public void setRenderQueuePolicy(int renderQueuePolicy) {
+        this.renderQueuePolicy = renderQueuePolicy;
+    }
+
+    LatencyStats[] getLatencyStats() {
+        return new LatencyStats[] {captureStats, thresholdStats, blurStats, contoursStats, segmentStats,
+                                   trackStats, renderStats, recordStats, frameLatencyStats};
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    public long getTrackedFrames() {
+        return trackedFrames.get();
+    }
+
+    public double getAchievedFps() {
+        return achievedFps;
+    }
+
+    public int getActivePassengers() {
+        return activePassengers;
+    }
+
+    // Achieved frame rate over windows of about one second, computed by the tracking stage
+    private void updateFps(long captureTime) {
+
+        fpsWindowFrames++;
+
+        if(fpsWindowStart == 0)
+            fpsWindowStart = captureTime;
+        else if(captureTime - fpsWindowStart >= 1000000000L) {
+            achievedFps = (fpsWindowFrames - 1) * 1e9 / (captureTime - fpsWindowStart);
+            fpsWindowStart = captureTime;
+            fpsWindowFrames = 1;
+        }
+
+        trackedFrames.incrementAndGet();
+        return;
+    }
+
+    private void registerMetrics() {
+
+        metrics.counter("rspcn_count_in_total", "Passengers counted in since start, not affected by resets", () -> lifetimeCrossings.getIn());
+        metrics.counter("rspcn_count_out_total", "Passengers counted out since start, not affected by resets", () -> lifetimeCrossings.getOut());
+        metrics.gauge("rspcn_count_in", "Passengers counted in since the last reset", () -> crossings.getIn());
+        metrics.gauge("rspcn_count_out", "Passengers counted out since the last reset", () -> crossings.getOut());
+        metrics.gauge("rspcn_count_in_last_minute", "Passengers counted in during the last minute", () -> {
+            long now = System.currentTimeMillis();
+            return rollup.total(now - CountRollup.MINUTE, now)[0];
+        });
+        metrics.gauge("rspcn_count_out_last_minute", "Passengers counted out during the last minute", () -> {
+            long now = System.currentTimeMillis();
+            return rollup.total(now - CountRollup.MINUTE, now)[1];
+        });
+        metrics.counter("rspcn_frames_total", "Frames tracked", () -> trackedFrames.get());
+        metrics.gauge("rspcn_fps", "Achieved frame rate [frames/s]", () -> achievedFps);
+        metrics.gauge("rspcn_active_passengers", "Passengers currently tracked", () -> activePassengers);
+        metrics.counter("rspcn_tracks_new_total", "Tracks created", () -> newTracks.get());
+        metrics.counter("rspcn_tracks_expired_total", "Tracks expired", () -> expiredTracks.get());
+        metrics.counter("rspcn_overlay_frames_total", "Frames rendered with overlays", () -> overlayFrames.get());
+        metrics.counter("rspcn_idle_frames_total", "Frames skipped by the motion gate", () -> motionGate.getIdleFrames());
+        metrics.counter("rspcn_skipped_frames_total", "Camera frames skipped by the adaptive frame rate", () -> skippedFrames.get());
+        metrics.gauge("rspcn_frame_stride", "Camera frames per processed frame", () -> Math.min(frameStride, maxFrameStride));
+        metrics.counter("rspcn_events_committed_total", "Crossing events committed to the event log", () -> {
+            CrossingEventLog log = eventLog;
+            return log == null ? 0 : log.getCommitted();
+        });
+        metrics.counter("rspcn_events_dropped_total", "Crossing events dropped by the event log", () -> {
+            CrossingEventLog log = eventLog;
+            return log == null ? 0 : log.getDropped();
+        });
+        metrics.counter("rspcn_pipeline_dropped_total", "Frames dropped by the pipeline queues", () -> {
+            FramePipeline p = pipeline;
+            return p == null ? 0 : p.getSegmentQueue().getDropped() + p.getTrackQueue().getDropped() + p.getRenderQueue().getDropped();
+        });
+        metrics.counter("rspcn_recorder_dropped_total", "Frames dropped by the video recorders", () -> {
+            VideoRecorderSink color = recorderColor, track = recorderTrack;
+            return color == null || track == null ? 0 : color.getDropped() + track.getDropped();
+        });
+
+        metrics.counter("rspcn_raw_dropped_total", "Frames dropped by the raw stream writer", () -> {
+            RawStreamWriter raw = rawWriter;
+            return raw == null ? 0 : raw.getDropped();
+        });
+
+        for(LatencyStats stats : getLatencyStats())
+            metrics.latency("rspcn_stage_latency_ms", "Stage latency [ms]", stats);
+
+        return;
+    }
+
+    void resetLatencyStats() {
+        for(LatencyStats stats : getLatencyStats())
+            stats.reset();
+
+        motionGate.reset();
+
+        return;
+    }
+
+    public String getStageStats() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append(captureStats).append('\n');
+        sb.append(segmentStats).append('\n');
+        sb.append("  ").append(thresholdStats).append('\n');
+        sb.append("  ").append(blurStats).append('\n');
+        sb.append("  ").append(contoursStats).append('\n');
+        sb.append(trackStats).append('\n');
+        sb.append(renderStats).append('\n');
+        sb.append(frameLatencyStats);
+
+        if(isDepthOnly())
+            sb.append('\n').append("streams   depth only");
+        else
+            sb.append('\n').append("overlays  ").append(overlayFrames.get()).append(" frames, one every ").append(overlayDecimation);
+
+        if(motionGateMode)
+            sb.append('\n').append(motionGate.getGateStats()).append('\n').append(motionGate);
+
+        if(maxFrameStride > 1)
+            sb.append('\n').append("stride    ").append(Math.min(frameStride, maxFrameStride)).append(" of ").append(maxFrameStride)
+              .append(", skipped ").append(skippedFrames.get()).append(" frames");
+
+        if(pipeline != null) {
+            sb.append('\n').append("dropped   segment=").append(pipeline.getSegmentQueue().getDropped())
+              .append(" track=").append(pipeline.getTrackQueue().getDropped())
+              .append(" render=").append(pipeline.getRenderQueue().getDropped());
+        }
+
+        if(eventLog != null) {
+            sb.append('\n').append(eventLog.getCommitStats());
+            sb.append('\n').append("events    appended=").append(eventLog.getAppended())
+              .append(" committed=").append(eventLog.getCommitted())
+              .append(" commits=").append(eventLog.getCommits())
+              .append(" dropped=").append(eventLog.getDropped())
+              .append(" recovered=").append(eventLog.getRecovered())
+              .append(eventLog.hasFailed() ? " writer FAILED" : "");
+        }
+
+        if(rawWriter != null) {
+            sb.append('\n').append(rawWriter.getWriteStats());
+            sb.append('\n').append("raw       written=").append(rawWriter.getFrames())
+              .append(" dropped=").append(rawWriter.getDropped())
+              .append(" queued=").append(rawWriter.getQueued());
+        }
+
+        if(recorderColor != null) {
+            for(VideoRecorderSink recorder : new VideoRecorderSink[] {recorderColor, recorderTrack}) {
+                sb.append('\n').append(recorder.getEncodeStats());
+                sb.append('\n').append("recorder  encoded=").append(recorder.getEncoded())
+                  .append(" dropped=").append(recorder.getDropped())
+                  .append(" decimated=").append(recorder.getDecimated())
+                  .append(" queued=").append(recorder.getQueued());
+            }
+        }
+
+        return sb.toString();
+    }
     
-    public void setAreaThreshold(int areaThreshold) {
-        this.areaThreshold = areaThreshold;
+    // Restricts segmentation to rows imageHeight/2 +- roiHalfHeight around the counting line (0: whole frame).
+    // Passengers are counted the same as long as the band holds their whole blob on both sides of the line.
+    public synchronized void setRoiHalfHeight(int roiHalfHeight) {
+        if(roiHalfHeight < 0)
+            System.out.println( "Error: assertion roiHalfHeight >= 0 failed.");
+        else if(roiHalfHeight > imageHeight/2)
+            System.out.println( "Error: assertion roiHalfHeight <= imageHeight/2 failed.");
+        else
+            config = config.withRoiHalfHeight(roiHalfHeight);
+    }
+
+    // Sizes the band from yNear: a passenger moves less than yNear per frame, so the band keeps at least
+    // trackFrames frames of its track on each side of the line, up to the whole frame
+    public synchronized void setRoiTrackFrames(int trackFrames) {
+        setRoiHalfHeight(trackFrames <= 0 ? 0 : Math.min(imageHeight/2, trackFrames * config.getYNear()));
+    }
+
+    public int getRoiHalfHeight() {
+        return config.getRoiHalfHeight();
+    }
+
+    public int getAreaThreshold() {
+        return config.getAreaThreshold();
+    }
+
+    public synchronized void setAreaThreshold(int areaThreshold) {
+        config = config.withAreaThreshold(areaThreshold);
+    }
+
+    public CounterConfig getConfig() {
+        return config;
+    }
+
+    public PassengerMatcher getPassengerMatcher() {
+        return passengerMatcher;
+    }
+
+    public void setPassengerMatcher(PassengerMatcher passengerMatcher) {
+        this.passengerMatcher = passengerMatcher;
+    }
+
+    // 0: legacy first-hit scan, 1: grid nearest neighbour, 2: grid with global greedy matching
+    public void setMatcherMode(int mode) {
+        if(mode == 0)
+            setPassengerMatcher(new LegacyPassengerMatcher());
+        else if(mode == 1)
+            setPassengerMatcher(new GridPassengerMatcher(imageWidth, imageHeight, false));
+        else if(mode == 2)
+            setPassengerMatcher(new GridPassengerMatcher(imageWidth, imageHeight, true));
+        else
+            System.out.println( "Error: assertion matcherMode is 0, 1 or 2 failed.");
     }
 }
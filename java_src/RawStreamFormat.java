@@ -0,0 +1,107 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+// Raw depth/color stream container.
+//
+// Header (HEADER_SIZE bytes, little endian):
+//   magic[8] version:int width:int height:int fps:int depthScale:float flags:int
+//   name[64] serial[32] firmware[32]
+// followed by fixed size frame records:
+//   timestamp:long [nanoseconds]  depth[width*height*2] (z16)  color[width*height*3] (rgb8, if FLAG_COLOR)
+//
+// Records have a fixed stride so any frame can be addressed directly. A truncated last record is ignored.
+public class RawStreamFormat {
+
+    public static final byte[] MAGIC = {'R','S','P','C','N','R','A','W'};
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 256;
+    public static final int FLAG_COLOR = 1;
+
+    private static final int NAME_SIZE = 64;
+    private static final int SERIAL_SIZE = 32;
+    private static final int FIRMWARE_SIZE = 32;
+
+    // Variables
+    int width;
+    int height;
+    int fps;
+    float depthScale;
+    int flags;
+    String name = "";
+    String serial = "";
+    String firmware = "";
+
+    // Selectors
+    public boolean hasColor() {return (flags & FLAG_COLOR) != 0;}
+    public int getDepthSize() {return width * height * 2;}
+    public int getColorSize() {return hasColor() ? width * height * 3 : 0;}
+    public int getRecordSize() {return 8 + getDepthSize() + getColorSize();}
+
+    // Methods
+    public ByteBuffer writeHeader() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        header.put(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(width);
+        header.putInt(height);
+        header.putInt(fps);
+        header.putFloat(depthScale);
+        header.putInt(flags);
+        putString(header, name, NAME_SIZE);
+        putString(header, serial, SERIAL_SIZE);
+        putString(header, firmware, FIRMWARE_SIZE);
+
+        header.clear();
+        return header;
+    }
+
+    public static RawStreamFormat readHeader(ByteBuffer header) {
+        header.order(ByteOrder.LITTLE_ENDIAN);
+
+        byte[] magic = new byte[MAGIC.length];
+        header.get(magic);
+
+        if(!java.util.Arrays.equals(magic, MAGIC))
+            throw new IllegalArgumentException("Not a raw stream file");
+
+        int version = header.getInt();
+        if(version != VERSION)
+            throw new IllegalArgumentException("Unsupported raw stream version " + version);
+
+        RawStreamFormat format = new RawStreamFormat();
+        format.width = header.getInt();
+        format.height = header.getInt();
+        format.fps = header.getInt();
+        format.depthScale = header.getFloat();
+        format.flags = header.getInt();
+        format.name = getString(header, NAME_SIZE);
+        format.serial = getString(header, SERIAL_SIZE);
+        format.firmware = getString(header, FIRMWARE_SIZE);
+
+        return format;
+    }
+
+    private static void putString(ByteBuffer buffer, String value, int size) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int n = Math.min(bytes.length, size);
+
+        buffer.put(bytes, 0, n);
+        for(int i = n; i < size; i++)
+            buffer.put((byte)0);
+
+        return;
+    }
+
+    private static String getString(ByteBuffer buffer, int size) {
+        byte[] bytes = new byte[size];
+        buffer.get(bytes);
+
+        int n = 0;
+        while(n < size && bytes[n] != 0)
+            n++;
+
+        return new String(bytes, 0, n, StandardCharsets.UTF_8);
+    }
+}
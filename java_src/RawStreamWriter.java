@@ -0,0 +1,151 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.bytedeco.javacpp.*;
+
+public class RawStreamWriter implements Runnable {
+
+    // How long the writer sleeps when there is nothing to write [nanoseconds]
+    private static final long IDLE_PARK = 1000000;
+
+    // Variables
+    private final String fileName;
+    private final RawStreamFormat format;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+
+    private final Entry[] entries;
+    private final RingBuffer<Entry> ring;
+
+    private Thread thread;
+    private volatile boolean running = false;
+
+    // Statistics
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final LatencyStats writeStats = new LatencyStats("raw write");
+
+    // One frame record: timestamp, depth and color
+    private static class Entry {
+        ByteBuffer record;
+    }
+
+    // Constructor
+    RawStreamWriter(String name, RawStreamFormat streamFormat, int capacity) throws IOException {
+        fileName = name;
+        format = streamFormat;
+
+        int recordSize = 8 + format.getDepthSize() + (format.hasColor() ? format.getColorSize() : 0);
+
+        entries = new Entry[capacity];
+        for(int i = 0; i < capacity; i++) {
+            entries[i] = new Entry();
+            entries[i].record = ByteBuffer.allocateDirect(recordSize).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        ring = new RingBuffer<Entry>(entries);
+
+        file = new RandomAccessFile(fileName, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+
+        writeFully(format.writeHeader());
+    }
+
+    // Selectors
+    public long getFrames() {return frames.get();}
+    public long getDropped() {return dropped.get();}
+    public int getQueued() {return ring.size();}
+    public LatencyStats getWriteStats() {return writeStats;}
+
+    // Methods
+    public void start() {
+        running = true;
+        thread = new Thread(this, "Raw writer " + fileName);
+        thread.start();
+
+        return;
+    }
+
+    // Called by the capture thread. Copies the frames and returns immediately: frames are dropped when the
+    // ring is full, the caller never waits for the disk.
+    public boolean write(long captureTime, Pointer depth, Pointer color) {
+
+        Entry entry = ring.claim();
+
+        if(entry == null) {
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        ByteBuffer record = entry.record;
+
+        record.clear();
+        record.putLong(captureTime);
+        record.put(view(depth, format.getDepthSize()));
+
+        if(format.hasColor())
+            record.put(view(color, format.getColorSize()));
+
+        record.flip();
+        ring.publish();
+
+        return true;
+    }
+
+    public void run() {
+
+        try {
+            while(running || ring.peek() != null) {
+                Entry entry = ring.peek();
+
+                if(entry == null) {
+                    LockSupport.parkNanos(IDLE_PARK);
+                    continue;
+                }
+
+                long t0 = System.nanoTime();
+
+                writeFully(entry.record);
+                ring.release();
+
+                writeStats.record(System.nanoTime() - t0);
+                frames.incrementAndGet();
+            }
+        } catch (IOException e) {
+            System.out.println( e );
+        }
+
+        return;
+    }
+
+    // Writes the frames still queued, then closes the file
+    public void close() throws Exception {
+        running = false;
+
+        if(thread != null)
+            thread.join();
+
+        channel.force(true);
+        file.close();
+
+        return;
+    }
+
+    // Direct buffer over the native frame data, no copy involved
+    private static ByteBuffer view(Pointer data, int size) {
+        return new BytePointer(data).capacity(size).asByteBuffer();
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining())
+            channel.write(buffer);
+
+        return;
+    }
+}
@@ -0,0 +1,84 @@
+import org.bytedeco.javacpp.*;
+
+import org.bytedeco.javacpp.RealSense;
+import org.bytedeco.javacpp.RealSense.device;
+
+public class RealSenseFrameSource implements FrameSource {
+
+    // Variables
+    private device device;
+    private boolean color = false;
+
+    // Constructor
+    RealSenseFrameSource(device assignedDevice) {
+        device = assignedDevice;
+    }
+
+    // Selectors
+    public String getName() {return device.get_name().getString();}
+    public String getSerial() {return device.get_serial().getString();}
+    public String getFirmware() {return device.get_firmware_version().getString();}
+    public float getDepthScale() {return device.get_depth_scale();}
+    public boolean hasColor() {return color;}
+
+    // Methods
+    public void enableStreams(int width, int height, int fps, boolean enableColor) {
+        color = enableColor;
+
+        if(color)
+            device.enable_stream(RealSense.color, width, height, RealSense.rgb8, fps);
+
+        device.enable_stream(RealSense.depth, width, height, RealSense.z16, fps);
+
+        return;
+    }
+
+    public void disableStreams() {
+        if(color)
+            device.disable_stream(RealSense.color);
+
+        device.disable_stream(RealSense.depth);
+
+        return;
+    }
+
+    public void start() {
+        device.start();
+        return;
+    }
+
+    public void stop() {
+        device.stop();
+        return;
+    }
+
+    public void close() {
+        // The device belongs to the librealsense context
+        return;
+    }
+
+    public boolean waitForFrames() {
+        device.wait_for_frames();
+        return true;
+    }
+
+    public Pointer getDepthData() {
+        return device.get_frame_data(RealSense.depth);
+    }
+
+    public Pointer getColorData() {
+        return device.get_frame_data(RealSense.color);
+    }
+
+    public void applyPreset(int cameraType, int value) {
+
+        if(cameraType == 0) {
+            RealSense.apply_depth_control_preset(device, value);
+        }
+        else {
+            RealSense.apply_ivcam_preset(device, value);
+        }
+
+        return;
+    }
+}
@@ -0,0 +1,192 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.bytedeco.javacpp.*;
+
+public class ReplayFrameSource implements FrameSource {
+
+    // Largest file region mapped at once [bytes]
+    private static final long MAX_MAP_SIZE = 1L << 30;
+
+    // Variables
+    private final String fileName;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final RawStreamFormat format;
+
+    private final long frameCount;
+    private final int framesPerMap;
+    private MappedByteBuffer map;
+    private long mapIndex = -1;
+
+    // Replay at recorded fps, or as fast as possible
+    private boolean realTime;
+    private boolean loop = false;
+
+    private long frame = -1;
+    private long firstTimestamp;
+    private long startTime;
+
+    private boolean color = false;
+    private Pointer depthData;
+    private Pointer colorData;
+
+    // Constructor
+    ReplayFrameSource(String replayFileName, boolean replayRealTime) throws IOException {
+        fileName = replayFileName;
+        realTime = replayRealTime;
+
+        file = new RandomAccessFile(fileName, "r");
+        channel = file.getChannel();
+
+        ByteBuffer header = ByteBuffer.allocate(RawStreamFormat.HEADER_SIZE);
+        while(header.hasRemaining() && channel.read(header, header.position()) > 0);
+        header.flip();
+
+        format = RawStreamFormat.readHeader(header);
+
+        // A record cut by a power loss during a live recording is simply ignored
+        frameCount = (channel.size() - RawStreamFormat.HEADER_SIZE) / format.getRecordSize();
+        framesPerMap = (int)Math.max(1, MAX_MAP_SIZE / format.getRecordSize());
+    }
+
+    // Selectors
+    public String getName() {return format.name;}
+    public String getSerial() {return format.serial;}
+    public String getFirmware() {return format.firmware;}
+    public float getDepthScale() {return format.depthScale;}
+    public boolean hasColor() {return color;}
+
+    public long getFrameCount() {return frameCount;}
+    public long getFrameIndex() {return frame;}
+    public int getFps() {return format.fps;}
+
+    // Methods
+    public void setLoop(boolean loop) {
+        this.loop = loop;
+    }
+
+    public void enableStreams(int width, int height, int fps, boolean enableColor) {
+
+        if(width != format.width || height != format.height)
+            throw new IllegalArgumentException("Replay file " + fileName + " is " + format.width + "x" + format.height
+                                               + ", requested " + width + "x" + height);
+
+        color = enableColor && format.hasColor();
+
+        return;
+    }
+
+    public void disableStreams() {
+        return;
+    }
+
+    public void start() {
+        frame = -1;
+        return;
+    }
+
+    public void stop() {
+        return;
+    }
+
+    public boolean waitForFrames() {
+
+        frame++;
+
+        if(frame >= frameCount) {
+            if(!loop || frameCount == 0)
+                return false;
+
+            frame = 0;
+        }
+
+        try {
+            ByteBuffer record = record(frame);
+
+            long timestamp = record.getLong(0);
+
+            if(frame == 0) {
+                firstTimestamp = timestamp;
+                startTime = System.nanoTime();
+            }
+
+            depthData = slice(record, 8, format.getDepthSize());
+
+            if(color)
+                colorData = slice(record, 8 + format.getDepthSize(), format.getColorSize());
+
+            if(realTime) {
+                long wait = (startTime + (timestamp - firstTimestamp)) - System.nanoTime();
+
+                if(wait > 0)
+                    Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+            }
+        } catch (IOException e) {
+            System.out.println( e );
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        return true;
+    }
+
+    public Pointer getDepthData() {
+        return depthData;
+    }
+
+    public Pointer getColorData() {
+        return colorData;
+    }
+
+    public void applyPreset(int cameraType, int value) {
+        // Presets only apply to live cameras
+        return;
+    }
+
+    public void close() throws IOException {
+        map = null;
+        file.close();
+
+        return;
+    }
+
+    private ByteBuffer record(long index) throws IOException {
+
+        long mapped = index / framesPerMap;
+
+        if(mapped != mapIndex) {
+            long first = mapped * framesPerMap;
+            long frames = Math.min(framesPerMap, frameCount - first);
+
+            map = channel.map(FileChannel.MapMode.READ_ONLY,
+                              RawStreamFormat.HEADER_SIZE + first * format.getRecordSize(),
+                              frames * format.getRecordSize());
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            mapIndex = mapped;
+        }
+
+        int offset = (int)((index % framesPerMap) * format.getRecordSize());
+
+        ByteBuffer record = map.duplicate();
+        record.position(offset);
+        record.limit(offset + format.getRecordSize());
+
+        return record.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // Native pointer straight into the mapped file, the frame data is never copied
+    private static Pointer slice(ByteBuffer record, int offset, int size) {
+        ByteBuffer data = record.duplicate();
+        data.position(offset);
+        data.limit(offset + size);
+
+        return new Pointer(data.slice());
+    }
+}
@@ -0,0 +1,63 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RingBuffer<T> {
+
+    // Variables
+    private final Object[] entries;
+    private final int mask;
+
+    // Sequence of the next entry to write (producer) and to read (consumer)
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    // Constructor
+    // Single producer, single consumer ring over preallocated entries. capacity must be a power of two.
+    RingBuffer(T[] preallocated) {
+
+        if(Integer.bitCount(preallocated.length) != 1)
+            throw new IllegalArgumentException("RingBuffer capacity must be a power of two");
+
+        entries = preallocated;
+        mask = preallocated.length - 1;
+    }
+
+    // Selectors
+    public int capacity() {return entries.length;}
+    public int size() {return (int)(tail.get() - head.get());}
+
+    // Methods
+
+    // Producer side: returns the entry to fill, or null if the ring is full. Never blocks.
+    @SuppressWarnings("unchecked")
+    public T claim() {
+        long t = tail.get();
+
+        if(t - head.get() == entries.length)
+            return null;
+
+        return (T)entries[(int)(t & mask)];
+    }
+
+    // Producer side: makes the last claimed entry visible to the consumer
+    public void publish() {
+        tail.lazySet(tail.get() + 1);
+        return;
+    }
+
+    // Consumer side: returns the oldest published entry, or null if the ring is empty
+    @SuppressWarnings("unchecked")
+    public T peek() {
+        long h = head.get();
+
+        if(h == tail.get())
+            return null;
+
+        return (T)entries[(int)(h & mask)];
+    }
+
+    // Consumer side: hands the entry returned by peek back to the producer
+    public void release() {
+        head.lazySet(head.get() + 1);
+        return;
+    }
+}
@@ -0,0 +1,75 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class StageQueue {
+
+    // Queue policies
+    public static final int BACKPRESSURE = 0; // A full queue blocks the producer stage
+    public static final int DROP_OLDEST  = 1; // A full queue discards its oldest frame
+
+    // Variables
+    private final String name;
+    private final int policy;
+    private final BlockingQueue<FrameBuffers> queue;
+
+    // Dropped frames go back to the pool they were taken from
+    private final BlockingQueue<FrameBuffers> freeBuffers;
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    // Camera frames of the dropped frames not yet handed over to a consumer
+    private final AtomicInteger droppedSteps = new AtomicInteger();
+
+    // Constructor
+    StageQueue(String queueName, int capacity, int queuePolicy, BlockingQueue<FrameBuffers> pool) {
+        name = queueName;
+        policy = queuePolicy;
+        queue = new ArrayBlockingQueue<FrameBuffers>(capacity);
+        freeBuffers = pool;
+    }
+
+    // Selectors
+    public String getName() {return name;}
+    public int getPolicy() {return policy;}
+    public int size() {return queue.size();}
+    public long getDropped() {return dropped.get();}
+
+    // Methods
+    public void put(FrameBuffers frame) throws InterruptedException {
+
+        if(policy == BACKPRESSURE) {
+            queue.put(frame);
+            return;
+        }
+
+        while(!queue.offer(frame)) {
+            FrameBuffers oldest = queue.poll();
+
+            if(oldest != null) {
+                dropped.incrementAndGet();
+                droppedSteps.addAndGet(oldest.getFrameStep());
+                freeBuffers.offer(oldest);
+            }
+        }
+
+        return;
+    }
+
+    // Camera frames dropped since the previous call: a consumer that tracks adds them to the frame step of the
+    // next frame it processes, like frames skipped by the adaptive frame rate
+    public int takeDroppedSteps() {
+        return droppedSteps.getAndSet(0);
+    }
+
+    public FrameBuffers poll(long timeoutMillis) throws InterruptedException {
+        return queue.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void drainTo(BlockingQueue<FrameBuffers> pool) {
+        queue.drainTo(pool);
+        return;
+    }
+}
@@ -0,0 +1,145 @@
+import java.util.Random;
+
+import org.bytedeco.javacpp.*;
+
+public class SyntheticFrameSource implements FrameSource {
+
+    // Depth values in device units (DEPTH_SCALE meters per unit)
+    private static final float DEPTH_SCALE = 0.001f;
+    private static final short FLOOR_DEPTH = 2500;
+    private static final short HEAD_DEPTH  = 350;
+
+    // Variables
+    private final String name;
+    private final int blobCount;
+    private final int blobRadius;
+
+    private int imageWidth;
+    private int imageHeight;
+
+    private ShortPointer depthData;
+    private short[] depthPixels;
+
+    // Blobs walk vertically through the frame and wrap around, crossing the counting line
+    private final float[] blobX;
+    private final float[] blobY;
+    private final float[] blobSpeed;
+
+    private long frames = 0;
+
+    // Constructor
+    // cameraName selects the resolution through the RSPCN presets ("Intel RealSense R200" or "Intel RealSense SR300")
+    SyntheticFrameSource(String cameraName, int blobs, int radius, long seed) {
+        name = cameraName;
+        blobCount = blobs;
+        blobRadius = radius;
+
+        blobX = new float[blobCount];
+        blobY = new float[blobCount];
+        blobSpeed = new float[blobCount];
+
+        Random random = new Random(seed);
+        for(int i = 0; i < blobCount; i++) {
+            blobX[i] = random.nextFloat();
+            blobY[i] = random.nextFloat();
+            blobSpeed[i] = (random.nextBoolean() ? 1 : -1) * (0.002f + 0.01f * random.nextFloat());
+        }
+    }
+
+    // Selectors
+    public String getName() {return name;}
+    public String getSerial() {return "synthetic-" + blobCount;}
+    public String getFirmware() {return "synthetic";}
+    public float getDepthScale() {return DEPTH_SCALE;}
+    public boolean hasColor() {return false;}
+
+    public long getFrames() {return frames;}
+
+    // Ground truth: center of blob i in the last frame [pixels]
+    public int getBlobCount() {return blobCount;}
+    public int getBlobX(int i) {return (int)(blobX[i] * imageWidth);}
+    public int getBlobY(int i) {return (int)(blobY[i] * imageHeight);}
+
+    // Methods
+    public void enableStreams(int width, int height, int fps, boolean color) {
+        imageWidth = width;
+        imageHeight = height;
+
+        depthData = new ShortPointer((long)imageWidth * imageHeight);
+        depthPixels = new short[imageWidth * imageHeight];
+
+        return;
+    }
+
+    public void disableStreams() {
+        if(depthData != null)
+            depthData.deallocate();
+
+        depthData = null;
+        return;
+    }
+
+    public void start() {
+        return;
+    }
+
+    public void stop() {
+        return;
+    }
+
+    public boolean waitForFrames() {
+
+        java.util.Arrays.fill(depthPixels, FLOOR_DEPTH);
+
+        for(int i = 0; i < blobCount; i++) {
+            blobY[i] += blobSpeed[i];
+
+            if(blobY[i] > 1)
+                blobY[i] -= 1;
+            else if(blobY[i] < 0)
+                blobY[i] += 1;
+
+            drawDisc((int)(blobX[i] * imageWidth), (int)(blobY[i] * imageHeight));
+        }
+
+        depthData.position(0).put(depthPixels, 0, depthPixels.length);
+        depthData.position(0);
+
+        frames++;
+
+        return true;
+    }
+
+    public Pointer getDepthData() {
+        return depthData;
+    }
+
+    public Pointer getColorData() {
+        return null;
+    }
+
+    public void applyPreset(int cameraType, int value) {
+        return;
+    }
+
+    public void close() {
+        return;
+    }
+
+    private void drawDisc(int cx, int cy) {
+
+        int r2 = blobRadius * blobRadius;
+
+        for(int y = Math.max(0, cy - blobRadius); y <= Math.min(imageHeight - 1, cy + blobRadius); y++) {
+            for(int x = Math.max(0, cx - blobRadius); x <= Math.min(imageWidth - 1, cx + blobRadius); x++) {
+                int dx = x - cx;
+                int dy = y - cy;
+
+                if(dx * dx + dy * dy <= r2)
+                    depthPixels[y * imageWidth + x] = HEAD_DEPTH;
+            }
+        }
+
+        return;
+    }
+}
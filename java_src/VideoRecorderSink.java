@@ -0,0 +1,201 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.bytedeco.javacv.*;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+public class VideoRecorderSink implements Runnable {
+
+    // How long the encoder sleeps when there is nothing to encode [nanoseconds]
+    private static final long IDLE_PARK = 1000000;
+
+    // Variables
+    private final String fileName;
+    private final int imageWidth;
+    private final int imageHeight;
+    private final int fps;
+
+    private final Entry[] entries;
+    private final RingBuffer<Entry> ring;
+
+    private Thread thread;
+    private volatile boolean running = false;
+
+    // Record one frame every decimation submitted frames. Under pressure this is doubled automatically.
+    private volatile int decimation = 1;
+    private long submitted = 0;
+
+    // Rotate to a new file every segmentFrames encoded frames (0: never)
+    private volatile int segmentFrames = 0;
+    private int segment = 0;
+    private long segmentStart = -1;
+    private int segmentEncoded = 0;
+
+    private FFmpegFrameRecorder recorder;
+    private final OpenCVFrameConverter.ToIplImage converter = new OpenCVFrameConverter.ToIplImage();
+
+    // Statistics
+    private final AtomicLong encoded = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong decimated = new AtomicLong();
+    private final LatencyStats encodeStats;
+
+    private static class Entry {
+        IplImage image;
+        long timestamp;
+    }
+
+    // Constructor
+    VideoRecorderSink(String name, int width, int height, int channels, int frameRate, int capacity) {
+        fileName = name;
+        imageWidth = width;
+        imageHeight = height;
+        fps = frameRate;
+
+        entries = new Entry[capacity];
+        for(int i = 0; i < capacity; i++) {
+            entries[i] = new Entry();
+            entries[i].image = NativeImages.create(imageWidth, imageHeight, IPL_DEPTH_8U, channels);
+        }
+
+        ring = new RingBuffer<Entry>(entries);
+        encodeStats = new LatencyStats("encode " + name);
+    }
+
+    // Selectors
+    public long getEncoded() {return encoded.get();}
+    public long getDropped() {return dropped.get();}
+    public long getDecimated() {return decimated.get();}
+    public int getQueued() {return ring.size();}
+    public LatencyStats getEncodeStats() {return encodeStats;}
+
+    // Methods
+    public void setDecimation(int decimation) {
+        this.decimation = Math.max(1, decimation);
+    }
+
+    public void setSegmentFrames(int segmentFrames) {
+        this.segmentFrames = Math.max(0, segmentFrames);
+    }
+
+    public void start() throws Exception {
+        openSegment();
+
+        running = true;
+        thread = new Thread(this, "Recorder " + fileName);
+        thread.start();
+
+        return;
+    }
+
+    // Called by the counting thread. Copies the image and returns immediately: frames are
+    // decimated when the ring fills up and dropped when it is full, the caller never blocks.
+    public boolean submit(IplImage image, long captureTime) {
+
+        long n = submitted++;
+
+        int step = decimation;
+        if(ring.size() > ring.capacity() / 2)
+            step *= 2;
+
+        if(n % step != 0) {
+            decimated.incrementAndGet();
+            return false;
+        }
+
+        Entry entry = ring.claim();
+
+        if(entry == null) {
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        cvCopy(image, entry.image);
+        entry.timestamp = captureTime;
+        ring.publish();
+
+        return true;
+    }
+
+    public void run() {
+
+        try {
+            while(running || ring.peek() != null) {
+                Entry entry = ring.peek();
+
+                if(entry == null) {
+                    LockSupport.parkNanos(IDLE_PARK);
+                    continue;
+                }
+
+                long t0 = System.nanoTime();
+
+                encode(entry);
+                ring.release();
+
+                encodeStats.record(System.nanoTime() - t0);
+                encoded.incrementAndGet();
+            }
+        } catch (Exception e) {
+            System.out.println( e );
+        }
+
+        return;
+    }
+
+    public void stop() throws Exception {
+        running = false;
+
+        if(thread != null)
+            thread.join();
+
+        if(recorder != null) {
+            recorder.stop();
+            recorder.release();
+        }
+
+        for(Entry entry : entries)
+            NativeImages.release(entry.image);
+
+        return;
+    }
+
+    private void encode(Entry entry) throws Exception {
+
+        if(segmentFrames > 0 && segmentEncoded >= segmentFrames) {
+            recorder.stop();
+            recorder.release();
+
+            segment++;
+            openSegment();
+        }
+
+        if(segmentStart < 0)
+            segmentStart = entry.timestamp;
+
+        // Timestamps follow capture time so dropped and decimated frames don't speed up the video
+        long timestamp = (entry.timestamp - segmentStart) / 1000;
+        if(timestamp > recorder.getTimestamp())
+            recorder.setTimestamp(timestamp);
+
+        recorder.record(converter.convert(entry.image));
+        segmentEncoded++;
+
+        return;
+    }
+
+    private void openSegment() throws Exception {
+
+        String name = segment == 0 ? fileName + ".mp4" : fileName + "-" + segment + ".mp4";
+
+        recorder = FFmpegFrameRecorder.createDefault(name, imageWidth, imageHeight);
+        recorder.setFrameRate(fps);
+        recorder.start();
+
+        segmentStart = -1;
+        segmentEncoded = 0;
+
+        return;
+    }
+}
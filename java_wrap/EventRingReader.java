@@ -0,0 +1,156 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Polls the crossing events a counter publishes with RSPCN.openEventRing(), without any JNI call.
+// The ring is a POSIX shared memory object (/dev/shm on Linux), so it can be read by this process or any other one.
+// The layout is defined in src/snapshot.h. The counter never waits for readers: events overwritten before
+// being polled are counted as lost.
+//
+// Usage: java EventRingReader <ring name>
+public class EventRingReader
+{
+    public static final int MAGIC = 0x52455352;
+    public static final int VERSION = 1;
+
+    public static final int IN = 1;
+    public static final int OUT = 2;
+
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_SIZE = 32;
+
+    // Variables
+    private final RandomAccessFile file;
+    private final MappedByteBuffer ring;
+    private final int capacity;
+
+    // Sequence of the next event to read
+    private long next = 1;
+    private long lost = 0;
+
+    // Java 8 has no explicit fences: see fence()
+    private volatile int barrier;
+
+    public interface Visitor
+    {
+        void visit(long timestamp, int pid, int direction, int passengers, int countIn, int countOut);
+    }
+
+    // Constructor
+    public EventRingReader(String name) throws IOException
+    {
+        file = new RandomAccessFile("/dev/shm/" + (name.startsWith("/") ? name.substring(1) : name), "r");
+        ring = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        ring.order(ByteOrder.nativeOrder());
+
+        if(ring.getInt(0) != MAGIC || ring.getInt(4) != VERSION || ring.getInt(12) != RECORD_SIZE)
+        {
+            file.close();
+            throw new IllegalArgumentException("Not a crossing event ring: " + name);
+        }
+
+        capacity = ring.getInt(8);
+
+        // Start with the next event written
+        next = ring.getLong(16) + 1;
+    }
+
+    // Selectors
+    public long getLost() {return lost;}
+
+    // Methods
+
+    // Visits the events written since the last poll. Returns the number of events visited.
+    public int poll(Visitor visitor)
+    {
+        int visited = 0;
+
+        long written = ring.getLong(16);
+        fence();
+
+        // The counter opened the ring again: its sequence starts over
+        if(written < next - 1)
+            next = 1;
+
+        // Lapped by the writer: skip to the oldest event still in the ring
+        if(written - next >= capacity)
+        {
+            lost += written - capacity + 1 - next;
+            next = written - capacity + 1;
+        }
+
+        for(; next <= written; next++)
+        {
+            int offset = HEADER_SIZE + (int)((next - 1) & (capacity - 1)) * RECORD_SIZE;
+
+            if(ring.getLong(offset) != next)
+            {
+                lost++;
+                continue;
+            }
+
+            fence();
+
+            long timestamp = ring.getLong(offset + 8);
+            int pid = ring.getInt(offset + 16);
+            int direction = ring.get(offset + 20);
+            int passengers = ring.get(offset + 21);
+            int countIn = ring.getInt(offset + 24);
+            int countOut = ring.getInt(offset + 28);
+
+            fence();
+
+            // Overwritten while being read
+            if(ring.getLong(offset) != next)
+            {
+                lost++;
+                continue;
+            }
+
+            visitor.visit(timestamp, pid, direction, passengers, countIn, countOut);
+            visited++;
+        }
+
+        return visited;
+    }
+
+    public void close() throws IOException
+    {
+        file.close();
+        return;
+    }
+
+    // Reads of the ring are not moved across this call: HotSpot keeps memory accesses on their side of a
+    // volatile read followed by a volatile write
+    private void fence()
+    {
+        barrier = barrier + 1;
+        return;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if(args.length < 1)
+        {
+            System.out.println("Usage: java EventRingReader <ring name>");
+            return;
+        }
+
+        EventRingReader reader = new EventRingReader(args[0]);
+
+        while(true)
+        {
+            reader.poll(new Visitor()
+            {
+                public void visit(long timestamp, int pid, int direction, int passengers, int countIn, int countOut)
+                {
+                    System.out.println(String.format("%tT  pid %d %s x%d  in %d  out %d", timestamp, pid, direction == IN ? "IN " : "OUT", passengers, countIn, countOut));
+                }
+            });
+
+            Thread.sleep(10);
+        }
+    }
+}
@@ -19,6 +19,7 @@ public class Main {
         System.out.print("* 0 - 5: selecting camera presets\n");
         System.out.print("* r: resetting counters\n");
         System.out.print("* p: get passenger count\n");
+        System.out.print("* e: print the crossing events since the last e (needs -e)\n");
         System.out.print("* c: toggle display color\n");
         System.out.print("* C: toggle display calibration\n");
         System.out.print("* d: toggle display depth view\n");
@@ -41,13 +42,33 @@ public class Main {
         RSPCN myRSPCN = new RSPCN(0);
         // RSPCN myRSPCN_1 = new RSPCN(1);
 
-        if(args.length > 0)
+        RSPCNSnapshot snapshot = new RSPCNSnapshot(64);
+        EventRingReader events = null;
+
+        for(int i = 0; i < args.length; i++)
         {
-            if(args[0].equals("-s"))
+            if(args[i].equals("-s"))
             {
                 myRSPCN.setSaveVideo(true);
                 System.out.println("Saving video color steam.");
             }
+            else if(args[i].equals("-e"))
+            {
+                if(myRSPCN.openEventRing("/rspcn-events-0", 1024))
+                {
+                    try
+                    {
+                        events = new EventRingReader("/rspcn-events-0");
+                        System.out.println("Publishing crossing events in /dev/shm/rspcn-events-0.");
+                    }
+                    catch(IOException e)
+                    {
+                        System.out.println(e);
+                    }
+                }
+                else
+                    System.out.println("Unable to open the crossing event ring.");
+            }
         }
 
         myRSPCN.start();
@@ -78,8 +99,27 @@ public class Main {
 
                     case('p'):
                         System.out.println("Current count:");
-                        System.out.println("Count in  = " + myRSPCN.getCountIn());
-                        System.out.println("Count out = " + myRSPCN.getCountOut());
+                        if(snapshot.update(myRSPCN))
+                            System.out.print(snapshot);
+                        break;
+
+                    case('e'):
+                        if(events == null)
+                        {
+                            System.out.println("Event ring not enabled: start with -e");
+                            break;
+                        }
+
+                        events.poll(new EventRingReader.Visitor()
+                        {
+                            public void visit(long timestamp, int pid, int direction, int passengers, int countIn, int countOut)
+                            {
+                                System.out.println(String.format("%tT  pid %d %s x%d", timestamp, pid, direction == EventRingReader.IN ? "in " : "out", passengers));
+                            }
+                        });
+
+                        if(events.getLost() > 0)
+                            System.out.println("Events lost: " + events.getLost());
                         break;
 
                     case('r'):
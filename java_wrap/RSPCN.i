@@ -2,11 +2,13 @@
 
 %{
 #include "../src/passenger.h"
+#include "../src/snapshot.h"
 
 #include <iostream>
 #include <string>
 #include <chrono>
 #include <thread>
+#include <mutex>
 
 #include <librealsense/rs.hpp>
 #include <opencv2/opencv.hpp>
@@ -56,7 +58,7 @@ class RSPCN {
 
     // Constructor
     RSPCN(int deviceIdx);
-    ~RSPCN() { thread_.join(); }
+    ~RSPCN() { thread_.join(); closeEventRing(); }
 
     // Selectors
     string getThreadID(){return threadID;};
@@ -69,6 +71,11 @@ class RSPCN {
     int getCountIn(){return cnt_in;};
     int getCountOut(){return cnt_out;};
 
+    // Bulk state access (layouts in snapshot.h)
+    int snapshot(void *buffer, int capacity);
+    bool openEventRing(const char *name, int capacity);
+    void closeEventRing();
+
     // Setters
     void setCalibration(bool value) {calibrationOn = value; return;};
     void setDisplayColor(bool value) {displayColor = value; return;};
@@ -120,6 +127,19 @@ class RSPCN {
     int pid = 0;
     vector<Passenger> passengers;
 
+    // State published at the end of every frame, read by snapshot()
+    std::mutex stateMutex;
+    SnapshotHeader state = {};
+    vector<SnapshotPassenger> statePassengers;
+
+    // Shared memory crossing event ring
+    string eventRingName;
+    EventRingHeader * eventRing = NULL;
+    size_t eventRingSize = 0;
+
+    void publishState(int64_t frame, float fps, int grabUs, int segmentUs, int trackUs, int displayUs);
+    void publishEvent(int passengerId, int direction, int count);
+
     // Options
     bool calibrationOn = false;
     bool displayColor = false;
@@ -131,6 +151,20 @@ class RSPCN {
 };
 %}
 
+/* Direct ByteBuffers are passed as (address, capacity): snapshot() fills the Java buffer in place */
+%typemap(jni) (void *buffer, int capacity) "jobject"
+%typemap(jtype) (void *buffer, int capacity) "java.nio.ByteBuffer"
+%typemap(jstype) (void *buffer, int capacity) "java.nio.ByteBuffer"
+%typemap(javain) (void *buffer, int capacity) "$javainput"
+%typemap(in) (void *buffer, int capacity) {
+    $1 = jenv->GetDirectBufferAddress($input);
+    if($1 == NULL) {
+        SWIG_JavaThrowException(jenv, SWIG_JavaIllegalArgumentException, "snapshot needs a direct ByteBuffer");
+        return $null;
+    }
+    $2 = (int)jenv->GetDirectBufferCapacity($input);
+}
+
 /* Let's just grab the original header file here */
 class RSPCN {
 
@@ -138,7 +172,7 @@ class RSPCN {
 
     // Constructor
     RSPCN(int deviceIdx);
-    ~RSPCN() { thread_.join(); }
+    ~RSPCN() { thread_.join(); closeEventRing(); }
 
     // Selectors
     string getThreadID(){return threadID;};
@@ -151,6 +185,11 @@ class RSPCN {
     int getCountIn(){return cnt_in;};
     int getCountOut(){return cnt_out;};
 
+    // Bulk state access (layouts in snapshot.h)
+    int snapshot(void *buffer, int capacity);
+    bool openEventRing(const char *name, int capacity);
+    void closeEventRing();
+
     // Setters
     void setCalibration(bool value) {calibrationOn = value; return;};
     void setDisplayColor(bool value) {displayColor = value; return;};
@@ -202,6 +241,19 @@ class RSPCN {
     int pid = 0;
     vector<Passenger> passengers;
 
+    // State published at the end of every frame, read by snapshot()
+    std::mutex stateMutex;
+    SnapshotHeader state = {};
+    vector<SnapshotPassenger> statePassengers;
+
+    // Shared memory crossing event ring
+    string eventRingName;
+    EventRingHeader * eventRing = NULL;
+    size_t eventRingSize = 0;
+
+    void publishState(int64_t frame, float fps, int grabUs, int segmentUs, int trackUs, int displayUs);
+    void publishEvent(int passengerId, int direction, int count);
+
     // Options
     bool calibrationOn = false;
     bool displayColor = false;
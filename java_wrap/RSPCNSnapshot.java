@@ -0,0 +1,59 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// State of a counter read with a single JNI call: counts, fps, stage times and active passengers.
+// The buffer is filled in place by RSPCN.snapshot(), the layout is defined in src/snapshot.h.
+public class RSPCNSnapshot
+{
+    public static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 48;
+    private static final int PASSENGER_SIZE = 16;
+
+    // Variables
+    private final ByteBuffer buffer;
+
+    // Constructor
+    public RSPCNSnapshot(int maxPassengers)
+    {
+        buffer = ByteBuffer.allocateDirect(HEADER_SIZE + maxPassengers * PASSENGER_SIZE).order(ByteOrder.nativeOrder());
+    }
+
+    // Methods
+    public boolean update(RSPCN counter)
+    {
+        return counter.snapshot(buffer) >= HEADER_SIZE && buffer.getInt(0) == VERSION;
+    }
+
+    // Selectors
+    public long getFrame() {return buffer.getLong(8);}
+    public int getCountIn() {return buffer.getInt(16);}
+    public int getCountOut() {return buffer.getInt(20);}
+    public float getFps() {return buffer.getFloat(24);}
+    public int getPassengerCount() {return buffer.getInt(28);}
+
+    // Stage times of the last frame [microseconds]
+    public int getGrabMicros() {return buffer.getInt(32);}
+    public int getSegmentMicros() {return buffer.getInt(36);}
+    public int getTrackMicros() {return buffer.getInt(40);}
+    public int getDisplayMicros() {return buffer.getInt(44);}
+
+    public int getPassengerId(int i) {return buffer.getInt(HEADER_SIZE + i * PASSENGER_SIZE);}
+    public float getPassengerX(int i) {return buffer.getFloat(HEADER_SIZE + i * PASSENGER_SIZE + 4);}
+    public float getPassengerY(int i) {return buffer.getFloat(HEADER_SIZE + i * PASSENGER_SIZE + 8);}
+    public int getPassengerAge(int i) {return buffer.getInt(HEADER_SIZE + i * PASSENGER_SIZE + 12);}
+
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append(String.format("Frame %d  in %d  out %d  fps %.1f%n", getFrame(), getCountIn(), getCountOut(), getFps()));
+        sb.append(String.format("Stages [us]: grab %d  segment %d  track %d  display %d%n",
+                                getGrabMicros(), getSegmentMicros(), getTrackMicros(), getDisplayMicros()));
+
+        for(int i = 0; i < getPassengerCount(); i++)
+            sb.append(String.format("Passenger %d at (%.0f, %.0f) age %d%n", getPassengerId(i), getPassengerX(i), getPassengerY(i), getPassengerAge(i)));
+
+        return sb.toString();
+    }
+}
@@ -3,6 +3,11 @@
 
 #include "RSPCN.h"
 
+#include <cstring>
+#include <fcntl.h>
+#include <sys/mman.h>
+#include <unistd.h>
+
 RSPCN::RSPCN(int deviceIdx) 
 {
     dev = ctx.get_device(deviceIdx);
@@ -88,6 +93,139 @@ void RSPCN::toggleDisplayFrame()
     return;
 }
 
+int RSPCN::snapshot(void *buffer, int capacity)
+{
+    if(capacity < (int)sizeof(SnapshotHeader))
+        return -1;
+
+    std::lock_guard<std::mutex> lock(stateMutex);
+
+    // As many passengers as fit in the buffer
+    int n = std::min((int)statePassengers.size(), (int)((capacity - sizeof(SnapshotHeader)) / sizeof(SnapshotPassenger)));
+
+    SnapshotHeader header = state;
+    header.version = SNAPSHOT_VERSION;
+    header.passengers = n;
+    header.size = sizeof(SnapshotHeader) + n * sizeof(SnapshotPassenger);
+
+    memcpy(buffer, &header, sizeof(SnapshotHeader));
+    if(n > 0)
+        memcpy((char*)buffer + sizeof(SnapshotHeader), statePassengers.data(), n * sizeof(SnapshotPassenger));
+
+    return header.size;
+}
+
+bool RSPCN::openEventRing(const char *name, int capacity)
+{
+    // Capacity must be a power of two
+    if(capacity <= 0 || (capacity & (capacity - 1)) != 0)
+        return false;
+
+    closeEventRing();
+
+    size_t size = sizeof(EventRingHeader) + capacity * sizeof(EventRecord);
+
+    int fd = shm_open(name, O_CREAT | O_RDWR, 0644);
+    if(fd < 0)
+        return false;
+
+    if(ftruncate(fd, size) != 0)
+    {
+        close(fd);
+        return false;
+    }
+
+    void * memory = mmap(NULL, size, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+    close(fd);
+
+    if(memory == MAP_FAILED)
+        return false;
+
+    // Start from an empty ring: readers of a previous run see the sequence start over
+    memset(memory, 0, size);
+
+    EventRingHeader * header = (EventRingHeader*)memory;
+    header->version = EVENT_RING_VERSION;
+    header->capacity = capacity;
+    header->recordSize = sizeof(EventRecord);
+    header->written.store(0, std::memory_order_release);
+    header->magic = EVENT_RING_MAGIC;
+
+    std::lock_guard<std::mutex> lock(stateMutex);
+    eventRingName = name;
+    eventRingSize = size;
+    eventRing = header;
+
+    return true;
+}
+
+void RSPCN::closeEventRing()
+{
+    std::lock_guard<std::mutex> lock(stateMutex);
+
+    if(eventRing != NULL)
+    {
+        munmap(eventRing, eventRingSize);
+        shm_unlink(eventRingName.c_str());
+        eventRing = NULL;
+    }
+
+    return;
+}
+
+void RSPCN::publishState(int64_t frame, float fps, int grabUs, int segmentUs, int trackUs, int displayUs)
+{
+    std::lock_guard<std::mutex> lock(stateMutex);
+
+    state.frame = frame;
+    state.countIn = cnt_in;
+    state.countOut = cnt_out;
+    state.fps = fps;
+    state.grabUs = grabUs;
+    state.segmentUs = segmentUs;
+    state.trackUs = trackUs;
+    state.displayUs = displayUs;
+
+    statePassengers.resize(passengers.size());
+    for(unsigned int i = 0; i < passengers.size(); i++)
+    {
+        statePassengers[i].pid = passengers[i].getPid();
+        statePassengers[i].x = passengers[i].getX();
+        statePassengers[i].y = passengers[i].getY();
+        statePassengers[i].age = passengers[i].getAge();
+    }
+
+    return;
+}
+
+void RSPCN::publishEvent(int passengerId, int direction, int count)
+{
+    std::lock_guard<std::mutex> lock(stateMutex);
+
+    if(eventRing == NULL)
+        return;
+
+    int64_t sequence = eventRing->written.load(std::memory_order_relaxed) + 1;
+    EventRecord * records = (EventRecord*)(eventRing + 1);
+    EventRecord & record = records[(sequence - 1) & (eventRing->capacity - 1)];
+
+    // Invalidate the record while its fields are rewritten
+    record.sequence.store(0, std::memory_order_relaxed);
+    std::atomic_thread_fence(std::memory_order_release);
+
+    record.timestamp = duration_cast<milliseconds>(system_clock::now().time_since_epoch()).count();
+    record.pid = passengerId;
+    record.direction = direction;
+    record.passengers = count;
+    record.countIn = cnt_in;
+    record.countOut = cnt_out;
+
+    record.sequence.store(sequence, std::memory_order_release);
+    eventRing->written.store(sequence, std::memory_order_release);
+
+    return;
+}
+
 void RSPCN::start()
 {
     thread_ = std::thread(&RSPCN::count, this);
@@ -111,9 +249,11 @@ void RSPCN::count()
     // VideoWriter outputVideoDepth;
     // VideoWriter outputVideoFrame;
 
-    // Contours variables
-    vector<vector<Point> > contours;
-    vector<Vec4i> hierarchy;
+    // Segmentation (cpp_src/segment.h): threshold lookup table and detection records
+    vector<uint8_t> lut(65536);
+    int lutThreshold = -1;
+    int capacity = 64;
+    vector<char> detections(capacity * SEGMENT_RECORD_SIZE);
 
     // Calibration
     int thresholdCentimeters = MAX_RANGE_CM;
@@ -126,10 +266,14 @@ void RSPCN::count()
     // Execution time
     duration<double> loopTime;
     bool firstLoop = true;
+    int64_t frameCount = 0;
 
     // Start streaming
     dev->start();
 
+    frame.create(ImageHeight, ImageWidth, CV_8UC1);
+    morphTrans.create(ImageHeight, ImageWidth, CV_8UC1);
+
     // --SETUP WINDOWS
     if(displayColor)
         namedWindow("Color threadID: " + threadID,WINDOW_AUTOSIZE);
@@ -189,6 +333,8 @@ void RSPCN::count()
         Mat color(Size(ImageWidth, ImageHeight), CV_8UC3, (void*)dev->get_frame_data(rs::stream::color), Mat::AUTO_STEP);
         Mat depth(Size(ImageWidth, ImageHeight), CV_16U , (void*)dev->get_frame_data(rs::stream::depth), Mat::AUTO_STEP);
 
+        high_resolution_clock::time_point tGrab = high_resolution_clock::now();
+
         if(displayRawDepth)
             rawDepth = depth.clone();
 
@@ -251,22 +397,30 @@ void RSPCN::count()
             putText(depthColorMap, "Farthest: " + to_string(farthestVal*scale) + " m", Point(0, depthColorMap.rows - 10), FONT_HERSHEY_SIMPLEX, 0.5, WHITE, 2);
         }
         
-        // OLDVER: Without thresholding
-        // frame = conversion(depth);
-        // depth.convertTo( frame, CV_8UC1);
-        
-        // NEWVER: With variable threshold
-        depth.setTo(65535, depth == NODATA);
-        depth.convertTo(depth, CV_32FC1); // Threshold only accepts CV_8U or CV_32F types
+        // Thresholding, blurring and finding contours: same segmentation as the Java counter, see segment.h
+        if(thresholdCentimeters != lutThreshold)
+        {
+            rspcnDepthLut(lut.data(), thresholdCentimeters, scale);
+            lutThreshold = thresholdCentimeters;
+        }
 
-        int threshPixel = thresholdCentimeters / (100*scale);
-        threshold(depth, depth, threshPixel, 65535, THRESH_BINARY);
+        // Box blur of any size and area of the contour itself, as areaMin and blur_ksize were calibrated for
+        int blurSize = std::max(1, blur_ksize);
+        int found;
 
-        depth.convertTo(depth, CV_8UC1, 255.0 / 65535); // Convert to CV_8U
+        while(true)
+        {
+            found = rspcnSegment((const uint16_t*)depth.data, (int)depth.step, frame.data, morphTrans.data, NULL, (int)frame.step,
+                                 ImageWidth, ImageHeight, lut.data(), blurSize, 0, ImageHeight, 0, ImageHeight,
+                                 areaMin, SEGMENT_BOX_BLUR | SEGMENT_CONTOUR_AREA | SEGMENT_MASS_CENTER, detections.data(), capacity);
 
-        depth =  cv::Scalar::all(255) - depth;
+            if(found <= capacity)
+                break;
 
-        frame = depth.clone();
+            // Rare crowded frame: run again with room for every detection
+            capacity = found * 2;
+            detections.resize(capacity * SEGMENT_RECORD_SIZE);
+        }
 
         // Horizontal line     
         line( color,
@@ -276,112 +430,113 @@ void RSPCN::count()
               2,                                //Thickness
               8);                               //Linetype
         
-        // Blurring the image
-        blur(frame, morphTrans, Size(blur_ksize,blur_ksize));
-
-        // --FINDING CONTOURS
-        findContours(morphTrans, contours, hierarchy, RETR_EXTERNAL, CHAIN_APPROX_NONE);
+        high_resolution_clock::time_point tSegment = high_resolution_clock::now();
 
-        // For every detected object
-        for(unsigned int idx = 0; idx < hierarchy.size(); idx++)
+        // For every detected object, already larger than areaMin
+        for(int idx = 0; idx < found; idx++)
         {
-            // Draw contours for every detected object
-            // drawContours( color, contours, idx, Scalar(0,255,0), 2, 8, hierarchy, 0, Point(0,0) );
-
             // -- AREA
-            // Calculating area
-            double areaCurrentObject = contourArea(contours[idx]);
-
-            // If calculated area is big enough begin tracking the object
-            if(areaCurrentObject > areaMin)
+            // Area of the contour
+            const char *record = detections.data() + idx * SEGMENT_RECORD_SIZE;
+            int32_t box[4];
+            double areaCurrentObject;
+            float center[2];
+
+            memcpy(box, record, sizeof(box));
+            memcpy(&areaCurrentObject, record + sizeof(box), sizeof(double));
+            memcpy(center, record + sizeof(box) + sizeof(double), sizeof(center));
+
+            // --TRACKING
+            // Getting mass center and bounding rectangle
+            Rect br(box[0], box[1], box[2], box[3]);
+            Point2f mc = Point2f(center[0], center[1]);
+
+            // Drawing mass center and bounding rectangle
+            rectangle( color, br.tl(), br.br(), GREEN, 2, 8, 0 );
+            circle( color, mc, 5, RED, 2, 8, 0 );
+
+            // Debugging multiple passenger count + calibration
+            // if(areaCurrentObject > MAX_1PASS_AREA && areaCurrentObject < MAX_2PASS_AREA)
+            //     putText(color, "Area: " + to_string(areaCurrentObject) + " = 2 PASSENGERS", mc, FONT_HERSHEY_SIMPLEX, 0.5, RED, 2);
+            // else if(areaCurrentObject > MAX_2PASS_AREA)
+            //     putText(color, "Area: " + to_string(areaCurrentObject) + " = 3 PASSENGERS", mc, FONT_HERSHEY_SIMPLEX, 0.5, RED, 2);
+            // else
+            //     putText(color, "Area: " + to_string(areaCurrentObject) + " = 1 PASSENGERS", mc, FONT_HERSHEY_SIMPLEX, 0.5, RED, 2);
+
+            // --PASSENGERS DB UPDATE
+            bool newPassenger = true;
+            for(unsigned int i = 0; i < passengers.size(); i++)
             {
-                // --TRACKING
-                // Getting mass center
-                Moments M = moments(contours[idx]);
-                Point2f mc = Point2f( M.m10/M.m00 , M.m01/M.m00 );
-
-                // Getting bounding rectangle
-                Rect br = boundingRect(contours[idx]);
-
-                // Drawing mass center and bounding rectangle
-                rectangle( color, br.tl(), br.br(), GREEN, 2, 8, 0 );
-                circle( color, mc, 5, RED, 2, 8, 0 );
-
-                // Debugging multiple passenger count + calibration
-                // if(areaCurrentObject > MAX_1PASS_AREA && areaCurrentObject < MAX_2PASS_AREA)
-                //     putText(color, "Area: " + to_string(areaCurrentObject) + " = 2 PASSENGERS", mc, FONT_HERSHEY_SIMPLEX, 0.5, RED, 2);
-                // else if(areaCurrentObject > MAX_2PASS_AREA)
-                //     putText(color, "Area: " + to_string(areaCurrentObject) + " = 3 PASSENGERS", mc, FONT_HERSHEY_SIMPLEX, 0.5, RED, 2);
-                // else
-                //     putText(color, "Area: " + to_string(areaCurrentObject) + " = 1 PASSENGERS", mc, FONT_HERSHEY_SIMPLEX, 0.5, RED, 2);
-
-                // --PASSENGERS DB UPDATE
-                bool newPassenger = true;
-                for(unsigned int i = 0; i < passengers.size(); i++)
+                // If the passenger is near a known passenger assume they are the same one
+                if( abs(mc.x - passengers[i].getX()) <= xNear &&
+                    abs(mc.y - passengers[i].getY()) <= yNear )
                 {
-                    // If the passenger is near a known passenger assume they are the same one
-                    if( abs(mc.x - passengers[i].getX()) <= xNear &&
-                        abs(mc.y - passengers[i].getY()) <= yNear )
+                    // Update coordinates
+                    newPassenger = false;
+                    passengers[i].updateCoords(mc);
+
+                    // --COUNTER
+                    if(passengers[i].getTracks().size() > 1)
                     {
-                        // Update coordinates
-                        newPassenger = false;
-                        passengers[i].updateCoords(mc);
+                        // Up to down
+                        if( (passengers[i].getLastPoint().y < frame.rows/2 && passengers[i].getCurrentPoint().y >= frame.rows/2) ||
+                            (passengers[i].getLastPoint().y <= frame.rows/2 && passengers[i].getCurrentPoint().y > frame.rows/2) )
+                        {
+                            int before = cnt_out;
+
+                            // Counting multiple passenger depending on area size
+                            if (areaCurrentObject > MAX_1PASS_AREA && areaCurrentObject < MAX_2PASS_AREA)
+                                cnt_out += 2;
+                            else if (areaCurrentObject > MAX_2PASS_AREA)
+                                cnt_out += 3;
+                            else
+                                cnt_out++;
 
-                        // --COUNTER
-                        if(passengers[i].getTracks().size() > 1)
+                            publishEvent(passengers[i].getPid(), EVENT_OUT, cnt_out - before);
+
+                            // Logging count
+                            // cout << "ID: " << passengers[i].getPid() << " crossed going U to D.\n";
+
+                            // Visual feedback
+                            circle(color, Point(color.cols - 20, 20), 8, RED, CV_FILLED);
+                        }
+
+                        // Down to up
+                        if( (passengers[i].getLastPoint().y > frame.rows/2 && passengers[i].getCurrentPoint().y <= frame.rows/2) ||
+                            (passengers[i].getLastPoint().y >= frame.rows/2 && passengers[i].getCurrentPoint().y < frame.rows/2) )
                         {
-                            // Up to down
-                            if( (passengers[i].getLastPoint().y < frame.rows/2 && passengers[i].getCurrentPoint().y >= frame.rows/2) ||
-                                (passengers[i].getLastPoint().y <= frame.rows/2 && passengers[i].getCurrentPoint().y > frame.rows/2) )
-                            {
-                                // Counting multiple passenger depending on area size
-                                if (areaCurrentObject > MAX_1PASS_AREA && areaCurrentObject < MAX_2PASS_AREA)
-                                    cnt_out += 2;
-                                else if (areaCurrentObject > MAX_2PASS_AREA)
-                                    cnt_out += 3;
-                                else
-                                    cnt_out++;
-
-                                // Logging count
-                                // cout << "ID: " << passengers[i].getPid() << " crossed going U to D.\n";
-
-                                // Visual feedback
-                                circle(color, Point(color.cols - 20, 20), 8, RED, CV_FILLED);
-                            }
-
-                            // Down to up
-                            if( (passengers[i].getLastPoint().y > frame.rows/2 && passengers[i].getCurrentPoint().y <= frame.rows/2) ||
-                                (passengers[i].getLastPoint().y >= frame.rows/2 && passengers[i].getCurrentPoint().y < frame.rows/2) )
-                            {
-                                // Counting multiple passenger depending on area size
-                                if (areaCurrentObject > MAX_1PASS_AREA && areaCurrentObject < MAX_2PASS_AREA)
-                                    cnt_in += 2;
-                                else if (areaCurrentObject > MAX_2PASS_AREA)
-                                    cnt_in += 3;
-                                else
-                                    cnt_in++;
-
-                                // Logging count
-                                // cout << "ID: " << passengers[i].getPid() << " crossed going D to U.\n";
-
-                                // Visual feedback
-                                circle(color, Point(color.cols - 20, 20), 8, GREEN, CV_FILLED);
-                            }
+                            int before = cnt_in;
+
+                            // Counting multiple passenger depending on area size
+                            if (areaCurrentObject > MAX_1PASS_AREA && areaCurrentObject < MAX_2PASS_AREA)
+                                cnt_in += 2;
+                            else if (areaCurrentObject > MAX_2PASS_AREA)
+                                cnt_in += 3;
+                            else
+                                cnt_in++;
 
+                            publishEvent(passengers[i].getPid(), EVENT_IN, cnt_in - before);
+
+                            // Logging count
+                            // cout << "ID: " << passengers[i].getPid() << " crossed going D to U.\n";
+
+                            // Visual feedback
+                            circle(color, Point(color.cols - 20, 20), 8, GREEN, CV_FILLED);
                         }
 
-                        break;
                     }
-                }
 
-                // If wasn't near any known object is a new passenger
-                if(newPassenger)
-                {
-                    Passenger p(pid, mc);
-                    passengers.push_back(p);
-                    pid++;
+                    break;
                 }
             }
+
+            // If wasn't near any known object is a new passenger
+            if(newPassenger)
+            {
+                Passenger p(pid, mc);
+                passengers.push_back(p);
+                pid++;
+            }
         }
 
         // For every passenger in passengers DB
@@ -406,6 +561,8 @@ void RSPCN::count()
             }
         }
 
+        high_resolution_clock::time_point tTrack = high_resolution_clock::now();
+
         // Debugging
         // putText(color, "Tracked passengers: " + to_string(passengers.size()), Point(15,  15) , FONT_HERSHEY_SIMPLEX, 0.5, RED, 2);
         putText(color, "FPS: " + to_string(fps), Point(0,  15) , FONT_HERSHEY_SIMPLEX, 0.5, RED, 2);
@@ -449,6 +606,12 @@ void RSPCN::count()
         // --PERFORMANCE ESTMATION
         high_resolution_clock::time_point t2 = high_resolution_clock::now(); //STOP
 
+        publishState(++frameCount, fps,
+                     duration_cast<microseconds>(tGrab - t1).count(),
+                     duration_cast<microseconds>(tSegment - tGrab).count(),
+                     duration_cast<microseconds>(tTrack - tSegment).count(),
+                     duration_cast<microseconds>(t2 - tTrack).count());
+
         if(firstLoop)
             loopTime = duration_cast<duration<double>>(t2 - t1);
         else
@@ -19,11 +19,14 @@
 #include <string>
 #include <chrono>
 #include <thread>
+#include <mutex>
 
 #include <librealsense/rs.hpp>
 #include <opencv2/opencv.hpp>
 
 #include "passenger.cpp"
+#include "snapshot.h"
+#include "../../cpp_src/segment.h"
 
 using namespace std;
 using namespace cv;
@@ -70,7 +73,7 @@ class RSPCN {
 
     // Constructor
     RSPCN(int deviceIdx);
-    ~RSPCN() { thread_.join(); }
+    ~RSPCN() { thread_.join(); closeEventRing(); }
 
     // Selectors
     string getThreadID(){return threadID;};
@@ -83,6 +86,11 @@ class RSPCN {
     int getCountIn(){return cnt_in;};
     int getCountOut(){return cnt_out;};
 
+    // Bulk state access (layouts in snapshot.h)
+    int snapshot(void *buffer, int capacity);
+    bool openEventRing(const char *name, int capacity);
+    void closeEventRing();
+
     // Setters
     void setCalibration(bool value) {calibrationOn = value; return;};
     void setDisplayColor(bool value) {displayColor = value; return;};
@@ -134,6 +142,19 @@ class RSPCN {
     int pid = 0;
     vector<Passenger> passengers;
 
+    // State published at the end of every frame, read by snapshot()
+    std::mutex stateMutex;
+    SnapshotHeader state = {};
+    vector<SnapshotPassenger> statePassengers;
+
+    // Shared memory crossing event ring
+    string eventRingName;
+    EventRingHeader * eventRing = NULL;
+    size_t eventRingSize = 0;
+
+    void publishState(int64_t frame, float fps, int grabUs, int segmentUs, int trackUs, int displayUs);
+    void publishEvent(int passengerId, int direction, int count);
+
     // Options
     bool calibrationOn = false;
     bool displayColor = false;
@@ -0,0 +1,78 @@
+/**
+    snapshot
+    Purpose: Memory layouts shared with the Java side.
+             - Snapshot: counts, active passengers, fps and stage times filled by RSPCN::snapshot() into a direct
+               ByteBuffer with a single JNI call.
+             - Event ring: crossing events published in a POSIX shared memory object, Java monitors map it and poll
+               it without any JNI call.
+             All fields use the native byte order (ByteOrder.nativeOrder() on the Java side).
+
+*/
+
+#ifndef SNAPSHOT_H
+#define SNAPSHOT_H
+
+#include <atomic>
+#include <stdint.h>
+
+#define SNAPSHOT_VERSION 1
+
+#define EVENT_RING_MAGIC   0x52455352  // "RSER"
+#define EVENT_RING_VERSION 1
+
+#define EVENT_IN  1
+#define EVENT_OUT 2
+
+// Snapshot: a header followed by header.passengers passenger entries
+struct SnapshotHeader {
+    int32_t version;      //  0
+    int32_t size;         //  4: bytes written
+    int64_t frame;        //  8: frames processed
+    int32_t countIn;      // 16
+    int32_t countOut;     // 20
+    float fps;            // 24
+    int32_t passengers;   // 28: entries that follow
+    int32_t grabUs;       // 32: stage times of the last frame [microseconds]
+    int32_t segmentUs;    // 36
+    int32_t trackUs;      // 40
+    int32_t displayUs;    // 44
+};
+
+struct SnapshotPassenger {
+    int32_t pid;          //  0
+    float x;              //  4: mass center [pixels]
+    float y;              //  8
+    int32_t age;          // 12: frames since last seen
+};
+
+// Event ring: a header followed by capacity records (a power of two).
+// Single producer, any number of readers. The producer never waits: it overwrites the oldest record, a reader that
+// falls behind by more than capacity events sees a gap in the sequence numbers.
+// A record is valid when its sequence matches the expected one before and after reading it: the producer clears it
+// before writing the fields and stores it after.
+struct EventRingHeader {
+    uint32_t magic;                //  0
+    int32_t version;               //  4
+    int32_t capacity;              //  8: records
+    int32_t recordSize;            // 12
+    std::atomic<int64_t> written;  // 16: sequence of the last record written, records start from 1
+    char reserved[40];
+};
+
+struct EventRecord {
+    std::atomic<int64_t> sequence; //  0
+    int64_t timestamp;             //  8: [milliseconds since epoch]
+    int32_t pid;                   // 16
+    int8_t direction;              // 20: EVENT_IN or EVENT_OUT
+    int8_t passengers;             // 21: passengers counted by the crossing
+    int16_t reserved;              // 22
+    int32_t countIn;               // 24: counts after the crossing
+    int32_t countOut;              // 28
+};
+
+static_assert(sizeof(SnapshotHeader) == 48, "Snapshot header layout");
+static_assert(sizeof(SnapshotPassenger) == 16, "Snapshot passenger layout");
+static_assert(sizeof(EventRingHeader) == 64, "Event ring header layout");
+static_assert(sizeof(EventRecord) == 32, "Event record layout");
+
+#endif
@@ -4,7 +4,7 @@ if [ -d "swig_output" ]; then
 fi
 
 mkdir swig_output
-cp Main.java swig_output/
+cp *.java swig_output/
 swig -c++ -java -outdir swig_output/ -o swig_output/RSPCN_wrap.cpp RSPCN.i
 cd swig_output/
 
@@ -27,5 +27,6 @@ g++ -std=c++11 -shared RSPCN.o RSPCN_wrap.o -o libRSPCN.so -lopencv_core \
 -lopencv_objdetect \
 -lopencv_videoio \
 -lopencv_video \
--lrealsense
+-lrealsense \
+-lrt
 
@@ -4,7 +4,7 @@ if [ -d "swig_output_2025" ]; then
 fi
 
 mkdir swig_output_2025
-cp Main.java swig_output_2025/
+cp *.java swig_output_2025/
 swig -c++ -java -outdir swig_output_2025/ -o swig_output_2025/RSPCN_wrap.cpp RSPCN.i
 cd swig_output_2025/
 
@@ -27,5 +27,6 @@ $CXX -std=c++11 -shared RSPCN.o RSPCN_wrap.o -o libRSPCN.so -lopencv_core \
 -lopencv_objdetect \
 -lopencv_videoio \
 -lopencv_video \
--lrealsense
+-lrealsense \
+-lrt
 
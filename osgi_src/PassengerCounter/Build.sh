@@ -0,0 +1,22 @@
+#!/bin/bash
+# Builds com.Mattia.PassengerCounter_1.0.0.jar: the counter classes of java_src, the OSGi classes of src/ and the
+# JavaCV jars of java_src/jar_files (add the native jars of the target, e.g. opencv-linux-x86_64.jar, there).
+# Needs the Configuration Admin API, e.g. the org.eclipse.equinox.cm bundle of the Equinox drop:
+#   sh Build.sh path/to/org.eclipse.equinox.cm.jar
+if [ -z "$1" ]; then
+  echo "Usage: sh Build.sh <Configuration Admin jar>"
+  exit 1
+fi
+
+if [ -d "build" ]; then
+  rm -r build/
+fi
+
+mkdir -p build/classes build/lib
+cp ../../java_src/jar_files/*.jar build/lib/
+
+CP=$(ls build/lib/*.jar | tr '\n' ':')../equinox_jars/org.eclipse.osgi_3.6.1.R36x_v20100806.jar:$1
+
+javac -cp $CP -d build/classes ../../java_src/*.java $(find src -name "*.java")
+
+jar cfm ../com.Mattia.PassengerCounter_1.0.0.jar META-INF/MANIFEST.MF -C build/classes . -C build lib
@@ -0,0 +1,288 @@
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Vector;
+
+import org.bytedeco.javacpp.RealSense.context;
+
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceRegistration;
+
+import com.mattia.passengercounter.PassengerCounterService;
+
+// Registers one PassengerCounterService per RealSense device found when the bundle starts, and stops the
+// devices when it stops.
+// start() only spawns the startup thread: the framework never waits for native libraries or USB. That thread
+// opens the devices while a second one loads the OpenCV natives and warms up segmentation and tracking with
+// synthetic frames, so the first camera frame runs on loaded libraries and compiled code. The time from bundle
+// start to the first counted frame is printed and published by every service.
+public class CounterActivator implements BundleActivator, Runnable {
+
+    // Synthetic frames run through the counting stages before capture starts,
+    // framework property passengercounter.warmup.frames
+    private static final int WARMUP_FRAMES = 200;
+
+    // Longest wait for the first frame of every device [milliseconds]
+    private static final long FIRST_FRAME_TIMEOUT = 30000;
+
+    // Variables
+    private BundleContext context;
+    private long startTime;
+    private Thread startup;
+    private volatile boolean stopping = false;
+
+    private final Vector<CounterService> services = new Vector<CounterService>(1,1);
+    private final Vector<ServiceRegistration> registrations = new Vector<ServiceRegistration>(1,1);
+    private MetricsServer metrics;
+
+    // The devices are only valid while their context is alive
+    private context realsense;
+
+    // Configuration Admin properties of the bundle and of every device (by serial)
+    private boolean configAdmin;
+    private Dictionary<?, ?> bundleSettings;
+    private final Map<String, Dictionary<?, ?>> deviceSettings = new HashMap<String, Dictionary<?, ?>>();
+
+    // Methods
+    public void start(BundleContext bundleContext) {
+
+        startTime = System.nanoTime();
+        context = bundleContext;
+        stopping = false;
+
+        configAdmin = registerConfigurator(null);
+        if(!configAdmin)
+            System.out.println( "PassengerCounter: Configuration Admin not available, default settings are used");
+
+        startup = new Thread(this, "PassengerCounter startup");
+        startup.start();
+
+        return;
+    }
+
+    public void stop(BundleContext bundleContext) throws Exception {
+
+        stopping = true;
+
+        startup.interrupt();
+        startup.join();
+
+        for(ServiceRegistration registration : registrations)
+            registration.unregister();
+
+        registrations.clear();
+
+        for(CounterService service : services)
+            service.getCounter().stop();
+
+        for(CounterService service : services) {
+            service.getCounter().join(5000);
+
+            if(metrics != null)
+                metrics.remove(service.getCounter().getMetrics());
+        }
+
+        synchronized(deviceSettings) {
+            services.clear();
+        }
+
+        if(metrics != null) {
+            metrics.stop();
+            metrics = null;
+        }
+
+        realsense = null;
+
+        return;
+    }
+
+    public void run() {
+
+        try {
+            // Native libraries and JIT warm up in parallel with USB enumeration
+            final int warmupFrames = getWarmupFrames();
+            final long[] warmupMillis = new long[1];
+
+            Thread warmup = new Thread(new Runnable() {
+                public void run() {
+                    long t0 = System.nanoTime();
+
+                    try {
+                        warmUp(warmupFrames);
+                    } catch (Exception | LinkageError e) {
+                        System.out.println( e );
+                    }
+
+                    warmupMillis[0] = (System.nanoTime() - t0) / 1000000;
+                }
+            }, "PassengerCounter warmup");
+
+            warmup.setDaemon(true);
+            warmup.start();
+
+            long t0 = System.nanoTime();
+            openDevices();
+            long devicesMillis = (System.nanoTime() - t0) / 1000000;
+
+            warmup.join();
+
+            System.out.println( "PassengerCounter: " + services.size() + " devices opened in " + devicesMillis + " ms, warm up ("
+                                + warmupFrames + " frames) " + warmupMillis[0] + " ms");
+
+            if(stopping)
+                return;
+
+            metrics = new MetricsServer();
+
+            for(CounterService service : services) {
+                RSPCN counter = service.getCounter();
+
+                counter.start();
+                metrics.add(counter.getMetrics(), "Counter");
+
+                Hashtable<String, Object> properties = new Hashtable<String, Object>();
+                properties.put(PassengerCounterService.DEVICE_SERIAL, counter.getDeviceSerial());
+                properties.put(PassengerCounterService.DEVICE_NAME, counter.getDeviceName());
+                properties.put(Constants.SERVICE_PID, PassengerCounterService.PID + "." + counter.getDeviceSerial());
+
+                registrations.add(context.registerService(PassengerCounterService.class.getName(), service, properties));
+
+                if(configAdmin)
+                    registerConfigurator(counter.getDeviceSerial());
+            }
+
+            awaitFirstFrames();
+
+        } catch (InterruptedException e) {
+            // Bundle stopped during startup
+        } catch (Exception | LinkageError e) {
+            // Missing native libraries or devices
+            System.out.println( e );
+        }
+
+        return;
+    }
+
+    // Called by Configuration Admin: serial null for the bundle settings, which apply to every device.
+    // Device settings override them.
+    void configure(String serial, Dictionary<?, ?> properties) {
+
+        synchronized(deviceSettings) {
+            if(serial == null)
+                bundleSettings = properties;
+            else if(properties == null)
+                deviceSettings.remove(serial);
+            else
+                deviceSettings.put(serial, properties);
+
+            for(CounterService service : services) {
+                if(serial == null || serial.equals(service.getDeviceSerial()))
+                    applySettings(service.getCounter());
+            }
+        }
+
+        return;
+    }
+
+    private void openDevices() {
+
+        realsense = new context();
+        int devCount = realsense.get_device_count();
+
+        for(int i = 0; i < devCount && !stopping; i++) {
+            RSPCN counter = new RSPCN(realsense.get_device(i));
+
+            // No display on a gateway
+            counter.setBareMetalMode(true);
+
+            synchronized(deviceSettings) {
+                services.add(new CounterService(counter));
+                applySettings(counter);
+            }
+        }
+
+        return;
+    }
+
+    private void applySettings(RSPCN counter) {
+
+        CounterSettings.apply(counter, bundleSettings);
+        CounterSettings.apply(counter, deviceSettings.get(counter.getDeviceSerial()));
+
+        return;
+    }
+
+    private void awaitFirstFrames() throws InterruptedException {
+
+        int pending = services.size();
+        long deadline = System.nanoTime() + FIRST_FRAME_TIMEOUT * 1000000;
+
+        while(pending > 0 && !stopping && System.nanoTime() < deadline) {
+
+            for(CounterService service : services) {
+                if(service.getStartupMillis() < 0 && service.getCounter().getTrackedFrames() > 0) {
+                    service.setStartupMillis((System.nanoTime() - startTime) / 1000000);
+                    System.out.println( "PassengerCounter: device " + service.getDeviceSerial() + " counted its first frame "
+                                        + service.getStartupMillis() + " ms after bundle start");
+                    pending--;
+                }
+            }
+
+            Thread.sleep(1);
+        }
+
+        if(pending > 0 && !stopping)
+            System.out.println( "PassengerCounter: " + pending + " devices did not deliver a frame within " + FIRST_FRAME_TIMEOUT + " ms");
+
+        return;
+    }
+
+    // Runs synthetic frames through capture, segmentation and tracking: loads the OpenCV natives and lets
+    // the JIT compile the per-frame code
+    private static void warmUp(int frames) throws Exception {
+
+        RSPCN counter = new RSPCN(new SyntheticFrameSource("Intel RealSense R200", 4, 12, 42));
+        counter.setBareMetalMode(true);
+        counter.open();
+
+        FrameBuffers buffers = new FrameBuffers(counter.getImageWidth(), counter.getImageHeight());
+
+        for(int i = 0; i < frames; i++) {
+            counter.captureFrame(buffers);
+            counter.segmentFrame(buffers);
+            counter.trackPassengers(buffers);
+        }
+
+        buffers.release();
+        counter.close();
+
+        return;
+    }
+
+    private int getWarmupFrames() {
+
+        String frames = context.getProperty("passengercounter.warmup.frames");
+
+        try {
+            return frames != null ? Integer.parseInt(frames.trim()) : WARMUP_FRAMES;
+        } catch (NumberFormatException e) {
+            System.out.println( "Error: passengercounter.warmup.frames is not a number: " + frames);
+            return WARMUP_FRAMES;
+        }
+    }
+
+    // Returns false if Configuration Admin is not installed
+    private boolean registerConfigurator(String serial) {
+
+        try {
+            registrations.add(CounterConfigurator.register(context, this, serial));
+        } catch (NoClassDefFoundError e) {
+            return false;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,40 @@
+import java.util.Dictionary;
+import java.util.Hashtable;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.cm.ManagedService;
+
+import com.mattia.passengercounter.PassengerCounterService;
+
+// Configuration Admin target of the bundle settings (serial null) or of the settings of one device.
+// Only loaded when Configuration Admin is installed: the bundle imports org.osgi.service.cm optionally.
+public class CounterConfigurator implements ManagedService {
+
+    // Variables
+    private final CounterActivator activator;
+    private final String serial;
+
+    // Constructor
+    CounterConfigurator(CounterActivator bundleActivator, String deviceSerial) {
+        activator = bundleActivator;
+        serial = deviceSerial;
+    }
+
+    // Methods
+    public static ServiceRegistration register(BundleContext context, CounterActivator activator, String serial) {
+
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put(Constants.SERVICE_PID, serial == null ? PassengerCounterService.PID : PassengerCounterService.PID + "." + serial);
+
+        return context.registerService(ManagedService.class.getName(), new CounterConfigurator(activator, serial), properties);
+    }
+
+    // Called by Configuration Admin on its own thread
+    @SuppressWarnings("rawtypes")
+    public void updated(Dictionary properties) {
+        activator.configure(serial, properties);
+        return;
+    }
+}
@@ -0,0 +1,40 @@
+import com.mattia.passengercounter.PassengerCounterService;
+
+// PassengerCounterService of one device, backed by its RSPCN
+public class CounterService implements PassengerCounterService {
+
+    // Variables
+    private final RSPCN counter;
+    private volatile long startupMillis = -1;
+
+    // Constructor
+    CounterService(RSPCN deviceCounter) {
+        counter = deviceCounter;
+    }
+
+    // Selectors
+    public RSPCN getCounter() {return counter;}
+
+    public String getDeviceSerial() {return counter.getDeviceSerial();}
+    public String getDeviceName() {return counter.getDeviceName();}
+
+    public int getCountIn() {return counter.getCounters()[0];}
+    public int getCountOut() {return counter.getCounters()[1];}
+
+    public int[] getCounts(long fromMillis, long toMillis) {return counter.getCounts(fromMillis, toMillis);}
+
+    public double getFps() {return counter.getAchievedFps();}
+    public int getActivePassengers() {return counter.getActivePassengers();}
+
+    public long getStartupMillis() {return startupMillis;}
+
+    // Methods
+    public int[] readAndResetCounters() {
+        return counter.readAndResetCounters();
+    }
+
+    void setStartupMillis(long millis) {
+        startupMillis = millis;
+        return;
+    }
+}
@@ -0,0 +1,61 @@
+import java.util.Dictionary;
+import java.util.Enumeration;
+
+// Applies Configuration Admin properties to a running counter. Every setting is published as a new
+// configuration snapshot or mode flag, picked up by the next frame: capture is never restarted.
+//
+// Keys: threshold, age, area, area1, area2, blur, xnear, ynear, roi, matcher, preset, threads, native, labeling,
+// boxblur, overlay, scale, motiongate, predict, stride.
+// Keys removed from a configuration keep their last value.
+public class CounterSettings {
+
+    // Methods
+    public static void apply(RSPCN counter, Dictionary<?, ?> properties) {
+
+        if(properties == null)
+            return;
+
+        for(Enumeration<?> keys = properties.keys(); keys.hasMoreElements(); ) {
+
+            String key = String.valueOf(keys.nextElement());
+            String value = String.valueOf(properties.get(key)).trim();
+
+            // Framework properties: service.pid, service.bundleLocation, ...
+            if(key.indexOf('.') >= 0)
+                continue;
+
+            try {
+                if(key.equals("threshold"))        counter.setThresholdCentimeters(Integer.parseInt(value));
+                else if(key.equals("age"))         counter.setMaxPassengerAge(Integer.parseInt(value));
+                else if(key.equals("area"))        counter.setAreaThreshold(Integer.parseInt(value));
+                else if(key.equals("area1"))       counter.setMax1PassArea(Integer.parseInt(value));
+                else if(key.equals("area2"))       counter.setMax2PassArea(Integer.parseInt(value));
+                else if(key.equals("blur"))        counter.setBlurSize(Integer.parseInt(value));
+                else if(key.equals("xnear"))       counter.setXNear(Integer.parseInt(value));
+                else if(key.equals("ynear"))       counter.setYNear(Integer.parseInt(value));
+                else if(key.equals("roi"))         counter.setRoiHalfHeight(Integer.parseInt(value));
+                else if(key.equals("matcher"))     counter.setMatcherMode(Integer.parseInt(value));
+                else if(key.equals("preset"))      counter.setCameraPresets(Integer.parseInt(value));
+                else if(key.equals("threads"))     counter.setSegmentationThreads(Integer.parseInt(value));
+                else if(key.equals("native"))      counter.setNativeSegmentation(isTrue(value));
+                else if(key.equals("labeling"))    counter.setBlobExtraction(isTrue(value));
+                else if(key.equals("boxblur"))     counter.setBoxBlur(isTrue(value));
+                else if(key.equals("overlay"))     counter.setOverlayDecimation(Integer.parseInt(value));
+                else if(key.equals("scale"))       counter.setProcessingScale(Integer.parseInt(value));
+                else if(key.equals("motiongate"))  counter.setMotionGateMode(isTrue(value));
+                else if(key.equals("predict"))     counter.setMotionPrediction(isTrue(value));
+                else if(key.equals("stride"))      counter.setMaxFrameStride(Integer.parseInt(value));
+                else
+                    System.out.println( "Error: unknown setting " + key + " for device " + counter.getDeviceSerial());
+            } catch (NumberFormatException e) {
+                System.out.println( "Error: setting " + key + " of device " + counter.getDeviceSerial() + " is not a number: " + value);
+            }
+        }
+
+        return;
+    }
+
+    private static boolean isTrue(String value) {
+        return value.equals("1") || value.equalsIgnoreCase("true") || value.equalsIgnoreCase("on");
+    }
+}
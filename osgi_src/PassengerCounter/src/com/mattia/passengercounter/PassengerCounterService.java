@@ -0,0 +1,33 @@
+package com.mattia.passengercounter;
+
+// Counting service registered by the PassengerCounter bundle, one per RealSense device.
+// Service properties: device.serial, device.name and service.pid, the Configuration Admin PID of the device.
+public interface PassengerCounterService {
+
+    public static final String DEVICE_SERIAL = "device.serial";
+    public static final String DEVICE_NAME = "device.name";
+
+    // Configuration Admin PID of the settings of every device, a device PID is this PID + "." + serial
+    public static final String PID = "com.mattia.passengercounter";
+
+    // Selectors
+    public String getDeviceSerial();
+    public String getDeviceName();
+
+    public int getCountIn();
+    public int getCountOut();
+
+    // Crossings with fromMillis <= time < toMillis. Returns {count in, count out}
+    public int[] getCounts(long fromMillis, long toMillis);
+
+    public double getFps();
+    public int getActivePassengers();
+
+    // Time from bundle start to the first frame counted by this device [milliseconds], -1 before it
+    public long getStartupMillis();
+
+    // Methods
+
+    // Returns the counts before the reset: {count in, count out}
+    public int[] readAndResetCounters();
+}